@@ -0,0 +1,12 @@
+# Times the buffer manager; see studentClient/simpledb/BufferBench.java.
+# Usage: ./bufferbench.sh pool [numbuffers ...]
+#    or: ./bufferbench.sh stripes [numstripes ...]
+# The scratch database ~/benchdb is removed afterwards.
+javac -nowarn -cp . simpledb/*/*.java simpledb/*/*/*.java
+jar cf simpledb.jar simpledb/*/*.class simpledb/*/*/*.class
+cp simpledb.jar studentClient/simpledb/
+cd studentClient/simpledb
+javac -cp simpledb.jar:. BufferBench.java
+java -Xmx1g -cp simpledb.jar:. BufferBench "$@"
+cd ../..
+rm -rf ~/benchdb
@@ -0,0 +1,11 @@
+# Compares the channel and mmap I/O modes; see studentClient/simpledb/IoBench.java.
+# Usage: ./iobench.sh [numblocks]
+# The scratch databases ~/benchchannel and ~/benchmmap are removed afterwards.
+javac -nowarn -cp . simpledb/*/*.java simpledb/*/*/*.java
+jar cf simpledb.jar simpledb/*/*.class simpledb/*/*/*.class
+cp simpledb.jar studentClient/simpledb/
+cd studentClient/simpledb
+javac -cp simpledb.jar:. IoBench.java
+java -cp simpledb.jar:. IoBench "$@"
+cd ../..
+rm -rf ~/benchchannel ~/benchmmap
@@ -1,15 +1,47 @@
 package simpledb.buffer;
 
 import simpledb.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
 
 /**
- * Manages the pinning and unpinning of buffers to blocks.
+ * Manages the pinning and unpinning of buffers to blocks
+ * for one stripe of the buffer pool.
+ * The manager keeps a hash table from each assigned block
+ * to its buffer, so that an existing buffer can be found
+ * without scanning the pool.
+ * Buffers that have never been assigned a block are kept on
+ * a free list; once the free list is empty, the buffer to be
+ * replaced is chosen by a {@link ReplacementPolicy}.
+ * Buffers that have been released by a {@link BufferRing}
+ * are replaced before the policy is consulted.
+ * The manager counts the pins that found their block
+ * already in the pool (hits) and those that had to read it (misses).
+ * <P>
+ * Each stripe is protected by its own lock, so that threads
+ * using blocks of different stripes do not contend.
+ * A thread that finds no available buffer waits on its own
+ * condition in a FIFO queue; when a buffer is unpinned,
+ * only the thread at the head of the queue is woken up.
+ * <P>
+ * The stripe can be resized while in use.
+ * When it shrinks, unpinned buffers are removed at once,
+ * and pinned buffers are removed as they become unpinned.
  * @author Edward Sciore
  *
  */
 class BasicBufferMgr {
-   private Buffer[] bufferpool;
-   private int numAvailable;
+   private List<Buffer> bufferpool;
+   private Map<Block,Buffer> bufferPoolMap;
+   private Deque<Buffer> freeList;
+   private Set<Buffer> recycled = new LinkedHashSet<Buffer>();
+   private ReplacementPolicy policy;
+   private volatile int numAvailable;
+   private int toRetire = 0;
+   private long hits = 0, misses = 0;
+   private Lock lock = new ReentrantLock();
+   private Deque<Condition> waiters = new ArrayDeque<Condition>();
    
    /**
     * Creates a buffer manager having the specified number 
@@ -23,22 +55,46 @@ class BasicBufferMgr {
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffs the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy:
+    * "clock", "lru", "lru-k" or "2q"
     */
-   BasicBufferMgr(int numbuffs) {
-      bufferpool = new Buffer[numbuffs];
-      numAvailable = numbuffs;
-      for (int i=0; i<numbuffs; i++)
-         bufferpool[i] = new Buffer();
+   BasicBufferMgr(int numbuffs, String policyname) {
+      bufferpool = new ArrayList<Buffer>(numbuffs);
+      bufferPoolMap = new HashMap<Block,Buffer>(2 * numbuffs);
+      freeList = new ArrayDeque<Buffer>(numbuffs);
+      policy = newPolicy(policyname, numbuffs);
+      numAvailable = 0;
+      addBuffers(numbuffs);
    }
    
    /**
     * Flushes the dirty buffers modified by the specified transaction.
     * @param txnum the transaction's id number
     */
-   synchronized void flushAll(int txnum) {
-      for (Buffer buff : bufferpool)
-         if (buff.isModifiedBy(txnum))
-         buff.flush();
+   void flushAll(int txnum) {
+      lock.lock();
+      try {
+         for (Buffer buff : bufferpool)
+            if (buff.isModifiedBy(txnum))
+            buff.flush();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Flushes all of the dirty buffers.
+    */
+   void flushAll() {
+      lock.lock();
+      try {
+         for (Buffer buff : bufferpool)
+            buff.flush();
+      }
+      finally {
+         lock.unlock();
+      }
    }
    
    /**
@@ -46,74 +102,486 @@ class BasicBufferMgr {
     * If there is already a buffer assigned to that block
     * then that buffer is used;  
     * otherwise, an unpinned buffer from the pool is chosen.
-    * Returns a null value if there are no available buffers.
+    * If no buffer is available, the calling thread waits
+    * until one is unpinned.
+    * Returns a null value if no buffer became available
+    * before the deadline.
+    * If a ring is specified and the block has to be read,
+    * then the buffer is added to the ring.
     * @param blk a reference to a disk block
-    * @return the pinned buffer
+    * @param deadline the time (in milliseconds) at which to give up
+    * @param ring the scan's buffer ring, or null
+    * @return the pinned buffer, or null
+    * @throws InterruptedException if the thread is interrupted while waiting
+    */
+   Buffer pin(Block blk, long deadline, BufferRing ring) throws InterruptedException {
+      lock.lock();
+      try {
+         Buffer buff = tryPin(blk, ring);
+         if (buff != null)
+            return buff;
+         Condition turn = lock.newCondition();
+         waiters.add(turn);
+         try {
+            while (buff == null && await(turn, deadline))
+               buff = tryPin(blk, ring);
+            return buff;
+         }
+         finally {
+            leaveQueue(turn);
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Allocates a new block in the specified file, and
+    * pins a buffer to it. 
+    * If no buffer is available, the calling thread waits
+    * until one is unpinned.
+    * Returns null (without allocating the block) if 
+    * no buffer became available before the deadline.
+    * @param filename the name of the file
+    * @param fmtr a pageformatter object, used to format the new block
+    * @param deadline the time (in milliseconds) at which to give up
+    * @return the pinned buffer, or null
+    * @throws InterruptedException if the thread is interrupted while waiting
+    */
+   Buffer pinNew(String filename, PageFormatter fmtr, long deadline) throws InterruptedException {
+      lock.lock();
+      try {
+         Buffer buff = tryPinNew(filename, fmtr);
+         if (buff != null)
+            return buff;
+         Condition turn = lock.newCondition();
+         waiters.add(turn);
+         try {
+            while (buff == null && await(turn, deadline))
+               buff = tryPinNew(filename, fmtr);
+            return buff;
+         }
+         finally {
+            leaveQueue(turn);
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Adds the buffers having logged modifications
+    * older than the specified LSN to the list.
+    * @param lsn the LSN
+    * @param buffs the list of buffers
+    */
+   void dirtySince(long lsn, List<Buffer> buffs) {
+      lock.lock();
+      try {
+         for (Buffer buff : bufferpool) {
+            long reclsn = buff.recoveryLSN();
+            if (reclsn >= 0 && reclsn < lsn)
+               buffs.add(buff);
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Returns the smallest recovery LSN of the buffers,
+    * or Long.MAX_VALUE if no buffer has logged modifications
+    * that are not on disk.
+    * @return the smallest recovery LSN
+    */
+   long minRecoveryLSN() {
+      lock.lock();
+      try {
+         long min = Long.MAX_VALUE;
+         for (Buffer buff : bufferpool) {
+            long reclsn = buff.recoveryLSN();
+            if (reclsn >= 0 && reclsn < min)
+               min = reclsn;
+         }
+         return min;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Returns the dirty buffers among the next victims,
+    * so that they can be written before they are needed.
+    * Buffers on the free list count as clean victims,
+    * and recycled buffers are the first victims.
+    * @param target the number of clean victims desired
+    * @return the dirty buffers that should be written
+    */
+   List<Buffer> dirtyVictims(int target) {
+      lock.lock();
+      try {
+         List<Buffer> dirty = new ArrayList<Buffer>();
+         int count = target - freeList.size();
+         for (Buffer buff : recycled) {
+            if (count <= 0)
+               return dirty;
+            if (buff.isModified())
+               dirty.add(buff);
+            count--;
+         }
+         if (count <= 0)
+            return dirty;
+         for (Buffer buff : policy.nextVictims(count))
+            if (buff.isModified())
+            dirty.add(buff);
+         return dirty;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Unpins the specified buffer.
+    * If the buffer becomes available, the first
+    * waiting thread is woken up.
+    * @param buff the buffer to be unpinned
+    */
+   void unpin(Buffer buff) {
+      lock.lock();
+      try {
+         buff.unpin();
+         if (!buff.isPinned()) {
+            numAvailable++;
+            policy.unpinned(buff);
+            if (toRetire > 0) {
+               bufferPoolMap.remove(buff.block());
+               recycled.remove(buff);
+               retire(buff);
+               return;
+            }
+            Condition first = waiters.peek();
+            if (first != null)
+               first.signal();
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Marks a buffer that has left a ring as the next to be replaced.
+    * Nothing happens if the buffer is pinned or
+    * has been assigned to a different block in the meantime.
+    * @param buff the buffer
+    * @param blk the block that the buffer held when it entered the ring
+    */
+   void recycle(Buffer buff, Block blk) {
+      lock.lock();
+      try {
+         if (blk.equals(buff.block()) && !buff.isPinned())
+            recycled.add(buff);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Unpins a buffer that was returned by 
+    * {@link #pinNew(String, PageFormatter, long) pinNew}
+    * but whose new block belongs to another stripe.
+    * The block is removed from the hash table, so that
+    * the block will be read into the proper stripe.
+    * The buffer is not modified, so it can later be
+    * replaced without being written.
+    * @param buff the buffer to be released
+    */
+   void release(Buffer buff) {
+      lock.lock();
+      try {
+         bufferPoolMap.remove(buff.block());
+      }
+      finally {
+         lock.unlock();
+      }
+      unpin(buff);
+   }
+   
+   /**
+    * Reads the specified block into a free buffer,
+    * without pinning it.
+    * Nothing is read if the block is already in the stripe.
+    * The method returns false if the stripe has no free buffer,
+    * so that preloading never replaces a block.
+    * @param blk a reference to a disk block
+    * @return false if there was no free buffer
+    */
+   boolean preload(Block blk) {
+      lock.lock();
+      try {
+         if (bufferPoolMap.containsKey(blk))
+            return true;
+         Buffer buff = freeList.poll();
+         if (buff == null)
+            return false;
+         buff.assignToBlock(blk);
+         bufferPoolMap.put(blk, buff);
+         policy.pinned(buff, false);
+         policy.unpinned(buff);
+         return true;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Adds the blocks held by the stripe's buffers
+    * to the specified collection.
+    * @param blocks the collection of blocks
+    */
+   void residentBlocks(Collection<Block> blocks) {
+      lock.lock();
+      try {
+         blocks.addAll(bufferPoolMap.keySet());
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Changes the number of buffers in the stripe.
+    * New buffers are put on the free list.
+    * When the stripe shrinks, free and unpinned buffers
+    * are removed immediately (being written to disk if dirty);
+    * the remaining buffers are removed when they are unpinned.
+    * @param numbuffs the new number of buffers
+    */
+   void resize(int numbuffs) {
+      lock.lock();
+      try {
+         int delta = numbuffs - size();
+         if (delta > 0) {
+            int kept = Math.min(delta, toRetire);
+            toRetire -= kept;
+            addBuffers(delta - kept);
+            Condition first = waiters.peek();
+            if (first != null)
+               first.signal();
+         }
+         else {
+            toRetire -= delta;
+            while (toRetire > 0) {
+               Buffer buff = chooseUnpinnedBuffer();
+               if (buff == null)
+                  break;
+               retire(buff);
+            }
+         }
+         policy.resize(numbuffs);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Returns the number of buffers in the stripe,
+    * not counting those waiting to be removed.
+    * @return the size of the stripe
+    */
+   int size() {
+      lock.lock();
+      try {
+         return bufferpool.size() - toRetire;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Returns the number of available (i.e. unpinned) buffers.
+    * @return the number of available buffers
+    */
+   int available() {
+      return numAvailable;
+   }
+   
+   /**
+    * Returns the number of pins that found their block
+    * already assigned to a buffer.
+    * @return the number of buffer hits
     */
-   synchronized Buffer pin(Block blk) {
+   long hits() {
+      lock.lock();
+      try {
+         return hits;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   /**
+    * Returns the number of pins that had to read their
+    * block into a buffer.
+    * @return the number of buffer misses
+    */
+   long misses() {
+      lock.lock();
+      try {
+         return misses;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+   
+   private Buffer tryPin(Block blk, BufferRing ring) {
       Buffer buff = findExistingBuffer(blk);
-      if (buff == null) {
+      boolean hit = (buff != null);
+      if (!hit) {
          buff = chooseUnpinnedBuffer();
          if (buff == null)
             return null;
          buff.assignToBlock(blk);
+         bufferPoolMap.put(blk, buff);
+         misses++;
+         if (ring != null)
+            ring.add(buff);
+      }
+      else {
+         hits++;
+         recycled.remove(buff);
       }
       if (!buff.isPinned())
          numAvailable--;
       buff.pin();
+      policy.pinned(buff, hit);
       return buff;
    }
    
-   /**
-    * Allocates a new block in the specified file, and
-    * pins a buffer to it. 
-    * Returns null (without allocating the block) if 
-    * there are no available buffers.
-    * @param filename the name of the file
-    * @param fmtr a pageformatter object, used to format the new block
-    * @return the pinned buffer
-    */
-   synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   private Buffer tryPinNew(String filename, PageFormatter fmtr) {
       Buffer buff = chooseUnpinnedBuffer();
       if (buff == null)
          return null;
       buff.assignToNew(filename, fmtr);
+      bufferPoolMap.put(buff.block(), buff);
       numAvailable--;
       buff.pin();
+      policy.pinned(buff, false);
       return buff;
    }
    
    /**
-    * Unpins the specified buffer.
-    * @param buff the buffer to be unpinned
+    * Waits for the specified condition to be signalled,
+    * but not past the deadline.
+    * Returns false if the deadline has already passed.
     */
-   synchronized void unpin(Buffer buff) {
-      buff.unpin();
-      if (!buff.isPinned())
+   private boolean await(Condition turn, long deadline) throws InterruptedException {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0)
+         return false;
+      turn.await(remaining, TimeUnit.MILLISECONDS);
+      return true;
+   }
+   
+   /**
+    * Removes a thread's condition from the wait queue.
+    * If buffers are still available, the next waiting
+    * thread is woken up, so that a wakeup is never lost.
+    */
+   private void leaveQueue(Condition turn) {
+      waiters.remove(turn);
+      Condition next = waiters.peek();
+      if (next != null && numAvailable > 0)
+         next.signal();
+   }
+   
+   private void addBuffers(int count) {
+      for (int i=0; i<count; i++) {
+         Buffer buff = new Buffer();
+         bufferpool.add(buff);
+         freeList.add(buff);
          numAvailable++;
+      }
    }
    
    /**
-    * Returns the number of available (i.e. unpinned) buffers.
-    * @return the number of available buffers
+    * Removes an unpinned buffer from the stripe, after
+    * writing its page to disk if necessary.
+    * The buffer must already be absent from the hash table.
     */
-   int available() {
-      return numAvailable;
+   private void retire(Buffer buff) {
+      policy.remove(buff);
+      buff.flush();
+      bufferpool.remove(buff);
+      numAvailable--;
+      toRetire--;
    }
    
    private Buffer findExistingBuffer(Block blk) {
-      for (Buffer buff : bufferpool) {
-         Block b = buff.block();
-         if (b != null && b.equals(blk))
-            return buff;
-      }
-      return null;
+      return bufferPoolMap.get(blk);
    }
    
+   /**
+    * Returns an unpinned buffer, preferring one that has
+    * never been assigned a block, and then one that has
+    * been recycled by a ring; otherwise the replacement
+    * policy chooses the victim.
+    * If the chosen buffer holds a block, that block is
+    * removed from the hash table, since the caller is
+    * about to reassign the buffer.
+    * @return an unpinned buffer, or null if all buffers are pinned
+    */
    private Buffer chooseUnpinnedBuffer() {
-      for (Buffer buff : bufferpool)
-         if (!buff.isPinned())
+      Buffer buff = freeList.poll();
+      if (buff != null)
          return buff;
-      return null;
+      Iterator<Buffer> iter = recycled.iterator();
+      if (iter.hasNext()) {
+         buff = iter.next();
+         iter.remove();
+         policy.remove(buff);
+      }
+      else {
+         buff = policy.chooseVictim();
+         if (buff == null)
+            return null;
+         recycled.remove(buff);
+      }
+      bufferPoolMap.remove(buff.block());
+      return buff;
+   }
+   
+   private static ReplacementPolicy newPolicy(String policyname, int numbuffs) {
+      String name = policyname.toLowerCase();
+      if (name.equals("clock"))
+         return new ClockPolicy();
+      else if (name.equals("lru"))
+         return new LRUKPolicy(1, numbuffs);
+      else if (name.startsWith("lru-"))
+         return new LRUKPolicy(lruK(name), numbuffs);
+      else if (name.equals("2q"))
+         return new TwoQPolicy(numbuffs);
+      else
+         throw new IllegalArgumentException("unknown replacement policy " + policyname);
+   }
+   
+   /**
+    * Extracts K from a policy name such as "lru-2".
+    * The name "lru-k" denotes the usual choice of K=2.
+    */
+   private static int lruK(String name) {
+      String k = name.substring(4);
+      return k.equals("k") ? 2 : Integer.parseInt(k);
    }
 }
@@ -11,6 +11,25 @@ import simpledb.file.*;
  * whether the contents of the page have been modified,
  * and if so, the id of the modifying transaction and
  * the LSN of the corresponding log record.
+ * The methods that change the page or its status are synchronized,
+ * so that the page can be written to disk by a background
+ * thread while it is being used.
+ * <P>
+ * When the page is written to disk, the LSN of its most recent
+ * log record is stored in the last long integer of the block
+ * (the page LSN); the recovery manager uses it to decide
+ * which logged modifications the block already contains.
+ * The buffer also remembers the LSN of the first modification
+ * since the page was last written (its recovery LSN),
+ * which tells a checkpoint where redo must start for this page.
+ * A transaction holds the buffer's lock while it logs a
+ * modification and makes it, so that a checkpoint sees
+ * either both or neither.
+ * <P>
+ * A buffer can also be latched, shared or exclusively,
+ * by a thread that reads or modifies its page in a short
+ * operation, such as an action on a B-tree page.
+ * Unlike a lock, a latch is released as soon as the operation ends.
  * @author Edward Sciore
  */
 public class Buffer {
@@ -18,7 +37,10 @@ public class Buffer {
    private Block blk = null;
    private int pins = 0;
    private int modifiedBy = -1;  // negative means not modified
-   private int logSequenceNumber = -1; // negative means no corresponding log record
+   private long logSequenceNumber = -1; // negative means no corresponding log record
+   private long recoveryLSN = -1; // negative means no logged modification since written
+   private int latches = 0; // the number of shared latches, or -1 for an exclusive one
+   private int xwaiting = 0; // the number of threads waiting for an exclusive latch
 
    /**
     * Creates a new buffer, wrapping a new 
@@ -60,6 +82,17 @@ public class Buffer {
       return contents.getString(offset);
    }
 
+   /**
+    * Returns the specified number of bytes, beginning
+    * at the specified offset of the buffer's page.
+    * @param offset the byte offset of the page
+    * @param n the number of bytes
+    * @return the bytes at that offset
+    */
+   public byte[] getBytes(int offset, int n) {
+      return contents.getBytes(offset, n);
+   }
+
    /**
     * Writes an integer to the specified offset of the
     * buffer's page.
@@ -74,10 +107,13 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setInt(int offset, int val, int txnum, int lsn) {
+   public synchronized void setInt(int offset, int val, int txnum, long lsn) {
       modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
+      if (lsn >= 0) {
+         if (recoveryLSN < 0)
+            recoveryLSN = lsn;
+         logSequenceNumber = lsn;
+      }
       contents.setInt(offset, val);
    }
 
@@ -95,13 +131,63 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setString(int offset, String val, int txnum, int lsn) {
+   public synchronized void setString(int offset, String val, int txnum, long lsn) {
       modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
+      if (lsn >= 0) {
+         if (recoveryLSN < 0)
+            recoveryLSN = lsn;
+         logSequenceNumber = lsn;
+      }
       contents.setString(offset, val);
    }
 
+   /**
+    * Writes bytes to the specified offset of the
+    * buffer's page.
+    * This method assumes that the transaction has already
+    * written an appropriate log record.
+    * A negative lsn value indicates that a log record
+    * was not necessary.
+    * The buffer saves the id of the transaction
+    * and the LSN of the log record.
+    * @param offset the byte offset within the page
+    * @param val the new bytes to be written
+    * @param txnum the id of the transaction performing the modification
+    * @param lsn the LSN of the corresponding log record
+    */
+   public synchronized void setBytes(int offset, byte[] val, int txnum, long lsn) {
+      modifiedBy = txnum;
+      if (lsn >= 0) {
+         if (recoveryLSN < 0)
+            recoveryLSN = lsn;
+         logSequenceNumber = lsn;
+      }
+      contents.setBytes(offset, val);
+   }
+
+   /**
+    * Returns the LSN of the most recent log record
+    * for a modification of the page.
+    * If the page has not been modified since it was read,
+    * this is the page LSN stored in its block.
+    * A negative value means that no modification was logged.
+    * @return the LSN of the page
+    */
+   public synchronized long pageLSN() {
+      return logSequenceNumber;
+   }
+
+   /**
+    * Returns the LSN of the first logged modification of the
+    * page since it was last written to disk.
+    * A negative value means that the page has no logged
+    * modifications that are not on disk.
+    * @return the recovery LSN of the page
+    */
+   public synchronized long recoveryLSN() {
+      return recoveryLSN;
+   }
+
    /**
     * Returns a reference to the disk block
     * that the buffer is pinned to.
@@ -111,18 +197,70 @@ public class Buffer {
       return blk;
    }
 
+   /**
+    * Copies the contents of the buffer's page
+    * into the specified page.
+    * @param page the page that receives the contents
+    */
+   public synchronized void copyTo(Page page) {
+      page.copyFrom(contents);
+   }
+
+   /**
+    * Latches the buffer, waiting until no other thread
+    * has an incompatible latch on it.
+    * A shared latch is not granted while a thread is waiting
+    * for an exclusive one, so that writers are not starved.
+    * The buffer must stay pinned until it is unlatched.
+    * @param exclusive true for an exclusive latch, false for a shared one
+    */
+   public synchronized void latch(boolean exclusive) {
+      try {
+         if (exclusive) {
+            xwaiting++;
+            try {
+               while (latches != 0)
+                  wait();
+            }
+            finally {
+               xwaiting--;
+            }
+            latches = -1;
+         }
+         else {
+            while (latches < 0 || xwaiting > 0)
+               wait();
+            latches++;
+         }
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("interrupted while waiting for a latch on " + blk);
+      }
+   }
+
+   /**
+    * Releases a latch on the buffer.
+    */
+   public synchronized void unlatch() {
+      latches = (latches < 0) ? 0 : latches - 1;
+      if (latches == 0)
+         notifyAll();
+   }
+
    /**
     * Writes the page to its disk block if the
     * page is dirty.
     * The method ensures that the corresponding log
     * record has been written to disk prior to writing
-    * the page to disk.
+    * the page to disk, and stores its LSN in the page.
     */
-   void flush() {
+   synchronized void flush() {
       if (modifiedBy >= 0) {
          SimpleDB.logMgr().flush(logSequenceNumber);
+         contents.setLong(Page.DATA_SIZE(), logSequenceNumber);
          contents.write(blk);
          modifiedBy = -1;
+         recoveryLSN = -1;
       }
    }
 
@@ -155,21 +293,35 @@ public class Buffer {
     * @param txnum the id of the transaction
     * @return true if the transaction modified the buffer
     */
-   boolean isModifiedBy(int txnum) {
+   synchronized boolean isModifiedBy(int txnum) {
       return txnum == modifiedBy;
    }
+   
+   /**
+    * Returns true if the buffer is dirty.
+    * @return true if the page differs from its disk block
+    */
+   synchronized boolean isModified() {
+      return modifiedBy >= 0;
+   }
 
    /**
     * Reads the contents of the specified block into
     * the buffer's page.
     * If the buffer was dirty, then the contents
     * of the previous page are first written to disk.
+    * A page of a database that has no page LSNs
+    * (see {@link Page#LSN_SIZE}) is given the LSN -1.
     * @param b a reference to the data block
     */
-   void assignToBlock(Block b) {
+   synchronized void assignToBlock(Block b) {
       flush();
       blk = b;
       contents.read(blk);
+      if (Page.LSN_SIZE == Page.LONG_SIZE)
+         logSequenceNumber = contents.getLong(Page.DATA_SIZE());
+      else
+         logSequenceNumber = -1;
       pins = 0;
    }
 
@@ -181,9 +333,11 @@ public class Buffer {
     * @param filename the name of the file
     * @param fmtr a page formatter, used to initialize the page
     */
-   void assignToNew(String filename, PageFormatter fmtr) {
+   synchronized void assignToNew(String filename, PageFormatter fmtr) {
       flush();
       fmtr.format(contents);
+      logSequenceNumber = -1;
+      contents.setLong(Page.DATA_SIZE(), logSequenceNumber);
       blk = contents.append(filename);
       pins = 0;
    }
@@ -1,30 +1,45 @@
 package simpledb.buffer;
 
+import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.*;
 
 /**
  * The publicly-accessible buffer manager.
- * A buffer manager wraps a basic buffer manager, and
- * provides the same methods. The difference is that
- * the methods {@link #pin(Block) pin} and 
+ * The buffer pool is partitioned into stripes, each of
+ * which is a basic buffer manager having its own lock.
+ * A block always belongs to the same stripe,
+ * determined by the hash code of the block,
+ * so threads that access different blocks
+ * seldom wait on each other.
+ * The methods {@link #pin(Block) pin} and 
  * {@link #pinNew(String, PageFormatter) pinNew}
  * will never return null.
- * If no buffers are currently available, then the
- * calling thread will be placed on a waiting list.
- * The waiting threads are removed from the list when 
- * a buffer becomes available.
+ * If no buffers are currently available in the stripe, then the
+ * calling thread will be placed on the stripe's waiting list.
+ * The waiting threads are woken up one at a time, in
+ * the order that they arrived, as buffers become available.
  * If a thread has been waiting for a buffer for an
- * excessive amount of time (currently, 10 seconds)
+ * excessive amount of time
+ * (see {@link simpledb.server.SimpleDB#BUFFER_TIMEOUT})
  * then a {@link BufferAbortException} is thrown.
+ * <P>
+ * The pool can be resized while the server is running.
+ * The new size is divided among the existing stripes.
  * @author Edward Sciore
  */
 public class BufferMgr {
-   private static final long MAX_TIME = 10000; // 10 seconds
-   private BasicBufferMgr bufferMgr;
+   private static final int MIN_STRIPE_SIZE = 64;
+   private static final int MAX_RING_SIZE = 16;
+   private BasicBufferMgr[] stripes;
+   private volatile int numbuffers;
    
    /**
     * Creates a new buffer manager having the specified 
     * number of buffers.
+    * The number of stripes is chosen from the number of
+    * processors, but each stripe has at least 64 buffers;
+    * thus a small buffer pool has a single stripe.
     * This constructor depends on both the {@link FileMgr} and
     * {@link simpledb.log.LogMgr LogMgr} objects 
     * that it gets from the class
@@ -34,9 +49,53 @@ public class BufferMgr {
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffers the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
     */
-   public BufferMgr(int numbuffers) {
-      bufferMgr = new BasicBufferMgr(numbuffers);
+   public BufferMgr(int numbuffers, String policyname) {
+      this(numbuffers, policyname, 0);
+   }
+   
+   /**
+    * Creates a new buffer manager having the specified
+    * number of buffers, divided into the specified
+    * number of stripes.
+    * A non-positive number of stripes means that
+    * the number is chosen as described above.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
+    * @param numstripes the number of stripes, or 0
+    */
+   public BufferMgr(int numbuffers, String policyname, int numstripes) {
+      if (numstripes <= 0)
+         numstripes = defaultStripes(numbuffers);
+      this.numbuffers = numbuffers;
+      numstripes = Math.max(1, Math.min(numstripes, numbuffers));
+      stripes = new BasicBufferMgr[numstripes];
+      for (int i=0; i<numstripes; i++)
+         stripes[i] = new BasicBufferMgr(stripeSize(i), policyname);
+   }
+   
+   /**
+    * Converts a buffer pool size to a number of buffers.
+    * The size is either a number of buffers, such as "1000",
+    * or a number of bytes followed by the suffix
+    * "k", "m" or "g", such as "64m".
+    * @param size the size of the buffer pool
+    * @return the number of buffers
+    */
+   public static int parseSize(String size) {
+      String s = size.trim().toLowerCase();
+      long multiplier = 0;
+      if (s.endsWith("k"))
+         multiplier = 1L << 10;
+      else if (s.endsWith("m"))
+         multiplier = 1L << 20;
+      else if (s.endsWith("g"))
+         multiplier = 1L << 30;
+      if (multiplier == 0)
+         return Integer.parseInt(s);
+      long bytes = Long.parseLong(s.substring(0, s.length()-1)) * multiplier;
+      return (int) Math.max(1, bytes / Page.BLOCK_SIZE);
    }
    
    /**
@@ -47,16 +106,26 @@ public class BufferMgr {
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
+   public Buffer pin(Block blk) {
+      return pin(blk, null);
+   }
+   
+   /**
+    * Pins a buffer to the specified block on behalf
+    * of a scan that uses the specified buffer ring.
+    * If the block has to be read, its buffer joins the ring,
+    * and the oldest buffer of a full ring will be
+    * the next one replaced.
+    * @param blk a reference to a disk block
+    * @param ring the scan's buffer ring, or null
+    * @return the buffer pinned to that block
+    */
+   public Buffer pin(Block blk, BufferRing ring) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pin(blk);
-         }
+         Buffer buff = stripeOf(blk).pin(blk, deadline(), ring);
          if (buff == null)
             throw new BufferAbortException();
+         recycleOverflow(ring);
          return buff;
       }
       catch(InterruptedException e) {
@@ -69,20 +138,48 @@ public class BufferMgr {
     * potentially waiting until a buffer becomes available.
     * If no buffer becomes available within a fixed 
     * time period, then a {@link BufferAbortException} is thrown.
+    * <P>
+    * The new block is expected to be at the current end of
+    * the file, and is allocated in that block's stripe.
+    * If another thread extends the file in the meantime,
+    * the new block is instead pinned in its own stripe.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the page
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
+      return pinNew(filename, fmtr, null);
+   }
+   
+   /**
+    * Pins a buffer to a new block in the specified file
+    * on behalf of a scan that uses the specified buffer ring.
+    * The buffer joins the ring.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the page
+    * @param ring the scan's buffer ring, or null
+    * @return the buffer pinned to that block
+    */
+   public Buffer pinNew(String filename, PageFormatter fmtr, BufferRing ring) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pinNew(filename, fmtr);
-         }
+         long deadline = deadline();
+         Block expected = new Block(filename, SimpleDB.fileMgr().size(filename));
+         BasicBufferMgr stripe = stripeOf(expected);
+         Buffer buff = stripe.pinNew(filename, fmtr, deadline);
          if (buff == null)
             throw new BufferAbortException();
+         Block blk = buff.block();
+         if (stripeOf(blk) == stripe) {
+            if (ring != null)
+               ring.add(buff);
+         }
+         else {
+            stripe.release(buff);
+            buff = stripeOf(blk).pin(blk, deadline, ring);
+            if (buff == null)
+               throw new BufferAbortException();
+         }
+         recycleOverflow(ring);
          return buff;
       }
       catch(InterruptedException e) {
@@ -93,13 +190,107 @@ public class BufferMgr {
    /**
     * Unpins the specified buffer. 
     * If the buffer's pin count becomes 0,
-    * then the threads on the wait list are notified.
+    * then the first thread on its stripe's wait list is notified.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
-      bufferMgr.unpin(buff);
-      if (!buff.isPinned())
-         notifyAll();
+   public void unpin(Buffer buff) {
+      stripeOf(buff.block()).unpin(buff);
+   }
+   
+   /**
+    * Reads the specified block into the pool, if it
+    * can be done without replacing another block.
+    * The block is not pinned.
+    * @param blk a reference to a disk block
+    * @return false if the block's stripe had no free buffer
+    */
+   public boolean preload(Block blk) {
+      return stripeOf(blk).preload(blk);
+   }
+   
+   /**
+    * Returns the blocks currently held by the pool,
+    * sorted by file and block number.
+    * @return the resident blocks
+    */
+   public List<Block> residentBlocks() {
+      List<Block> blocks = new ArrayList<Block>();
+      for (BasicBufferMgr stripe : stripes)
+         stripe.residentBlocks(blocks);
+      Collections.sort(blocks);
+      return blocks;
+   }
+   
+   /**
+    * Changes the number of buffers in the pool.
+    * When the pool grows, the new buffers are available
+    * immediately. When it shrinks, the unpinned buffers
+    * in excess are removed immediately, and pinned buffers
+    * are removed when they are unpinned; dirty buffers are
+    * written to disk before being removed.
+    * Each stripe keeps at least one buffer.
+    * @param numbuffers the new number of buffers
+    */
+   public synchronized void resize(int numbuffers) {
+      this.numbuffers = Math.max(numbuffers, stripes.length);
+      for (int i=0; i<stripes.length; i++)
+         stripes[i].resize(stripeSize(i));
+   }
+   
+   /**
+    * Returns the number of buffers in the pool.
+    * After the pool has been shrunk, buffers that are
+    * still pinned and waiting to be removed are not counted.
+    * @return the number of buffers
+    */
+   public int size() {
+      return numbuffers;
+   }
+   
+   /**
+    * Returns a buffer ring for a scan that is expected to
+    * read the specified number of blocks.
+    * A scan of more than a quarter of the pool gets a
+    * ring; a smaller scan gets null, meaning that it uses
+    * the pool in the usual way.
+    * @param numblocks the expected number of blocks
+    * @return a new buffer ring, or null
+    */
+   public BufferRing ringFor(int numblocks) {
+      if (numblocks > numbuffers / 4)
+         return newRing();
+      else
+         return null;
+   }
+   
+   /**
+    * Returns a new buffer ring, whose size is an
+    * eighth of the pool but at most 16 buffers.
+    * @return a new buffer ring
+    */
+   public BufferRing newRing() {
+      int size = Math.max(1, Math.min(MAX_RING_SIZE, numbuffers / 8));
+      return new BufferRing(size);
+   }
+   
+   /**
+    * Starts a background thread that writes dirty buffers
+    * before they are chosen for replacement.
+    * The thread tries to keep the specified number of
+    * clean, unpinned buffers available in the pool.
+    * A negative target means a quarter of the pool,
+    * and a target of 0 means that no thread is started.
+    * @param target the number of clean buffers to keep available
+    */
+   public void startPageWriter(int target) {
+      if (target < 0)
+         target = Math.max(1, numbuffers / 4);
+      if (target == 0)
+         return;
+      int perstripe = (target + stripes.length - 1) / stripes.length;
+      Thread t = new Thread(new PageWriter(stripes, perstripe), "PageWriter");
+      t.setDaemon(true);
+      t.start();
    }
    
    /**
@@ -107,7 +298,49 @@ public class BufferMgr {
     * @param txnum the transaction's id number
     */
    public void flushAll(int txnum) {
-      bufferMgr.flushAll(txnum);
+      for (BasicBufferMgr stripe : stripes)
+         stripe.flushAll(txnum);
+   }
+   
+   /**
+    * Flushes the buffers whose first logged modification
+    * not on disk is older than the specified LSN.
+    * The buffers are written in block order.
+    * This method is called by a checkpoint, so that the
+    * redo phase of recovery need not start before that LSN.
+    * @param lsn the LSN
+    */
+   public void flushOlderThan(long lsn) {
+      List<Buffer> buffs = new ArrayList<Buffer>();
+      for (BasicBufferMgr stripe : stripes)
+         stripe.dirtySince(lsn, buffs);
+      SortedMap<Block,Buffer> dirty = new TreeMap<Block,Buffer>();
+      for (Buffer buff : buffs)
+         dirty.put(buff.block(), buff);
+      for (Buffer buff : dirty.values())
+         buff.flush();
+   }
+   
+   /**
+    * Returns the smallest recovery LSN of the buffers in the pool,
+    * which is the LSN where the redo phase of recovery would
+    * have to start for the pool's modified pages.
+    * @return the smallest recovery LSN, or Long.MAX_VALUE if there is none
+    * @see Buffer#recoveryLSN()
+    */
+   public long minRecoveryLSN() {
+      long min = Long.MAX_VALUE;
+      for (BasicBufferMgr stripe : stripes)
+         min = Math.min(min, stripe.minRecoveryLSN());
+      return min;
+   }
+   
+   /**
+    * Flushes all dirty buffers, whichever transaction modified them.
+    */
+   public void flushAll() {
+      for (BasicBufferMgr stripe : stripes)
+         stripe.flushAll();
    }
    
    /**
@@ -115,10 +348,68 @@ public class BufferMgr {
     * @return the number of available buffers
     */
    public int available() {
-      return bufferMgr.available();
+      int count = 0;
+      for (BasicBufferMgr stripe : stripes)
+         count += stripe.available();
+      return count;
+   }
+   
+   /**
+    * Returns the number of pins that found their block
+    * already in the buffer pool.
+    * @return the number of buffer hits
+    */
+   public long hits() {
+      long count = 0;
+      for (BasicBufferMgr stripe : stripes)
+         count += stripe.hits();
+      return count;
+   }
+   
+   /**
+    * Returns the number of pins that had to read
+    * their block from disk.
+    * @return the number of buffer misses
+    */
+   public long misses() {
+      long count = 0;
+      for (BasicBufferMgr stripe : stripes)
+         count += stripe.misses();
+      return count;
+   }
+   
+   /**
+    * Recycles the buffers that no longer fit in the ring.
+    */
+   private void recycleOverflow(BufferRing ring) {
+      if (ring == null)
+         return;
+      while (ring.isOverfull()) {
+         Block blk = ring.oldestBlock();
+         stripeOf(blk).recycle(ring.oldestBuffer(), blk);
+         ring.removeOldest();
+      }
+   }
+   
+   private BasicBufferMgr stripeOf(Block blk) {
+      int h = blk.hashCode();
+      h ^= (h >>> 16);
+      return stripes[(h & Integer.MAX_VALUE) % stripes.length];
+   }
+   
+   private int stripeSize(int i) {
+      int size = numbuffers / stripes.length;
+      if (i < numbuffers % stripes.length)
+         size++;
+      return size;
+   }
+   
+   private long deadline() {
+      return System.currentTimeMillis() + SimpleDB.BUFFER_TIMEOUT;
    }
    
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+   private static int defaultStripes(int numbuffers) {
+      int cpus = Runtime.getRuntime().availableProcessors();
+      return Math.min(2 * cpus, numbuffers / MIN_STRIPE_SIZE);
    }
 }
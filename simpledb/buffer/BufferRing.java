@@ -0,0 +1,74 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * A buffer access strategy for large sequential scans.
+ * A ring remembers the buffers into which its scan read
+ * (or appended) blocks, up to a small fixed number.
+ * When a buffer falls out of the ring, the buffer manager
+ * marks it to be replaced before any other buffer.
+ * Thus the scan keeps recycling the same few buffers,
+ * instead of pushing frequently-used blocks out of the pool.
+ * A block that the scan finds already in the pool is
+ * not added to the ring, and so is not affected.
+ * A ring belongs to a single scan, and is not thread-safe.
+ * @author Edward Sciore
+ */
+public class BufferRing {
+   private int capacity;
+   private Deque<Buffer> buffs = new ArrayDeque<Buffer>();
+   private Deque<Block> blocks = new ArrayDeque<Block>();
+   
+   /**
+    * Creates a ring that holds the specified number of buffers.
+    * @param capacity the number of buffers in the ring
+    */
+   public BufferRing(int capacity) {
+      this.capacity = capacity;
+   }
+   
+   /**
+    * Adds a newly-assigned buffer to the ring.
+    * @param buff the buffer
+    */
+   void add(Buffer buff) {
+      buffs.add(buff);
+      blocks.add(buff.block());
+   }
+   
+   /**
+    * Returns true if the ring holds more buffers than its capacity.
+    * @return true if the oldest buffer should leave the ring
+    */
+   boolean isOverfull() {
+      return buffs.size() > capacity;
+   }
+   
+   /**
+    * Returns the oldest buffer of the ring.
+    * @return the oldest buffer
+    */
+   Buffer oldestBuffer() {
+      return buffs.peek();
+   }
+   
+   /**
+    * Returns the block that the oldest buffer was assigned to
+    * when it entered the ring.
+    * The buffer may since have been reassigned.
+    * @return the block of the oldest buffer
+    */
+   Block oldestBlock() {
+      return blocks.peek();
+   }
+   
+   /**
+    * Removes the oldest buffer from the ring.
+    */
+   void removeOldest() {
+      buffs.remove();
+      blocks.remove();
+   }
+}
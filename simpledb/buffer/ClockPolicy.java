@@ -0,0 +1,100 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The clock (second-chance) replacement policy.
+ * The buffers are arranged in a ring, each with a reference bit
+ * that is set whenever the buffer is pinned.
+ * A clock hand sweeps the ring, clearing reference bits,
+ * and chooses the first unpinned buffer whose bit is already clear.
+ * @author Edward Sciore
+ */
+class ClockPolicy implements ReplacementPolicy {
+   private List<Buffer> ring = new ArrayList<Buffer>();
+   private Map<Buffer,Integer> positions = new IdentityHashMap<Buffer,Integer>();
+   private BitSet referenced = new BitSet();
+   private int hand = 0;
+   
+   public void pinned(Buffer buff, boolean hit) {
+      Integer pos = positions.get(buff);
+      if (pos == null) {
+         pos = ring.size();
+         ring.add(buff);
+         positions.put(buff, pos);
+      }
+      referenced.set(pos);
+   }
+   
+   public void unpinned(Buffer buff) {}
+   
+   /**
+    * Sweeps the ring at most twice: the first pass
+    * may only clear reference bits, but the second pass
+    * is then guaranteed to find any unpinned buffer.
+    * The victim is removed from the ring, and the hand
+    * stays at its position, which now holds the buffer
+    * moved there from the end of the ring.
+    * @see simpledb.buffer.ReplacementPolicy#chooseVictim()
+    */
+   public Buffer chooseVictim() {
+      int n = ring.size();
+      for (int i=0; i<2*n; i++) {
+         Buffer buff = ring.get(hand);
+         int pos = hand;
+         hand = (hand + 1) % n;
+         if (buff.isPinned())
+            continue;
+         if (referenced.get(pos))
+            referenced.clear(pos);
+         else {
+            remove(buff);
+            hand = (pos < ring.size()) ? pos : 0;
+            return buff;
+         }
+      }
+      return null;
+   }
+   
+   /**
+    * Removes the buffer from the ring, by moving
+    * the last buffer of the ring into its position.
+    * @see simpledb.buffer.ReplacementPolicy#remove(simpledb.buffer.Buffer)
+    */
+   public void remove(Buffer buff) {
+      Integer pos = positions.remove(buff);
+      if (pos == null)
+         return;
+      int last = ring.size() - 1;
+      Buffer lastbuff = ring.remove(last);
+      if (pos != last) {
+         ring.set(pos, lastbuff);
+         positions.put(lastbuff, pos);
+         referenced.set(pos, referenced.get(last));
+      }
+      referenced.clear(last);
+      if (hand >= ring.size())
+         hand = 0;
+   }
+   
+   public void resize(int numbuffs) {}
+   
+   /**
+    * Returns the unpinned buffers whose reference bits are clear,
+    * in the order the hand will reach them,
+    * followed by those whose bits are set.
+    * @see simpledb.buffer.ReplacementPolicy#nextVictims(int)
+    */
+   public List<Buffer> nextVictims(int count) {
+      List<Buffer> victims = new ArrayList<Buffer>(count);
+      int n = ring.size();
+      for (int pass=0; pass<2; pass++)
+         for (int i=0; i<n && victims.size()<count; i++) {
+            int pos = (hand + i) % n;
+            Buffer buff = ring.get(pos);
+            if (!buff.isPinned() && referenced.get(pos) == (pass == 1))
+               victims.add(buff);
+         }
+      return victims;
+   }
+}
@@ -0,0 +1,128 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The list of blocks held by the buffer pool, saved in a file
+ * of the database directory so that the pool can be warmed up
+ * after a restart.
+ * The file has one line per block, holding the filename and
+ * the block number separated by a tab.
+ * The list is only a hint: blocks of temporary tables are
+ * not saved, and blocks that no longer exist are not read.
+ * @author Edward Sciore
+ */
+public class HotPageList {
+   private File file;
+   private BufferMgr bufferMgr;
+   
+   /**
+    * Creates a hot-page list for the buffer pool,
+    * stored in the specified file of the database directory.
+    * This constructor depends on the {@link simpledb.file.FileMgr}
+    * and {@link BufferMgr} objects that it gets from the class
+    * {@link simpledb.server.SimpleDB}.
+    * @param filename the name of the file
+    */
+   public HotPageList(String filename) {
+      file = SimpleDB.fileMgr().file(filename);
+      bufferMgr = SimpleDB.bufferMgr();
+   }
+   
+   /**
+    * Writes the blocks currently held by the buffer pool to the file.
+    * The list is written to a temporary file which then replaces
+    * the old one, so that a crash never leaves a partial list.
+    * @throws IOException if the file cannot be written
+    */
+   public synchronized void save() throws IOException {
+      File tmpfile = new File(file.getPath() + ".new");
+      PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmpfile)));
+      try {
+         for (Block blk : bufferMgr.residentBlocks())
+            if (!blk.fileName().startsWith("temp"))
+            out.println(blk.fileName() + "\t" + blk.number());
+      }
+      finally {
+         out.close();
+      }
+      if (!tmpfile.renameTo(file))
+         throw new IOException("cannot rename " + tmpfile);
+   }
+   
+   /**
+    * Reads the saved blocks into the buffer pool, in file and block order.
+    * Blocks are read only into free buffers, so that the
+    * blocks already used since startup are never replaced.
+    * @throws IOException if the file cannot be read
+    */
+   public void warmUp() throws IOException {
+      if (!file.exists())
+         return;
+      List<Block> blocks = new ArrayList<Block>();
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0)
+               blocks.add(new Block(line.substring(0, tab), Integer.parseInt(line.substring(tab+1))));
+         }
+      }
+      finally {
+         in.close();
+      }
+      Collections.sort(blocks);
+      String filename = null;
+      int filesize = 0;
+      for (Block blk : blocks) {
+         if (!blk.fileName().equals(filename)) {
+            filename = blk.fileName();
+            filesize = SimpleDB.fileMgr().file(filename).exists() ? SimpleDB.fileMgr().size(filename) : 0;
+         }
+         if (blk.number() < filesize)
+            bufferMgr.preload(blk);
+      }
+   }
+   
+   /**
+    * Starts a background thread that first warms up the buffer pool,
+    * and then saves the list of blocks at the specified interval.
+    * The list is also saved when the server shuts down.
+    * Errors are ignored, since the list is only a hint.
+    * @param interval the number of seconds between saves
+    */
+   public void start(final long interval) {
+      Thread t = new Thread("HotPageList") {
+         public void run() {
+            try {
+               warmUp();
+            }
+            catch(IOException e) {}
+            try {
+               while (true) {
+                  Thread.sleep(interval * 1000);
+                  try {
+                     save();
+                  }
+                  catch(IOException e) {}
+               }
+            }
+            catch(InterruptedException e) {}
+         }
+      };
+      t.setDaemon(true);
+      t.start();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            try {
+               save();
+            }
+            catch(IOException e) {}
+         }
+      });
+   }
+}
@@ -0,0 +1,102 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy.
+ * The policy remembers the times of the last K references
+ * to each block, and replaces the unpinned buffer whose
+ * K-th most recent reference is oldest.
+ * Blocks having fewer than K references are considered
+ * infinitely old, and are replaced first, in LRU order.
+ * Reference history is retained for a while after a block
+ * leaves the pool, so that a block that is re-read soon after
+ * being replaced is recognized as frequently used.
+ * With K=1 the policy is plain LRU.
+ * @author Edward Sciore
+ */
+class LRUKPolicy implements ReplacementPolicy {
+   private int k;
+   private int maxhistory;
+   private long clock = 0;
+   private Map<Block,long[]> history;
+   private Map<Buffer,long[]> residentHistory = new IdentityHashMap<Buffer,long[]>();
+   private TreeSet<Buffer> candidates;
+   
+   /**
+    * Creates an LRU-K policy for a pool of the specified size.
+    * @param k the number of references remembered per block
+    * @param numbuffs the number of buffers in the pool
+    */
+   LRUKPolicy(int k, int numbuffs) {
+      this.k = k;
+      maxhistory = 2 * numbuffs;
+      history = new LinkedHashMap<Block,long[]>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Block,long[]> e) {
+            return size() > maxhistory;
+         }
+      };
+      candidates = new TreeSet<Buffer>(new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            long[] h1 = residentHistory.get(b1);
+            long[] h2 = residentHistory.get(b2);
+            if (h1[k-1] != h2[k-1])
+               return Long.compare(h1[k-1], h2[k-1]);
+            return Long.compare(h1[0], h2[0]);
+         }
+      });
+   }
+   
+   public void pinned(Buffer buff, boolean hit) {
+      long[] times = residentHistory.get(buff);
+      if (times != null)
+         candidates.remove(buff);
+      else {
+         times = history.get(buff.block());
+         if (times == null) {
+            times = new long[k];
+            Arrays.fill(times, -1);
+            history.put(buff.block(), times);
+         }
+         residentHistory.put(buff, times);
+      }
+      // times[0] is the most recent reference
+      System.arraycopy(times, 0, times, 1, k-1);
+      times[0] = ++clock;
+   }
+   
+   public void unpinned(Buffer buff) {
+      candidates.add(buff);
+   }
+   
+   public Buffer chooseVictim() {
+      Buffer buff = candidates.pollFirst();
+      if (buff != null) {
+         long[] times = residentHistory.remove(buff);
+         history.put(buff.block(), times);
+      }
+      return buff;
+   }
+   
+   public void remove(Buffer buff) {
+      if (candidates.remove(buff)) {
+         long[] times = residentHistory.remove(buff);
+         history.put(buff.block(), times);
+      }
+   }
+   
+   public void resize(int numbuffs) {
+      maxhistory = 2 * numbuffs;
+   }
+   
+   public List<Buffer> nextVictims(int count) {
+      List<Buffer> victims = new ArrayList<Buffer>(count);
+      for (Buffer buff : candidates) {
+         if (victims.size() == count)
+            break;
+         victims.add(buff);
+      }
+      return victims;
+   }
+}
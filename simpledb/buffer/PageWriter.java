@@ -0,0 +1,56 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The background page writer.
+ * The writer periodically asks each stripe of the buffer pool
+ * for the dirty buffers among its next few victims,
+ * and writes them to disk in block order.
+ * Thus the buffers that are about to be replaced are usually clean,
+ * and a thread that reads a block seldom has to wait
+ * for another block to be written first.
+ * @author Edward Sciore
+ */
+class PageWriter implements Runnable {
+   private static final long INTERVAL = 100; // milliseconds
+   private BasicBufferMgr[] stripes;
+   private int target;
+   
+   /**
+    * Creates a page writer for the specified stripes.
+    * @param stripes the stripes of the buffer pool
+    * @param target the number of clean victims to keep in each stripe
+    */
+   PageWriter(BasicBufferMgr[] stripes, int target) {
+      this.stripes = stripes;
+      this.target = target;
+   }
+   
+   public void run() {
+      try {
+         while (true) {
+            writeDirtyVictims();
+            Thread.sleep(INTERVAL);
+         }
+      }
+      catch(InterruptedException e) {}
+   }
+   
+   /**
+    * Writes the dirty victims of all stripes.
+    * The victims are sorted by block, so that
+    * consecutive blocks of a file are written consecutively.
+    * A buffer that has been reassigned in the meantime
+    * is still written if it is dirty, which does no harm.
+    */
+   void writeDirtyVictims() {
+      SortedMap<Block,Buffer> dirty = new TreeMap<Block,Buffer>();
+      for (BasicBufferMgr stripe : stripes)
+         for (Buffer buff : stripe.dirtyVictims(target))
+            dirty.put(buff.block(), buff);
+      for (Buffer buff : dirty.values())
+         buff.flush();
+   }
+}
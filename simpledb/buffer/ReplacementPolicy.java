@@ -0,0 +1,60 @@
+package simpledb.buffer;
+
+import java.util.List;
+
+/**
+ * The strategy used by a basic buffer manager to decide
+ * which unpinned buffer to replace.
+ * The buffer manager tells the policy each time a buffer
+ * is pinned and each time its pin count drops to zero;
+ * the policy uses that information to choose a victim.
+ * A buffer becomes known to the policy the first time it is pinned.
+ * All methods are called while the buffer manager holds its lock.
+ * @author Edward Sciore
+ */
+interface ReplacementPolicy {
+   /**
+    * Records that the specified buffer has been pinned.
+    * @param buff the pinned buffer
+    * @param hit true if the buffer already held the requested block,
+    * false if the buffer was just assigned to it
+    */
+   void pinned(Buffer buff, boolean hit);
+   
+   /**
+    * Records that the specified buffer is no longer pinned.
+    * @param buff the unpinned buffer
+    */
+   void unpinned(Buffer buff);
+   
+   /**
+    * Chooses an unpinned buffer to be replaced.
+    * The chosen buffer is forgotten by the policy until
+    * it is pinned again.
+    * @return an unpinned buffer, or null if every known buffer is pinned
+    */
+   Buffer chooseVictim();
+   
+   /**
+    * Forgets the specified unpinned buffer, because the
+    * buffer manager is about to replace it without
+    * asking the policy to choose a victim.
+    * @param buff the buffer to be replaced
+    */
+   void remove(Buffer buff);
+   
+   /**
+    * Adjusts the policy to a new pool size.
+    * @param numbuffs the number of buffers in the pool
+    */
+   void resize(int numbuffs);
+   
+   /**
+    * Returns up to the specified number of unpinned buffers,
+    * in the order that they are likely to be chosen as victims.
+    * The state of the policy is not changed.
+    * @param count the maximum number of buffers to return
+    * @return the next victims
+    */
+   List<Buffer> nextVictims(int count);
+}
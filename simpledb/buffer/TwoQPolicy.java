@@ -0,0 +1,118 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The 2Q replacement policy.
+ * A block read for the first time enters the FIFO queue A1in.
+ * When it is replaced from there, its id is remembered in
+ * the ghost queue A1out.
+ * A block that is read again while its id is in A1out
+ * is considered hot, and enters the LRU queue Am.
+ * Victims are taken from A1in while it holds more than
+ * a quarter of the pool, and from Am otherwise.
+ * Thus blocks touched once by a scan never push hot blocks out of Am.
+ * @author Edward Sciore
+ */
+class TwoQPolicy implements ReplacementPolicy {
+   private int kin, kout;
+   private LinkedHashSet<Buffer> a1in = new LinkedHashSet<Buffer>();
+   private LinkedHashSet<Buffer> am = new LinkedHashSet<Buffer>();
+   private LinkedHashSet<Block> a1out = new LinkedHashSet<Block>();
+   
+   /**
+    * Creates a 2Q policy for a pool of the specified size.
+    * @param numbuffs the number of buffers in the pool
+    */
+   TwoQPolicy(int numbuffs) {
+      resize(numbuffs);
+   }
+   
+   public void pinned(Buffer buff, boolean hit) {
+      if (hit) {
+         // a hit in Am moves the buffer to the MRU end;
+         // a hit in A1in leaves it in place
+         if (am.remove(buff))
+            am.add(buff);
+      }
+      else if (a1out.remove(buff.block()))
+         am.add(buff);
+      else
+         a1in.add(buff);
+   }
+   
+   public void unpinned(Buffer buff) {}
+   
+   public Buffer chooseVictim() {
+      Buffer buff = null;
+      if (a1in.size() > kin)
+         buff = removeUnpinned(a1in);
+      if (buff == null)
+         buff = removeUnpinned(am);
+      if (buff == null)
+         buff = removeUnpinned(a1in);
+      return buff;
+   }
+   
+   /**
+    * Removes the buffer from its queue.
+    * The block is not remembered in A1out, since it
+    * was replaced early on purpose.
+    * @see simpledb.buffer.ReplacementPolicy#remove(simpledb.buffer.Buffer)
+    */
+   public void remove(Buffer buff) {
+      if (!a1in.remove(buff))
+         am.remove(buff);
+   }
+   
+   public void resize(int numbuffs) {
+      kin  = Math.max(1, numbuffs / 4);
+      kout = Math.max(1, numbuffs / 2);
+   }
+   
+   public List<Buffer> nextVictims(int count) {
+      List<Buffer> victims = new ArrayList<Buffer>(count);
+      if (a1in.size() > kin) {
+         addUnpinned(a1in, victims, count);
+         addUnpinned(am, victims, count);
+      }
+      else {
+         addUnpinned(am, victims, count);
+         addUnpinned(a1in, victims, count);
+      }
+      return victims;
+   }
+   
+   private void addUnpinned(LinkedHashSet<Buffer> queue, List<Buffer> victims, int count) {
+      for (Buffer buff : queue) {
+         if (victims.size() == count)
+            return;
+         if (!buff.isPinned())
+            victims.add(buff);
+      }
+   }
+   
+   private Buffer removeUnpinned(LinkedHashSet<Buffer> queue) {
+      Iterator<Buffer> iter = queue.iterator();
+      while (iter.hasNext()) {
+         Buffer buff = iter.next();
+         if (!buff.isPinned()) {
+            iter.remove();
+            if (queue == a1in)
+               remember(buff.block());
+            return buff;
+         }
+      }
+      return null;
+   }
+   
+   private void remember(Block blk) {
+      a1out.add(blk);
+      if (a1out.size() > kout) {
+         Iterator<Block> iter = a1out.iterator();
+         iter.next();
+         iter.remove();
+      }
+   }
+}
@@ -5,9 +5,11 @@ package simpledb.file;
  * A Block object consists of a filename and a block number.
  * It does not hold the contents of the block;
  * instead, that is the job of a {@link Page} object.
+ * Blocks are ordered by filename and then by block number,
+ * which is the order in which they are best written to disk.
  * @author Edward Sciore
  */
-public class Block {
+public class Block implements Comparable<Block> {
    private String filename;
    private int blknum;
    
@@ -39,15 +41,24 @@ public class Block {
    }
    
    public boolean equals(Object obj) {
+      if (!(obj instanceof Block))
+         return false;
       Block blk = (Block) obj;
       return filename.equals(blk.filename) && blknum == blk.blknum;
    }
    
+   public int compareTo(Block blk) {
+      int result = filename.compareTo(blk.filename);
+      if (result != 0)
+         return result;
+      return Integer.compare(blknum, blk.blknum);
+   }
+   
    public String toString() {
       return "[file " + filename + ", block " + blknum + "]";
    }
    
    public int hashCode() {
-      return toString().hashCode();
+      return 31 * filename.hashCode() + blknum;
    }
 }
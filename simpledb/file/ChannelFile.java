@@ -0,0 +1,62 @@
+package simpledb.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A data file that is accessed through a file channel.
+ * The file is opened in "rws" mode, so that each write
+ * reaches the disk before it returns.
+ * Each read and write is a positional system call,
+ * so reads and writes of different blocks can proceed in parallel.
+ * @author Edward Sciore
+ */
+class ChannelFile implements DataFile {
+   private FileChannel fc;
+   private int blocksize;
+   private AtomicInteger size;
+   
+   /**
+    * Opens the specified file, creating it if it does not exist.
+    * @param f the file
+    * @param blocksize the block size of the database
+    * @throws IOException
+    */
+   ChannelFile(File f, int blocksize) throws IOException {
+      this.blocksize = blocksize;
+      fc = new RandomAccessFile(f, "rws").getChannel();
+      size = new AtomicInteger((int) (fc.size() / blocksize));
+   }
+   
+   public void read(int blknum, ByteBuffer bb) throws IOException {
+      fc.read(bb, (long) blknum * blocksize);
+   }
+   
+   public void write(int blknum, ByteBuffer bb) throws IOException {
+      fc.write(bb, (long) blknum * blocksize);
+      size.accumulateAndGet(blknum + 1, Math::max);
+   }
+   
+   /**
+    * Writes the bytebuffers with a gathering write.
+    * The write uses the position of the channel,
+    * and so is synchronized.
+    */
+   public synchronized void write(int blknum, ByteBuffer[] bbs) throws IOException {
+      fc.position((long) blknum * blocksize);
+      ByteBuffer last = bbs[bbs.length-1];
+      while (last.hasRemaining())
+         fc.write(bbs);
+      size.accumulateAndGet(blknum + bbs.length, Math::max);
+   }
+   
+   public int size() {
+      return size.get();
+   }
+   
+   public void close() throws IOException {
+      fc.close();
+   }
+}
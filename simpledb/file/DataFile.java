@@ -0,0 +1,75 @@
+package simpledb.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An open data file of the database, which is read and
+ * written a block at a time.
+ * The file manager accesses each file through one of
+ * the implementations of this interface, according to the
+ * I/O mode of the database.
+ * <P>
+ * The methods of a data file may be called concurrently.
+ * Reads and writes of blocks within the file do not lock;
+ * the caller must serialize extensions of the file.
+ * @author Edward Sciore
+ */
+interface DataFile {
+   /**
+    * The I/O mode that accesses files through a file channel.
+    */
+   static final String CHANNEL = "channel";
+   
+   /**
+    * The I/O mode that accesses files through memory-mapped regions.
+    */
+   static final String MMAP = "mmap";
+   
+   /**
+    * Reads the specified block of the file into the bytebuffer.
+    * The bytebuffer is unchanged if the block lies
+    * beyond the end of the file.
+    * @param blknum the number of the block
+    * @param bb the bytebuffer, which has been cleared
+    * @throws IOException
+    */
+   void read(int blknum, ByteBuffer bb) throws IOException;
+   
+   /**
+    * Writes the contents of the bytebuffer to the specified
+    * block of the file, extending the file if necessary.
+    * The block is on disk when the method returns,
+    * and the size of the file then includes it.
+    * @param blknum the number of the block
+    * @param bb the bytebuffer, which has been rewound
+    * @throws IOException
+    */
+   void write(int blknum, ByteBuffer bb) throws IOException;
+   
+   /**
+    * Writes the contents of the bytebuffers to consecutive
+    * blocks of the file, starting with the specified block,
+    * in a single sequential write.
+    * The blocks are on disk when the method returns.
+    * @param blknum the number of the first block
+    * @param bbs the bytebuffers, which have been rewound
+    * @throws IOException
+    */
+   void write(int blknum, ByteBuffer[] bbs) throws IOException;
+   
+   /**
+    * Returns the number of blocks in the file.
+    * The size is kept in a counter, and so
+    * does not require a system call.
+    * @return the number of blocks in the file
+    */
+   int size();
+   
+   /**
+    * Closes the file.
+    * The data file must not be used afterwards.
+    * @throws IOException
+    */
+   void close() throws IOException;
+}
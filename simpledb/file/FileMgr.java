@@ -1,10 +1,9 @@
 package simpledb.file;
 
-import static simpledb.file.Page.BLOCK_SIZE;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The SimpleDB file manager.
@@ -15,16 +14,63 @@ import java.util.*;
  * and appending the contents of a byte buffer to the end of a file.
  * These methods are called exclusively by the class {@link simpledb.file.Page Page},
  * and are thus package-private.
- * The class also contains two public methods:
+ * Block reads and writes are not serialized: they run concurrently,
+ * on different files or on different blocks of the same file.
+ * Only opening a file and appending to it take a lock.
+ * The class also contains three public methods:
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * Method {@link #file(String) file} locates auxiliary files that are
+ * kept in the database directory but are not accessed by blocks,
+ * and method {@link #close(String) close} closes a file
+ * so that it can be removed.
+ * <P>
+ * The database directory contains a header file, which records
+ * the version of the database format and the block size
+ * of the database. The file manager checks the header when it
+ * opens the database, and sets {@link Page#BLOCK_SIZE} accordingly.
+ * The header also records the I/O mode of the database:
+ * in mode "channel" the files are read and written through
+ * file channels, and in mode "mmap" they are accessed
+ * through memory-mapped regions.
+ * <P>
+ * A database having files but no header was created before
+ * headers existed; its format is version 0, and its block size
+ * is {@link #OLD_BLOCK_SIZE}.
+ * Such a database, like one whose header records an earlier
+ * version, is opened read-only, so that it can be
+ * rewritten by {@link simpledb.server.Migrate}:
+ * its blocks can be read, through file channels, but not written.
  * @author Edward Sciore
  */
 public class FileMgr {
+   /**
+    * The name of the header file.
+    */
+   public static final String HEADER_FILE = "simpledb.hdr";
+   
+   /**
+    * The version of the database format written by this code.
+    * Version 2 reserves the end of each data page
+    * for its page LSN, and logs both old and new values;
+    * version 3 makes the page LSN a long byte offset into the log.
+    * Databases of earlier versions can only be read.
+    */
+   public static final int VERSION = 3;
+   
+   /**
+    * The block size of a database that was created
+    * before the header file existed.
+    */
+   public static final int OLD_BLOCK_SIZE = 400;
+   
    private File dbDirectory;
+   private int version;
+   private int blocksize;
+   private String iomode;
    private boolean isNew;
-   private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+   private Map<String,DataFile> openFiles = new ConcurrentHashMap<String,DataFile>();
 
    /**
     * Creates a file manager for the specified database.
@@ -33,9 +79,29 @@ public class FileMgr {
     * If the folder does not exist, then a folder containing
     * an empty database is created automatically.
     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+    * The block size of a new database is the specified one;
+    * the block size of an existing database is read from its header.
     * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size to use if the database is new
     */
-   public FileMgr(String dbname) {
+   public FileMgr(String dbname, int blocksize) {
+      this(dbname, blocksize, null);
+   }
+
+   /**
+    * Creates a file manager for the specified database,
+    * using the specified I/O mode.
+    * The mode is recorded in the header of the database.
+    * If the mode is null, an existing database keeps
+    * the mode recorded in its header, and a new database
+    * uses mode "channel".
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size to use if the database is new
+    * @param iomode the I/O mode ("channel" or "mmap"), or null
+    */
+   public FileMgr(String dbname, int blocksize, String iomode) {
+      if (iomode != null && !iomode.equals(DataFile.CHANNEL) && !iomode.equals(DataFile.MMAP))
+         throw new IllegalArgumentException("unknown I/O mode " + iomode);
       String homedir = System.getProperty("user.home");
       dbDirectory = new File(homedir, dbname);
       isNew = !dbDirectory.exists();
@@ -48,6 +114,13 @@ public class FileMgr {
       for (String filename : dbDirectory.list())
          if (filename.startsWith("temp"))
          new File(dbDirectory, filename).delete();
+      
+      checkHeader(blocksize, iomode);
+      Page.BLOCK_SIZE = this.blocksize;
+      if (version == VERSION)
+         Page.LSN_SIZE = Page.LONG_SIZE;
+      else
+         Page.LSN_SIZE = (version == 2) ? Page.INT_SIZE : 0;
    }
 
    /**
@@ -55,11 +128,10 @@ public class FileMgr {
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void read(Block blk, ByteBuffer bb) {
+   void read(Block blk, ByteBuffer bb) {
       try {
          bb.clear();
-         FileChannel fc = getFile(blk.fileName());
-         fc.read(bb, blk.number() * BLOCK_SIZE);
+         getFile(blk.fileName()).read(blk.number(), bb);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
@@ -71,11 +143,30 @@ public class FileMgr {
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void write(Block blk, ByteBuffer bb) {
+   void write(Block blk, ByteBuffer bb) {
+      checkWritable();
       try {
          bb.rewind();
-         FileChannel fc = getFile(blk.fileName());
-         fc.write(bb, blk.number() * BLOCK_SIZE);
+         getFile(blk.fileName()).write(blk.number(), bb);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write block" + blk);
+      }
+   }
+
+   /**
+    * Writes the contents of the bytebuffers into consecutive
+    * disk blocks, starting with the specified block,
+    * in a single sequential write.
+    * @param blk a reference to the first disk block
+    * @param bbs the bytebuffers
+    */
+   void write(Block blk, ByteBuffer[] bbs) {
+      checkWritable();
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.rewind();
+         getFile(blk.fileName()).write(blk.number(), bbs);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
@@ -85,15 +176,25 @@ public class FileMgr {
    /**
     * Appends the contents of a bytebuffer to the end
     * of the specified file.
+    * Appends to the same file are serialized by locking
+    * the data file; they do not block reads and writes.
     * @param filename the name of the file
     * @param bb  the bytebuffer
     * @return a reference to the newly-created block.
     */
-   synchronized Block append(String filename, ByteBuffer bb) {
-      int newblknum = size(filename);
-      Block blk = new Block(filename, newblknum);
-      write(blk, bb);
-      return blk;
+   Block append(String filename, ByteBuffer bb) {
+      checkWritable();
+      try {
+         DataFile df = getFile(filename);
+         synchronized (df) {
+            Block blk = new Block(filename, df.size());
+            write(blk, bb);
+            return blk;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + filename);
+      }
    }
 
    /**
@@ -101,16 +202,77 @@ public class FileMgr {
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
-   public synchronized int size(String filename) {
+   public int size(String filename) {
       try {
-         FileChannel fc = getFile(filename);
-         return (int)(fc.size() / BLOCK_SIZE);
+         return getFile(filename).size();
       }
       catch (IOException e) {
          throw new RuntimeException("cannot access " + filename);
       }
    }
 
+   /**
+    * Closes the specified file, if it is open.
+    * The file is reopened if it is accessed again.
+    * The caller must ensure that the file is not being
+    * read or written.
+    * @param filename the name of the file
+    */
+   public synchronized void close(String filename) {
+      DataFile df = openFiles.remove(filename);
+      if (df == null)
+         return;
+      try {
+         df.close();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot close " + filename);
+      }
+   }
+
+   /**
+    * Returns the specified file of the database directory.
+    * The file is not opened or created.
+    * @param filename the name of the file
+    * @return the file
+    */
+   public File file(String filename) {
+      return new File(dbDirectory, filename);
+   }
+
+   /**
+    * Returns the block size of the database.
+    * @return the number of bytes in a block
+    */
+   public int blockSize() {
+      return blocksize;
+   }
+
+   /**
+    * Returns the format version of the database.
+    * @return the version recorded in the header, or 0
+    */
+   public int version() {
+      return version;
+   }
+   
+   /**
+    * Returns true if the database has an earlier format version,
+    * so that its blocks can be read but not written.
+    * @return true if the database is read-only
+    */
+   public boolean isReadOnly() {
+      return version < VERSION;
+   }
+   
+   /**
+    * Returns the I/O mode of the database.
+    * @return "channel" or "mmap"
+    */
+   public String ioMode() {
+      return iomode;
+   }
+
    /**
     * Returns a boolean indicating whether the file manager
     * had to create a new database directory.
@@ -121,22 +283,111 @@ public class FileMgr {
    }
 
    /**
-    * Returns the file channel for the specified filename.
-    * The file channel is stored in a map keyed on the filename.
-    * If the file is not open, then it is opened and the file channel
-    * is added to the map.
+    * Reads the header of the database, writing it first
+    * if the database is new.
+    * A database having files but no header was created before
+    * headers existed, and is given version 0 without writing a header.
+    * The header is rewritten if the I/O mode is changed.
+    * @param newblocksize the block size to use if the database is new
+    * @param newiomode the I/O mode to use, or null
+    */
+   private void checkHeader(int newblocksize, String newiomode) {
+      File hdrfile = file(HEADER_FILE);
+      try {
+         Properties hdr = new Properties();
+         boolean changed = !hdrfile.exists();
+         if (hdrfile.exists()) {
+            InputStream in = new FileInputStream(hdrfile);
+            try {
+               hdr.load(in);
+            }
+            finally {
+               in.close();
+            }
+            version = Integer.parseInt(hdr.getProperty("version"));
+            if (version > VERSION)
+               throw new RuntimeException("database " + dbDirectory.getName()
+                     + " has format version " + version + "; expected " + VERSION + " or less");
+            blocksize = Integer.parseInt(hdr.getProperty("blocksize"));
+            iomode = hdr.getProperty("io", DataFile.CHANNEL);
+            if (isReadOnly()) {
+               iomode = DataFile.CHANNEL;
+               return;
+            }
+         }
+         else if (!isNew && dbDirectory.list().length > 0) {
+            version = 0;
+            blocksize = OLD_BLOCK_SIZE;
+            iomode = DataFile.CHANNEL;
+            return;
+         }
+         else {
+            version = VERSION;
+            blocksize = newblocksize;
+            iomode = DataFile.CHANNEL;
+            hdr.setProperty("version", Integer.toString(VERSION));
+            hdr.setProperty("blocksize", Integer.toString(blocksize));
+         }
+         if (newiomode != null && !newiomode.equals(iomode)) {
+            iomode = newiomode;
+            changed = true;
+         }
+         if (!changed)
+            return;
+         hdr.setProperty("io", iomode);
+         File tmpfile = file(HEADER_FILE + ".new");
+         FileOutputStream out = new FileOutputStream(tmpfile);
+         try {
+            hdr.store(out, "SimpleDB database header");
+            out.getFD().sync();
+         }
+         finally {
+            out.close();
+         }
+         if (!tmpfile.renameTo(hdrfile))
+            throw new IOException();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + hdrfile);
+      }
+      catch (NumberFormatException e) {
+         throw new RuntimeException("bad header in " + hdrfile);
+      }
+   }
+
+   private void checkWritable() {
+      if (isReadOnly())
+         throw new RuntimeException("database " + dbDirectory.getName()
+               + " has format version " + version + " and is read-only");
+   }
+   
+   /**
+    * Returns the data file for the specified filename.
+    * The data file is stored in a map keyed on the filename.
+    * If the file is not open, then it is opened according to the
+    * I/O mode of the database, and the data file is added to the map.
+    * Only the opening of a file is synchronized.
     * @param filename the specified filename
-    * @return the file channel associated with the open file.
+    * @return the data file associated with the open file.
     * @throws IOException
     */
-   private FileChannel getFile(String filename) throws IOException {
-      FileChannel fc = openFiles.get(filename);
-      if (fc == null) {
+   private DataFile getFile(String filename) throws IOException {
+      DataFile df = openFiles.get(filename);
+      if (df == null)
+         df = openFile(filename);
+      return df;
+   }
+
+   private synchronized DataFile openFile(String filename) throws IOException {
+      DataFile df = openFiles.get(filename);
+      if (df == null) {
          File dbTable = new File(dbDirectory, filename);
-         RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-         fc = f.getChannel();
-         openFiles.put(filename, fc);
+         if (iomode.equals(DataFile.MMAP))
+            df = new MappedFile(dbTable, blocksize);
+         else
+            df = new ChannelFile(dbTable, blocksize);
+         openFiles.put(filename, df);
       }
-      return fc;
+      return df;
    }
 }
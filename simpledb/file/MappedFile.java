@@ -0,0 +1,173 @@
+package simpledb.file;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A data file that is accessed through memory-mapped regions.
+ * The file is divided into regions of a fixed number of blocks,
+ * each of which is mapped the first time one of its blocks is accessed.
+ * Reading a block copies it from the mapping into the page,
+ * with no system call;
+ * the copy is still needed, because the buffer manager must
+ * control when a modified page reaches the disk.
+ * <P>
+ * A mapping never extends past the end of the file.
+ * A write that extends the file goes through the file channel,
+ * and the mapping of the last region is then remapped
+ * when it is next needed.
+ * A write within the file goes into the mapping, and the
+ * modified block is forced to disk before the method returns.
+ * <P>
+ * The mappings are kept in an array that is replaced whenever a
+ * region is mapped, so that reads and writes of mapped blocks
+ * do not lock; only mapping a region does.
+ * @author Edward Sciore
+ */
+class MappedFile implements DataFile {
+   /**
+    * The size of a mapped region, in bytes
+    * (rounded down to a multiple of the block size).
+    */
+   static final int REGION_SIZE = 64 * 1024 * 1024;
+   
+   private FileChannel fc;
+   private int blocksize;
+   private int blocksPerRegion;
+   private AtomicInteger size;
+   private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+   
+   /**
+    * Opens the specified file, creating it if it does not exist.
+    * @param f the file
+    * @param blocksize the block size of the database
+    * @throws IOException
+    */
+   MappedFile(File f, int blocksize) throws IOException {
+      this.blocksize = blocksize;
+      blocksPerRegion = Math.max(1, REGION_SIZE / blocksize);
+      fc = new RandomAccessFile(f, "rw").getChannel();
+      size = new AtomicInteger((int) (fc.size() / blocksize));
+   }
+   
+   public void read(int blknum, ByteBuffer bb) throws IOException {
+      if (blknum >= size.get())
+         return;
+      ByteBuffer src = region(blknum).duplicate();
+      int offset = offset(blknum);
+      src.limit(offset + blocksize).position(offset);
+      bb.put(src);
+   }
+   
+   public void write(int blknum, ByteBuffer bb) throws IOException {
+      if (blknum >= size.get()) {
+         fc.write(bb, (long) blknum * blocksize);
+         fc.force(false);
+         size.accumulateAndGet(blknum + 1, Math::max);
+         return;
+      }
+      MappedByteBuffer region = region(blknum);
+      ByteBuffer dst = region.duplicate();
+      int offset = offset(blknum);
+      dst.position(offset);
+      dst.put(bb);
+      region.force(offset, blocksize);
+   }
+   
+   /**
+    * Writes the bytebuffers with a gathering write on the
+    * file channel if they extend the file, and otherwise
+    * copies them into the mappings and forces each region once.
+    */
+   public void write(int blknum, ByteBuffer[] bbs) throws IOException {
+      if (blknum + bbs.length > size.get()) {
+         synchronized (this) {
+            fc.position((long) blknum * blocksize);
+            ByteBuffer last = bbs[bbs.length-1];
+            while (last.hasRemaining())
+               fc.write(bbs);
+            fc.force(false);
+         }
+         size.accumulateAndGet(blknum + bbs.length, Math::max);
+         return;
+      }
+      MappedByteBuffer region = null;
+      int start = 0, end = 0;
+      for (int i=0; i<bbs.length; i++) {
+         MappedByteBuffer r = region(blknum + i);
+         int offset = offset(blknum + i);
+         if (r != region) {
+            if (region != null)
+               region.force(start, end - start);
+            region = r;
+            start = offset;
+         }
+         ByteBuffer dst = r.duplicate();
+         dst.position(offset);
+         dst.put(bbs[i]);
+         end = offset + blocksize;
+      }
+      region.force(start, end - start);
+   }
+   
+   public int size() {
+      return size.get();
+   }
+   
+   /**
+    * Closes the file channel.
+    * The mappings are released when they are garbage-collected.
+    */
+   public synchronized void close() throws IOException {
+      regions = new MappedByteBuffer[0];
+      fc.close();
+   }
+   
+   /**
+    * Returns the mapping of the region containing the
+    * specified block, which must lie within the file.
+    * The region is mapped (or remapped, if the file has grown
+    * past its previous mapping) as needed.
+    * @param blknum the number of the block
+    * @return the mapping of its region
+    * @throws IOException
+    */
+   private MappedByteBuffer region(int blknum) throws IOException {
+      int index = blknum / blocksPerRegion;
+      MappedByteBuffer[] rs = regions;
+      if (index < rs.length && rs[index] != null
+            && rs[index].capacity() >= offset(blknum) + blocksize)
+         return rs[index];
+      return remap(index, blknum);
+   }
+   
+   /**
+    * Maps the specified region, up to the current end of the file,
+    * unless another thread has already mapped the needed block.
+    * @param index the index of the region
+    * @param blknum the block that is needed
+    * @return the mapping of the region
+    * @throws IOException
+    */
+   private synchronized MappedByteBuffer remap(int index, int blknum) throws IOException {
+      MappedByteBuffer[] rs = regions;
+      if (index < rs.length && rs[index] != null
+            && rs[index].capacity() >= offset(blknum) + blocksize)
+         return rs[index];
+      long start = (long) index * blocksPerRegion * blocksize;
+      long length = (long) size.get() * blocksize;
+      long regionsize = Math.min((long) blocksPerRegion * blocksize, length - start);
+      MappedByteBuffer region = fc.map(FileChannel.MapMode.READ_WRITE, start, regionsize);
+      rs = Arrays.copyOf(rs, Math.max(rs.length, index + 1));
+      rs[index] = region;
+      regions = rs;
+      return region;
+   }
+   
+   private int offset(int blknum) {
+      return (blknum % blocksPerRegion) * blocksize;
+   }
+}
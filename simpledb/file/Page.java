@@ -2,7 +2,8 @@ package simpledb.file;
 
 import simpledb.server.SimpleDB;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
 
 /**
  * The contents of a disk block in memory.
@@ -38,11 +39,13 @@ import java.nio.charset.Charset;
 public class Page {
    /**
     * The number of bytes in a block.
-    * This value is set unreasonably low, so that it is easier
-    * to create and test databases having a lot of blocks.
-    * A more realistic value would be 4K.
+    * The block size is a property of the database:
+    * it is chosen when the database is created, and is set
+    * by the {@link FileMgr} from the database header.
+    * Every page in the system has this size, so the value
+    * must not change while pages exist.
     */
-   public static final int BLOCK_SIZE = 400;
+   public static int BLOCK_SIZE = FileMgr.OLD_BLOCK_SIZE;
    
    /**
     * The size of an integer in bytes.
@@ -51,6 +54,11 @@ public class Page {
     */
    public static final int INT_SIZE = Integer.SIZE / Byte.SIZE;
    
+   /**
+    * The size of a long integer in bytes.
+    */
+   public static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+   
    /**
     * The maximum size, in bytes, of a string of length n.
     * A string is represented as the encoding of its characters,
@@ -62,8 +70,33 @@ public class Page {
     * @return the maximum number of bytes required to store a string of size n
     */
    public static final int STR_SIZE(int n) {
-      float bytesPerChar = Charset.defaultCharset().newEncoder().maxBytesPerChar();
-      return INT_SIZE + (n * (int)bytesPerChar);
+      return INT_SIZE + (n * BYTES_PER_CHAR);
+   }
+   
+   // the maximum number of bytes in the encoding of a character,
+   // which is computed once, because STR_SIZE is called for each string logged
+   private static final int BYTES_PER_CHAR =
+         (int) Charset.defaultCharset().newEncoder().maxBytesPerChar();
+   
+   /**
+    * The number of bytes at the end of each data page that
+    * hold its page LSN.
+    * It is set by the {@link FileMgr}: a long integer,
+    * an integer in a database of version 2, or nothing in
+    * a database of version 0 or 1; those databases are read-only.
+    */
+   public static int LSN_SIZE = LONG_SIZE;
+   
+   /**
+    * The number of bytes of a data page that are available
+    * for records.
+    * The last long integer of each data page is reserved for the
+    * page LSN, which is written by the buffer manager;
+    * the pages of the log file do not have a page LSN.
+    * @return the number of usable bytes in a data page
+    */
+   public static final int DATA_SIZE() {
+      return BLOCK_SIZE - LSN_SIZE;
    }
    
    private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
@@ -99,6 +132,37 @@ public class Page {
       filemgr.write(blk, contents);
    }
    
+   /**
+    * Replaces the contents of the page with
+    * the contents of the specified page.
+    * @param p the page to copy
+    */
+   public synchronized void copyFrom(Page p) {
+      p.copyTo(contents);
+   }
+   
+   private synchronized void copyTo(ByteBuffer dest) {
+      contents.clear();
+      dest.clear();
+      dest.put(contents);
+   }
+   
+   /**
+    * Writes the contents of the specified pages to consecutive
+    * disk blocks, starting with the specified block,
+    * in a single write.
+    * The caller must ensure that the pages do not change
+    * during the write.
+    * @param blk a reference to the first disk block
+    * @param pages the pages to be written
+    */
+   public static void write(Block blk, Page[] pages) {
+      ByteBuffer[] bbs = new ByteBuffer[pages.length];
+      for (int i=0; i<pages.length; i++)
+         bbs[i] = pages[i].contents;
+      pages[0].filemgr.write(blk, bbs);
+   }
+   
    /**
     * Appends the contents of the page to the specified file.
     * @param filename the name of the file
@@ -130,6 +194,28 @@ public class Page {
       contents.putInt(val);
    }
    
+   /**
+    * Returns the long integer value at a specified offset of the page.
+    * If a long integer was not stored at that location, 
+    * the behavior of the method is unpredictable.
+    * @param offset the byte offset within the page
+    * @return the long integer value at that offset
+    */
+   public synchronized long getLong(int offset) {
+      contents.position(offset);
+      return contents.getLong();
+   }
+   
+   /**
+    * Writes a long integer to the specified offset on the page.
+    * @param offset the byte offset within the page
+    * @param val the long integer to be written to the page
+    */
+   public synchronized void setLong(int offset, long val) {
+      contents.position(offset);
+      contents.putLong(val);
+   }
+   
    /**
     * Returns the string value at the specified offset of the page.
     * If a string was not stored at that location,
@@ -156,4 +242,48 @@ public class Page {
       contents.putInt(byteval.length);
       contents.put(byteval);
    }
+   
+   /**
+    * Writes the specified characters to the specified offset on the page,
+    * in the same form as {@link #setString(int, String)}.
+    * The characters are encoded directly into the page
+    * with the specified encoder, so that no bytes are allocated,
+    * and the number of bytes is then written before them.
+    * @param offset the byte offset within the page
+    * @param chars the characters of the string, ready to be read
+    * @param encoder an encoder for the default charset
+    */
+   public synchronized void setString(int offset, CharBuffer chars, CharsetEncoder encoder) {
+      contents.position(offset + INT_SIZE);
+      encoder.reset();
+      CoderResult result = encoder.encode(chars, contents, true);
+      if (!result.isUnderflow() || !encoder.flush(contents).isUnderflow())
+         throw new RuntimeException("string does not fit in the page at offset " + offset);
+      contents.putInt(offset, contents.position() - offset - INT_SIZE);
+   }
+   
+   /**
+    * Returns the specified number of bytes,
+    * beginning at the specified offset of the page.
+    * @param offset the byte offset within the page
+    * @param n the number of bytes
+    * @return the bytes at that offset
+    */
+   public synchronized byte[] getBytes(int offset, int n) {
+      contents.position(offset);
+      byte[] byteval = new byte[n];
+      contents.get(byteval);
+      return byteval;
+   }
+   
+   /**
+    * Writes the specified bytes to the specified offset on the page.
+    * Unlike a string, the bytes are not preceded by their number.
+    * @param offset the byte offset within the page
+    * @param val the bytes to be written to the page
+    */
+   public synchronized void setBytes(int offset, byte[] val) {
+      contents.position(offset);
+      contents.put(val);
+   }
 }
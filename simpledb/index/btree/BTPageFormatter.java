@@ -32,14 +32,16 @@ public class BTPageFormatter implements PageFormatter {
     * Each integer field is given a value of 0, and
     * each string field is given a value of "".
     * The location that indicates the number of records
-    * in the page is also set to 0.
+    * in the page is also set to 0, and the page
+    * is given no right sibling.
     * @see simpledb.buffer.PageFormatter#format(simpledb.file.Page)
     */
    public void format(Page page) {
       page.setInt(0, flag);
       page.setInt(INT_SIZE, 0);  // #records = 0
+      page.setInt(2*INT_SIZE, -1);  // no right sibling
       int recsize = ti.recordLength();
-      for (int pos=2*INT_SIZE; pos+recsize<=BLOCK_SIZE; pos += recsize)
+      for (int pos=3*INT_SIZE; pos+recsize<=DATA_SIZE(); pos += recsize)
          makeDefaultRecord(page, pos);
    }
    
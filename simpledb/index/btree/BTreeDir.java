@@ -4,9 +4,14 @@ import simpledb.file.Block;
 import simpledb.tx.Transaction;
 import simpledb.record.TableInfo;
 import simpledb.query.Constant;
+import java.util.List;
 
 /**
  * A B-tree directory block.
+ * A search latches one directory page at a time, and moves
+ * to the right sibling of a page whose high key it has passed.
+ * An insertion exclusively latches the page it modifies,
+ * and keeps the latch until its action commits.
  * @author Edward Sciore
  */
 public class BTreeDir {
@@ -20,7 +25,7 @@ public class BTreeDir {
     * B-tree block.
     * @param blk a reference to the specified B-tree block
     * @param ti the metadata of the B-tree directory file
-    * @param tx the calling transaction
+    * @param tx the calling action
     */
    BTreeDir(Block blk, TableInfo ti, Transaction tx) {
       this.ti = ti;
@@ -39,59 +44,73 @@ public class BTreeDir {
    /**
     * Returns the block number of the B-tree leaf block
     * that contains the specified search key.
+    * The block numbers of the directory pages that the search
+    * passes through are added to the specified list,
+    * from the root down.
     * @param searchkey the search key value
+    * @param path the list of the directory blocks searched
     * @return the block number of the leaf block containing that search key
     */
-   public int search(Constant searchkey) {
-      Block childblk = findChildBlock(searchkey);
-      while (contents.getFlag() > 0) {
-         contents.close();
-         contents = new BTreePage(childblk, ti, tx);
-         childblk = findChildBlock(searchkey);
+   public int search(Constant searchkey, List<Integer> path) {
+      contents.latch(false);
+      while (true) {
+         moveRight(searchkey, false);
+         path.add(contents.block().number());
+         Block childblk = findChildBlock(searchkey);
+         if (contents.getFlag() == 0) {
+            contents.unlatch();
+            return childblk.number();
+         }
+         moveTo(childblk, false);
       }
-      return childblk.number();
    }
 
    /**
-    * Creates a new root block for the B-tree.
-    * The new root will have two children:
-    * the old root, and the specified block.
-    * Since the root must always be in block 0 of the file,
-    * the contents of the old root will get transferred to a new block.
-    * @param e the directory entry to be added as a child of the new root
+    * Inserts a new directory entry into the page at the
+    * specified level that should contain it.
+    * That page is this one, or one to its right,
+    * unless this page is the root and the tree has
+    * grown since it was searched; in that case,
+    * the method searches down from the root.
+    * If the page splits, then the method returns
+    * the entry of the new page, which is to be inserted into
+    * the level above; otherwise, the method returns null.
+    * The page is latched exclusively until the action commits.
+    * @param e the directory entry to be inserted
+    * @param level the level of the page to be inserted into
+    * @return the directory entry of the newly-split block, if one exists; otherwise, null
     */
-   public void makeNewRoot(DirEntry e) {
-      Constant firstval = contents.getDataVal(0);
-      int level = contents.getFlag();
-      Block newblk = contents.split(0, level); //ie, transfer all the records
-      DirEntry oldroot = new DirEntry(firstval, newblk.number());
-      insertEntry(oldroot);
-      insertEntry(e);
-      contents.setFlag(level+1);
+   public DirEntry insert(DirEntry e, int level) {
+      Constant key = e.dataVal();
+      contents.latch(true);
+      if (contents.getFlag() != level) {
+         moveTo(new Block(filename, 0), false);
+         while (contents.getFlag() > level) {
+            moveRight(key, false);
+            moveTo(findChildBlock(key), false);
+         }
+         moveTo(contents.block(), true);
+      }
+      moveRight(key, true);
+      return insertEntry(e);
    }
 
    /**
-    * Inserts a new directory entry into the B-tree block.
-    * If the block is at level 0, then the entry is inserted there.
-    * Otherwise, the entry is inserted into the appropriate
-    * child node, and the return value is examined.
-    * A non-null return value indicates that the child node
-    * split, and so the returned entry is inserted into
-    * this block.
-    * If this block splits, then the method similarly returns
-    * the entry information of the new block to its caller;
-    * otherwise, the method returns null.
-    * @param e the directory entry to be inserted
-    * @return the directory entry of the newly-split block, if one exists; otherwise, null
+    * Gives the root a new level.
+    * Since the root must always be in block 0 of the file,
+    * the records of the full root are split between two new blocks,
+    * which become the only children of the root.
     */
-   public DirEntry insert(DirEntry e) {
-      if (contents.getFlag() == 0)
-         return insertEntry(e);
-      Block childblk = findChildBlock(e.dataVal());
-      BTreeDir child = new BTreeDir(childblk, ti, tx);
-      DirEntry myentry = child.insert(e);
-      child.close();
-      return (myentry != null) ? insertEntry(myentry) : null;
+   private void makeNewRoot(int splitpos) {
+      Constant firstval = contents.getDataVal(0);
+      Constant splitval = contents.getDataVal(splitpos);
+      int level = contents.getFlag();
+      Block rightblk = contents.split(splitpos, level);
+      Block leftblk = contents.split(0, level); //ie, transfer the remaining records
+      contents.setRightLink(-1);
+      contents.insertDir(0, firstval, leftblk.number());
+      contents.insertDir(1, splitval, rightblk.number());
+      contents.setFlag(level+1);
    }
 
    private DirEntry insertEntry(DirEntry e) {
@@ -103,13 +122,29 @@ public class BTreeDir {
       int level = contents.getFlag();
       int splitpos = contents.getNumRecs() / 2;
       Constant splitval = contents.getDataVal(splitpos);
+      if (contents.block().number() == 0) {
+         makeNewRoot(splitpos);
+         return null;
+      }
       Block newblk = contents.split(splitpos, level);
       return new DirEntry(splitval, newblk.number());
    }
 
+   private void moveRight(Constant searchkey, boolean exclusive) {
+      while (contents.isPastHighKey(searchkey))
+         moveTo(new Block(filename, contents.getRightLink()), exclusive);
+   }
+
+   private void moveTo(Block blk, boolean exclusive) {
+      contents.unlatch();
+      contents.close();
+      contents = new BTreePage(blk, ti, tx);
+      contents.latch(exclusive);
+   }
+
    private Block findChildBlock(Constant searchkey) {
       int slot = contents.findSlotBefore(searchkey);
-      if (contents.getDataVal(slot+1).equals(searchkey))
+      if (slot+1 < contents.getNumRecs() && contents.getDataVal(slot+1).equals(searchkey))
          slot++;
       int blknum = contents.getChildNum(slot);
       return new Block(filename, blknum);
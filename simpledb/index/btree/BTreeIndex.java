@@ -6,16 +6,34 @@ import simpledb.tx.Transaction;
 import simpledb.record.*;
 import simpledb.query.*;
 import simpledb.index.Index;
+import java.util.*;
 
 /**
  * A B-tree implementation of the Index interface.
+ * <P>
+ * The B-tree is a B-link tree: each page is linked to its
+ * right sibling, so that a search never needs more than
+ * one latch at a time (see {@link BTreePage}).
+ * The pages are read and modified by actions, which latch the pages
+ * instead of locking them, and which commit as soon as they are done
+ * (see {@link simpledb.tx.Transaction#beginAction()}).
+ * A leaf split and the insertion of the new leaf's entry into
+ * the directory are separate actions, as is each split above them.
+ * <P>
+ * The transaction itself locks the keys that it searches for,
+ * inserts, and deletes, and writes a logical log record for each
+ * index record that it inserts or deletes, so that a rollback
+ * deletes or reinserts the index record wherever it is by then.
  * @author Edward Sciore
  */
 public class BTreeIndex implements Index {
    private Transaction tx;
+   private String idxname;
+   private Schema leafsch;
    private TableInfo dirTi, leafTi;
-   private BTreeLeaf leaf = null;
    private Block rootblk;
+   private List<RID> rids = null;
+   private int currentrid;
 
    /**
     * Opens a B-tree index for the specified index.
@@ -28,6 +46,8 @@ public class BTreeIndex implements Index {
     */
    public BTreeIndex(String idxname, Schema leafsch, Transaction tx) {
       this.tx = tx;
+      this.idxname = idxname;
+      this.leafsch = leafsch;
       // deal with the leaves
       String leaftbl = idxname + "leaf";
       leafTi = new TableInfo(leaftbl, leafsch);
@@ -44,35 +64,41 @@ public class BTreeIndex implements Index {
       if (tx.size(dirTi.fileName()) == 0)
          // create new root block
          tx.append(dirTi.fileName(), new BTPageFormatter(dirTi, 0));
-      BTreePage page = new BTreePage(rootblk, dirTi, tx);
-      if (page.getNumRecs() == 0) {
-			// insert initial directory entry
-         int fldtype = dirsch.type("dataval");
-         Constant minval = (fldtype == INTEGER) ?
-            new IntConstant(Integer.MIN_VALUE) :
-            new StringConstant("");
-         page.insertDir(0, minval, 0);
-		}
-      page.close();
+      Transaction action = tx.beginAction();
+      try {
+         BTreePage page = new BTreePage(rootblk, dirTi, action);
+         if (page.getNumRecs() == 0 && !tx.isReadOnly()) {
+            page.latch(true);
+            if (page.getNumRecs() == 0) {
+               // insert initial directory entry
+               int fldtype = dirsch.type("dataval");
+               Constant minval = (fldtype == INTEGER) ?
+                  new IntConstant(Integer.MIN_VALUE) :
+                  new StringConstant("");
+               page.insertDir(0, minval, 0);
+            }
+         }
+         page.close();
+         action.commit();
+      }
+      catch (RuntimeException e) {
+         action.rollback();
+         throw e;
+      }
    }
 
    /**
-    * Traverses the directory to find the leaf block corresponding
-    * to the specified search key.
-    * The method then opens a page for that leaf block, and
-    * positions the page before the first record (if any)
-    * having that search key.
-    * The leaf page is kept open, for use by the methods next
-    * and getDataRid.
+    * Locks the specified search key, and then finds
+    * the dataRIDs of the leaf records having that search key.
+    * The leaf pages are not kept latched; the methods next
+    * and getDataRid iterate through the dataRIDs found.
     * @see simpledb.index.Index#beforeFirst(simpledb.query.Constant)
     */
    public void beforeFirst(Constant searchkey) {
       close();
-      BTreeDir root = new BTreeDir(rootblk, dirTi, tx);
-      int blknum = root.search(searchkey);
-      root.close();
-      Block leafblk = new Block(leafTi.fileName(), blknum);
-      leaf = new BTreeLeaf(leafblk, leafTi, searchkey, tx);
+      tx.sLockKey(leafTi.fileName(), searchkey);
+      rids = find(searchkey);
+      currentrid = -1;
    }
 
    /**
@@ -82,7 +108,8 @@ public class BTreeIndex implements Index {
     * @see simpledb.index.Index#next()
     */
    public boolean next() {
-      return leaf.next();
+      currentrid++;
+      return currentrid < rids.size();
    }
 
    /**
@@ -90,54 +117,157 @@ public class BTreeIndex implements Index {
     * @see simpledb.index.Index#getDataRid()
     */
    public RID getDataRid() {
-      return leaf.getDataRid();
+      return rids.get(currentrid);
    }
 
    /**
     * Inserts the specified record into the index.
-    * The method first traverses the directory to find
-    * the appropriate leaf page; then it inserts
+    * The method locks the key and logs the insertion;
+    * then it traverses the directory to find
+    * the appropriate leaf page, and inserts
     * the record into the leaf.
     * If the insertion causes the leaf to split, then
-    * the method calls insert on the root,
-    * passing it the directory entry of the new leaf page.
-    * If the root node splits, then makeNewRoot is called.
+    * the directory entry of the new leaf page is inserted
+    * into the directory page above it, and so on up.
     * @see simpledb.index.Index#insert(simpledb.query.Constant, simpledb.record.RID)
     */
    public void insert(Constant dataval, RID datarid) {
-      beforeFirst(dataval);
-      DirEntry e = leaf.insert(datarid);
-      leaf.close();
-      if (e == null)
-         return;
-      BTreeDir root = new BTreeDir(rootblk, dirTi, tx);
-      DirEntry e2 = root.insert(e);
-      if (e2 != null)
-         root.makeNewRoot(e2);
-      root.close();
+      tx.ixLockKey(leafTi.fileName(), dataval);
+      tx.logIndexInsert(idxname, leafsch, dataval, datarid);
+      insertEntry(dataval, datarid);
    }
 
    /**
     * Deletes the specified index record.
-    * The method first traverses the directory to find
-    * the leaf page containing that record; then it
+    * The method locks the key and logs the deletion;
+    * then it traverses the directory to find
+    * the leaf page containing that record, and
     * deletes the record from the page.
     * @see simpledb.index.Index#delete(simpledb.query.Constant, simpledb.record.RID)
     */
    public void delete(Constant dataval, RID datarid) {
-      beforeFirst(dataval);
-      leaf.delete(datarid);
-      leaf.close();
+      tx.ixLockKey(leafTi.fileName(), dataval);
+      tx.logIndexDelete(idxname, leafsch, dataval, datarid);
+      deleteEntry(dataval, datarid);
    }
 
    /**
-    * Closes the index by closing its open leaf page,
-    * if necessary.
+    * Undoes the insertion of the specified index record,
+    * by deleting it if it exists.
+    * This method is called during rollback and recovery,
+    * and neither locks nor logs.
+    * @param dataval the dataval of the index record
+    * @param datarid the dataRID of the index record
+    */
+   public void undoInsert(Constant dataval, RID datarid) {
+      deleteEntry(dataval, datarid);
+   }
+
+   /**
+    * Undoes the deletion of the specified index record,
+    * by inserting it if it does not exist.
+    * This method is called during rollback and recovery,
+    * and neither locks nor logs.
+    * @param dataval the dataval of the index record
+    * @param datarid the dataRID of the index record
+    */
+   public void undoDelete(Constant dataval, RID datarid) {
+      if (!find(dataval).contains(datarid))
+         insertEntry(dataval, datarid);
+   }
+
+   /**
+    * Closes the index.
     * @see simpledb.index.Index#close()
     */
    public void close() {
-      if (leaf != null)
+      rids = null;
+   }
+
+   /**
+    * Returns the dataRIDs of the leaf records having
+    * the specified search key, as read by an action.
+    */
+   private List<RID> find(Constant searchkey) {
+      List<RID> result = new ArrayList<RID>();
+      Transaction action = tx.beginAction();
+      try {
+         BTreeDir root = new BTreeDir(rootblk, dirTi, action);
+         int blknum = root.search(searchkey, new ArrayList<Integer>());
+         root.close();
+         Block leafblk = new Block(leafTi.fileName(), blknum);
+         BTreeLeaf leaf = new BTreeLeaf(leafblk, leafTi, searchkey, action, false);
+         while (leaf.next())
+            result.add(leaf.getDataRid());
+         leaf.close();
+         action.commit();
+      }
+      catch (RuntimeException e) {
+         action.rollback();
+         throw e;
+      }
+      return result;
+   }
+
+   /**
+    * Inserts the index record into its leaf in one action,
+    * and then the entries of the split pages into the
+    * directory, one level per action.
+    */
+   private void insertEntry(Constant dataval, RID datarid) {
+      List<Integer> path = new ArrayList<Integer>();
+      DirEntry e;
+      Transaction action = tx.beginAction();
+      try {
+         BTreeDir root = new BTreeDir(rootblk, dirTi, action);
+         int blknum = root.search(dataval, path);
+         root.close();
+         Block leafblk = new Block(leafTi.fileName(), blknum);
+         BTreeLeaf leaf = new BTreeLeaf(leafblk, leafTi, dataval, action, true);
+         e = leaf.insert(datarid);
+         leaf.close();
+         action.commit();
+      }
+      catch (RuntimeException ex) {
+         action.rollback();
+         throw ex;
+      }
+      for (int level=0; e != null; level++) {
+         // the root is searched from if the tree has grown past the path
+         int blknum = path.isEmpty() ? rootblk.number() : path.remove(path.size()-1);
+         action = tx.beginAction();
+         try {
+            BTreeDir dir = new BTreeDir(new Block(dirTi.fileName(), blknum), dirTi, action);
+            e = dir.insert(e, level);
+            dir.close();
+            action.commit();
+         }
+         catch (RuntimeException ex) {
+            action.rollback();
+            throw ex;
+         }
+      }
+   }
+
+   /**
+    * Deletes the index record from its leaf in one action.
+    */
+   private void deleteEntry(Constant dataval, RID datarid) {
+      Transaction action = tx.beginAction();
+      try {
+         BTreeDir root = new BTreeDir(rootblk, dirTi, action);
+         int blknum = root.search(dataval, new ArrayList<Integer>());
+         root.close();
+         Block leafblk = new Block(leafTi.fileName(), blknum);
+         BTreeLeaf leaf = new BTreeLeaf(leafblk, leafTi, dataval, action, true);
+         leaf.delete(datarid);
          leaf.close();
+         action.commit();
+      }
+      catch (RuntimeException e) {
+         action.rollback();
+         throw e;
+      }
    }
 
    /**
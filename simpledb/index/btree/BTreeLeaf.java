@@ -7,6 +7,8 @@ import simpledb.query.Constant;
 
 /**
  * An object that holds the contents of a B-tree leaf block.
+ * The leaf is latched while it is open, and so are its
+ * overflow blocks, which can be reached only through it.
  * @author Edward Sciore
  */
 public class BTreeLeaf {
@@ -18,18 +20,30 @@ public class BTreeLeaf {
    
    /**
     * Opens a page to hold the specified leaf block.
+    * If the leaf has split since its block was found,
+    * the method moves right to the leaf that holds the search key.
     * The page is positioned immediately before the first record
     * having the specified search key (if any).
+    * The page stays latched until the calling action commits.
     * @param blk a reference to the disk block
     * @param ti the metadata of the B-tree leaf file
     * @param searchkey the search key value
-    * @param tx the calling transaction
+    * @param tx the calling action
+    * @param exclusive true if the leaf is to be modified
     */
-   public BTreeLeaf(Block blk, TableInfo ti, Constant searchkey, Transaction tx) {
+   public BTreeLeaf(Block blk, TableInfo ti, Constant searchkey, Transaction tx, boolean exclusive) {
       this.ti = ti;
       this.tx = tx;
       this.searchkey = searchkey;
       contents = new BTreePage(blk, ti, tx);
+      contents.latch(exclusive);
+      while (contents.isPastHighKey(searchkey)) {
+         Block nextblk = new Block(ti.fileName(), contents.getRightLink());
+         contents.unlatch();
+         contents.close();
+         contents = new BTreePage(nextblk, ti, tx);
+         contents.latch(exclusive);
+      }
       currentslot = contents.findSlotBefore(searchkey);
    }
    
@@ -112,8 +126,7 @@ public class BTreeLeaf {
       Constant lastkey  = contents.getDataVal(contents.getNumRecs()-1);
       if (lastkey.equals(firstkey)) {
          // create an overflow block to hold all but the first record
-         Block newblk = contents.split(1, contents.getFlag());
-         contents.setFlag(newblk.number());
+         contents.overflow(1);
          return null;
       }
       else {
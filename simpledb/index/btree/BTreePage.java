@@ -12,6 +12,17 @@ import simpledb.tx.Transaction;
  * in particular, their records are stored in sorted order, 
  * and pages split when full.
  * A BTreePage object contains this common functionality.
+ * <P>
+ * A page begins with its flag, its number of records,
+ * and the block number of its right sibling (or -1 if it
+ * has none). Then comes the page's high key, which is stored
+ * in an extra slot before the records: every record of the page
+ * has a smaller key, and every record of its right sibling has
+ * a key that is at least as large.
+ * Because a page that splits is linked to its new sibling,
+ * a search that reaches the page after the split (but before
+ * the parent page knows about it) can still find its key
+ * by moving right.
  * @author Edward Sciore
  */
 public class BTreePage {
@@ -48,8 +59,37 @@ public class BTreePage {
       return slot-1;
    }
    
+   /**
+    * Latches the page, shared or exclusively.
+    * The latch is released by {@link #unlatch()}, or
+    * when the calling action commits.
+    * @param exclusive true for an exclusive latch
+    */
+   public void latch(boolean exclusive) {
+      if (exclusive)
+         tx.xLatch(currentblk);
+      else
+         tx.sLatch(currentblk);
+   }
+   
+   /**
+    * Releases the latch on the page.
+    */
+   public void unlatch() {
+      tx.unlatch(currentblk);
+   }
+   
+   /**
+    * Returns the block of the page.
+    * @return a reference to the B-tree block
+    */
+   public Block block() {
+      return currentblk;
+   }
+   
    /**
     * Closes the page by unpinning its buffer.
+    * A latch on the page is not released.
     */
    public void close() {
       if (currentblk != null)
@@ -62,26 +102,82 @@ public class BTreePage {
     * @return true if the block is full
     */
    public boolean isFull() {
-      return slotpos(getNumRecs()+1) >= BLOCK_SIZE;
+      return slotpos(getNumRecs()+1) >= DATA_SIZE();
    }
    
    /**
     * Splits the page at the specified position.
     * A new page is created, and the records of the page
     * starting at the split position are transferred to the new page.
+    * The new page becomes the right sibling of this page:
+    * it takes over this page's right link and high key, and
+    * the key at the split position becomes this page's high key.
     * @param splitpos the split position
     * @param flag the initial value of the flag field
     * @return the reference to the new block
     */
    public Block split(int splitpos, int flag) {
+      Constant splitval = getDataVal(splitpos);
       Block newblk = appendNew(flag);
       BTreePage newpage = new BTreePage(newblk, ti, tx);
       transferRecs(splitpos, newpage);
       newpage.setFlag(flag);
+      int rightlink = getRightLink();
+      if (rightlink >= 0) {
+         newpage.setHighKey(getHighKey());
+         newpage.setRightLink(rightlink);
+      }
       newpage.close();
+      setHighKey(splitval);
+      setRightLink(newblk.number());
       return newblk;
    }
    
+   /**
+    * Moves the records of the page starting at the
+    * specified position to a new overflow block,
+    * which is placed first in the page's overflow chain.
+    * @param splitpos the position of the first record to move
+    * @return the reference to the new overflow block
+    */
+   public Block overflow(int splitpos) {
+      int flag = getFlag();
+      Block newblk = appendNew(flag);
+      BTreePage newpage = new BTreePage(newblk, ti, tx);
+      transferRecs(splitpos, newpage);
+      newpage.close();
+      setFlag(newblk.number());
+      return newblk;
+   }
+   
+   /**
+    * Returns true if the specified key belongs to a page
+    * to the right of this one, because it is not less than
+    * the page's high key.
+    * @param key the search key
+    * @return true if the search must move to the right sibling
+    */
+   public boolean isPastHighKey(Constant key) {
+      return getRightLink() >= 0 && key.compareTo(getHighKey()) >= 0;
+   }
+   
+   /**
+    * Returns the block number of the page's right sibling,
+    * or -1 if the page has none.
+    * @return the block number of the right sibling
+    */
+   public int getRightLink() {
+      return tx.getInt(currentblk, 2*INT_SIZE);
+   }
+   
+   /**
+    * Sets the block number of the page's right sibling.
+    * @param blknum the block number, or -1 for none
+    */
+   public void setRightLink(int blknum) {
+      tx.setInt(currentblk, 2*INT_SIZE, blknum);
+   }
+   
    /**
     * Returns the dataval of the record at the specified slot.
     * @param slot the integer slot of an index record
@@ -186,6 +282,14 @@ public class BTreePage {
    
    // Private methods
    
+   private Constant getHighKey() {
+      return getDataVal(-1);
+   }
+   
+   private void setHighKey(Constant val) {
+      setVal(-1, "dataval", val);
+   }
+   
    private int getInt(int slot, String fldname) {
       int pos = fldpos(slot, fldname);
       return tx.getInt(currentblk, pos);
@@ -256,6 +360,6 @@ public class BTreePage {
    }
    
    private int slotpos(int slot) {
-      return INT_SIZE + INT_SIZE + (slot * slotsize);
+      return 3*INT_SIZE + ((slot+1) * slotsize);
    }
 }
@@ -50,7 +50,7 @@ public class IndexUpdatePlanner implements UpdatePlanner {
    
    public int executeDelete(DeleteData data, Transaction tx) {
       String tblname = data.tableName();
-      Plan p = new TablePlan(tblname, tx);
+      Plan p = new TablePlan(tblname, tx, true);
       p = new SelectPlan(p, data.pred());
       Map<String,IndexInfo> indexes = SimpleDB.mdMgr().getIndexInfo(tblname, tx);
       
@@ -76,7 +76,7 @@ public class IndexUpdatePlanner implements UpdatePlanner {
    public int executeModify(ModifyData data, Transaction tx) {
       String tblname = data.tableName();
       String fldname = data.targetField();
-      Plan p = new TablePlan(tblname, tx);
+      Plan p = new TablePlan(tblname, tx, true);
       p = new SelectPlan(p, data.pred());
       
       IndexInfo ii = SimpleDB.mdMgr().getIndexInfo(tblname, tx).get(fldname);
@@ -104,7 +104,7 @@ public class IndexUpdatePlanner implements UpdatePlanner {
    }
    
    public int executeCreateTable(CreateTableData data, Transaction tx) {
-      SimpleDB.mdMgr().createTable(data.tableName(), data.newSchema(), tx);
+      SimpleDB.mdMgr().createTable(data.tableName(), data.newSchema(), data.isSlotted(), tx);
       return 0;
    }
    
@@ -17,17 +17,39 @@ import simpledb.file.Page;
 public class BasicLogRecord {
    private Page pg;
    private int pos;
+   private long lsn;
    
    /**
     * A log record located at the specified position of the specified page.
-    * This constructor is called exclusively by
-    * {@link LogIterator#next()}.
+    * This constructor is called exclusively by the log iterators.
     * @param pg the page containing the log record
     * @param pos the position of the log record 
+    * @param lsn the LSN of the log record
     */
-   public BasicLogRecord(Page pg, int pos) {
+   public BasicLogRecord(Page pg, int pos, long lsn) {
       this.pg = pg;
       this.pos = pos;
+      this.lsn = lsn;
+   }
+   
+   /**
+    * Moves to the log record at the specified position of the page.
+    * The log iterators use a single basic log record,
+    * which they move to each record in turn.
+    * @param pos the position of the log record
+    * @param lsn the LSN of the log record
+    */
+   void moveTo(int pos, long lsn) {
+      this.pos = pos;
+      this.lsn = lsn;
+   }
+   
+   /**
+    * Returns the LSN of the log record.
+    * @return the LSN of the log record
+    */
+   public long lsn() {
+      return lsn;
    }
    
    /**
@@ -41,6 +63,17 @@ public class BasicLogRecord {
       return result;
    }
    
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is a long integer.
+    * @return the next value of the current log record
+    */
+   public long nextLong() {
+      long result = pg.getLong(pos);
+      pos += LONG_SIZE;
+      return result;
+   }
+   
    /**
     * Returns the next value of the current log record, 
     * assuming it is a string.
@@ -51,4 +84,16 @@ public class BasicLogRecord {
       pos += STR_SIZE(result.length());
       return result;
    }
+   
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is an array of bytes.
+    * @return the next value of the current log record
+    */
+   public byte[] nextBytes() {
+      int len = pg.getInt(pos);
+      byte[] result = pg.getBytes(pos + INT_SIZE, len);
+      pos += INT_SIZE + len;
+      return result;
+   }
 }
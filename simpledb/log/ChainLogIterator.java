@@ -0,0 +1,65 @@
+package simpledb.log;
+
+import static simpledb.file.Page.*;
+import simpledb.file.*;
+import java.util.*;
+
+/**
+ * A class that provides the ability to move through
+ * a given list of log records, in reverse order.
+ * The records are located by their LSNs, so that the
+ * records in between are never read;
+ * a block is read again only if the next record
+ * lies in a different block.
+ * @author Edward Sciore
+ */
+class ChainLogIterator implements Iterator<BasicLogRecord> {
+   private LogMgr logmgr;
+   private long[] lsns;
+   private int current;
+   private int blknum = -1;
+   private Page pg = new Page();
+   private BasicLogRecord rec = new BasicLogRecord(pg, 0, -1);
+   
+   /**
+    * Creates an iterator for the log records having
+    * the first count of the specified LSNs,
+    * positioned after the last of them.
+    * This constructor is called exclusively by
+    * {@link LogMgr#iterator(long[], int)}.
+    * @param logmgr the log manager
+    * @param lsns the LSNs of the records, in increasing order
+    * @param count the number of LSNs
+    */
+   ChainLogIterator(LogMgr logmgr, long[] lsns, int count) {
+      this.logmgr = logmgr;
+      this.lsns = lsns;
+      this.current = count;
+   }
+   
+   public boolean hasNext() {
+      return current > 0;
+   }
+   
+   /**
+    * Moves to the previous record of the list,
+    * reading its block if necessary.
+    * @return the next earliest log record of the list
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      long lsn = lsns[--current];
+      int n = (int) (lsn / BLOCK_SIZE);
+      if (n != blknum) {
+         blknum = n;
+         pg.read(logmgr.block(blknum));
+      }
+      rec.moveTo((int) (lsn % BLOCK_SIZE), lsn);
+      return rec;
+   }
+   
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+}
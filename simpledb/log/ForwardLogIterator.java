@@ -0,0 +1,99 @@
+package simpledb.log;
+
+import static simpledb.file.Page.*;
+import simpledb.file.*;
+import java.util.*;
+
+/**
+ * A class that provides the ability to move through the
+ * records of the log in the order they were written.
+ * The records of a block are chained in reverse order,
+ * so the iterator follows the chain of each block
+ * to find the positions of its records.
+ * @author Edward Sciore
+ */
+class ForwardLogIterator implements Iterator<BasicLogRecord> {
+   private LogMgr logmgr;
+   private int blknum;
+   private int lastblknum;
+   private Page pg = new Page();
+   private BasicLogRecord rec = new BasicLogRecord(pg, 0, -1);
+   // the positions of the records of the current block, in order
+   private int[] positions = new int[BLOCK_SIZE / (2 * INT_SIZE)];
+   private int numpositions, current;
+   
+   /**
+    * Creates an iterator for the records in the log,
+    * positioned before the record having the specified LSN.
+    * If that record has been truncated, the iterator
+    * starts with the earliest record that remains.
+    * This constructor is called exclusively by
+    * {@link LogMgr#forwardIterator(long)}.
+    * @param logmgr the log manager
+    * @param lsn the LSN of the first record
+    * @param lastblknum the number of the last block of the log
+    */
+   ForwardLogIterator(LogMgr logmgr, long lsn, int lastblknum) {
+      this.logmgr = logmgr;
+      this.lastblknum = lastblknum;
+      blknum = (int) (lsn / BLOCK_SIZE);
+      int startpos = (int) (lsn % BLOCK_SIZE);
+      if (blknum < logmgr.firstBlock()) {
+         blknum = logmgr.firstBlock();
+         startpos = 0;
+      }
+      if (blknum <= lastblknum) {
+         readBlock();
+         while (current < numpositions && positions[current] < startpos)
+            current++;
+      }
+   }
+   
+   /**
+    * Determines if there is a later record in the log.
+    * @return true if there is a later record
+    */
+   public boolean hasNext() {
+      while (current >= numpositions && blknum < lastblknum) {
+         blknum++;
+         readBlock();
+      }
+      return current < numpositions;
+   }
+   
+   /**
+    * Moves to the next log record in the order of the log.
+    * @return the next later log record
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      int pos = positions[current++];
+      rec.moveTo(pos, (long) blknum * BLOCK_SIZE + pos);
+      return rec;
+   }
+   
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+   
+   /**
+    * Reads the current block and determines the
+    * positions of its records, in order.
+    */
+   private void readBlock() {
+      pg.read(logmgr.block(blknum));
+      numpositions = 0;
+      current = 0;
+      int ptr = pg.getInt(LogMgr.LAST_POS);
+      while (ptr > 0) {
+         ptr = pg.getInt(ptr);
+         positions[numpositions++] = ptr + INT_SIZE;
+      }
+      for (int i=0, j=numpositions-1; i<j; i++, j--) {
+         int tmp = positions[i];
+         positions[i] = positions[j];
+         positions[j] = tmp;
+      }
+   }
+}
@@ -1,39 +1,46 @@
 package simpledb.log;
 
-import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.*;
 import simpledb.file.*;
 import java.util.Iterator;
 
 /**
  * A class that provides the ability to move through the
- * records of the log file in reverse order.
+ * records of the log in reverse order.
+ * The iterator stops at the first block of the
+ * earliest segment that has not been truncated.
  * 
  * @author Edward Sciore
  */
 class LogIterator implements Iterator<BasicLogRecord> {
-   private Block blk;
+   private LogMgr logmgr;
+   private int blknum;
    private Page pg = new Page();
+   private BasicLogRecord rec = new BasicLogRecord(pg, 0, -1);
    private int currentrec;
    
    /**
-    * Creates an iterator for the records in the log file,
+    * Creates an iterator for the records in the log,
     * positioned after the last log record.
     * This constructor is called exclusively by
     * {@link LogMgr#iterator()}.
+    * @param logmgr the log manager
+    * @param blknum the number of the last block of the log
     */
-   LogIterator(Block blk) {
-      this.blk = blk;
-      pg.read(blk);
+   LogIterator(LogMgr logmgr, int blknum) {
+      this.logmgr = logmgr;
+      this.blknum = blknum;
+      pg.read(logmgr.block(blknum));
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
    
    /**
     * Determines if the current log record
-    * is the earliest record in the log file.
+    * is the earliest record in the log.
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentrec>0 || blk.number()>0;
+      return currentrec>0 || blknum>logmgr.firstBlock();
    }
    
    /**
@@ -47,7 +54,9 @@ class LogIterator implements Iterator<BasicLogRecord> {
       if (currentrec == 0) 
          moveToNextBlock();
       currentrec = pg.getInt(currentrec);
-      return new BasicLogRecord(pg, currentrec+INT_SIZE);
+      int pos = currentrec + INT_SIZE;
+      rec.moveTo(pos, (long) blknum * BLOCK_SIZE + pos);
+      return rec;
    }
    
    public void remove() {
@@ -59,8 +68,8 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * and positions it after the last record in that block.
     */
    private void moveToNextBlock() {
-      blk = new Block(blk.fileName(), blk.number()-1);
-      pg.read(blk);
+      blknum--;
+      pg.read(logmgr.block(blknum));
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
 }
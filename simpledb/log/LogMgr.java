@@ -3,16 +3,43 @@ package simpledb.log;
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
 import static simpledb.file.Page.*;
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 /**
  * The low-level log manager.
  * This log manager is responsible for writing log records
- * into a log file.
- * A log record can be any sequence of integer and string values.
+ * into the log.
+ * A log record can be any sequence of integer, long and string values.
+ * A record implements {@link Loggable}, and writes its values
+ * directly into the log page.
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * <P>
+ * The LSN of a log record is its byte offset in the log.
+ * The log is stored in segment files of a fixed number of blocks;
+ * each segment is named after the log file and the number of
+ * its first block (such as simpledb.log.4096).
+ * When a checkpoint makes the earliest segments unnecessary,
+ * they are deleted or moved to an archive directory
+ * (see {@link #truncate(long, File)}).
+ * The log manager keeps the end of the log in a ring of pages:
+ * when a record does not fit in the current page, the log moves on
+ * to the next page of the ring without writing anything.
+ * A flush writes all of the pages that have not yet been
+ * written in a single sequential write, and only when the ring
+ * is full must a new page wait for its predecessors to be written.
+ * <P>
+ * Once a log writer thread is started, flush requests are
+ * performed by that thread (group commit).
+ * A transaction that needs its records on disk registers a request
+ * and waits; the log writer copies the current page, writes the
+ * unwritten pages once for all of the requests made so far, and wakes
+ * the transactions whose records are now on disk.
+ * Records can be appended to the log while it is being written.
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
@@ -23,14 +50,49 @@ public class LogMgr implements Iterable<BasicLogRecord> {
    public static final int LAST_POS = 0;
 
    private String logfile;
-   private Page mypage = new Page();
-   private Block currentblk;
+   private int segmentsize;
+   // the number of the first block of each segment
+   private NavigableSet<Integer> segments = new ConcurrentSkipListSet<Integer>();
+   // true if the log is a single file that is not named as a segment
+   private boolean unsegmented = false;
+   private Page[] pages;
+   private Page mypage;
+   private LogOutput out = new LogOutput();
+   private int currentblknum;
    private int currentpos;
+   
+   // the blocks before flushedblknum are on disk in their final form,
+   // and the records before durableLSN are on disk
+   private int flushedblknum;
+   private long durableLSN, requestedLSN;
+   private boolean hasWriter = false;
+   private RuntimeException writeFailure;
+   
+   // the log writer's copy of the current page;
+   // all writes of the log lock ioLock, and skip the write
+   // if a write of later records has already been done
+   private Page writerpage = new Page();
+   private Object ioLock = new Object();
+   private long writtenLSN;
+   private int writtenblknum;
 
    /**
-    * Creates the manager for the specified log file.
-    * If the log file does not yet exist, it is created
+    * Creates the manager for the specified log,
+    * which keeps a single page of the log in memory
+    * and stores the log in a single segment.
+    * @param logfile the name of the log file
+    */
+   public LogMgr(String logfile) {
+      this(logfile, 1, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Creates the manager for the specified log.
+    * If the log does not yet exist, it is created
     * with an empty first block.
+    * A log file written before the log was divided into
+    * segments becomes the segment starting with block 0;
+    * in a read-only database, it is read as it is.
     * This constructor depends on a {@link FileMgr} object
     * that it gets from the method
     * {@link simpledb.server.SimpleDB#fileMgr()}.
@@ -39,114 +101,346 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * {@link simpledb.server.SimpleDB#initFileMgr(String)}
     * is called first.
     * @param logfile the name of the log file
+    * @param numpages the number of pages in the ring of log pages
+    * @param segmentsize the number of blocks in a segment
     */
-   public LogMgr(String logfile) {
+   public LogMgr(String logfile, int numpages, int segmentsize) {
       this.logfile = logfile;
-      int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      this.segmentsize = Math.max(1, segmentsize);
+      pages = new Page[Math.max(1, numpages)];
+      for (int i=0; i<pages.length; i++)
+         pages[i] = new Page();
+      findSegments();
+      int lastsegment = segments.last();
+      int logsize = lastsegment + SimpleDB.fileMgr().size(segmentName(lastsegment));
+      if (logsize == 0) {
+         currentblknum = 0;
+         mypage = pages[0];
+         setLastRecordPosition(0);
+         currentpos = INT_SIZE;
+         synchronized (this) {
+            flushLog(false);
+         }
+      }
       else {
-         currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
+         currentblknum = logsize-1;
+         mypage = pages[currentblknum % pages.length];
+         mypage.read(block(currentblknum));
          currentpos = getLastRecordPosition() + INT_SIZE;
       }
+      flushedblknum = writtenblknum = currentblknum;
+      durableLSN = requestedLSN = writtenLSN = endLSN();
    }
 
    /**
-    * Ensures that the log records corresponding to the
+    * Ensures that the log record having the
     * specified LSN has been written to disk.
     * All earlier log records will also be written to disk.
+    * If the log writer is running, the method waits for it
+    * to write the records; otherwise it writes them itself.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
-         flush();
+   public synchronized void flush(long lsn) {
+      if (lsn < durableLSN)
+         return;
+      if (!hasWriter) {
+         flushLog(false);
+         return;
+      }
+      long target = endLSN();
+      if (target > requestedLSN) {
+         requestedLSN = target;
+         notifyAll();
+      }
+      try {
+         while (durableLSN < target && writeFailure == null)
+            wait();
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("interrupted while flushing the log");
+      }
+      if (durableLSN < target)
+         throw writeFailure;
+   }
+
+   /**
+    * Starts a background thread that performs
+    * the flush requests of committing transactions.
+    */
+   public synchronized void startLogWriter() {
+      if (hasWriter)
+         return;
+      hasWriter = true;
+      Thread t = new Thread(new LogWriter(this), "LogWriter");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Waits until a flush has been requested, and then
+    * writes the unwritten pages of the log to disk.
+    * The current page is copied while synchronized, and the pages
+    * are written without blocking the transactions that append records;
+    * the requests that arrive during the write
+    * are performed together by the next call.
+    * This method is called repeatedly by the log writer thread.
+    * @throws InterruptedException
+    */
+   void writeRequested() throws InterruptedException {
+      LogWrite w;
+      synchronized (this) {
+         while (requestedLSN <= durableLSN)
+            wait();
+         writerpage.copyFrom(mypage);
+         w = prepareWrite(writerpage, false);
+      }
+      try {
+         write(w);
+      }
+      catch (RuntimeException e) {
+         synchronized (this) {
+            writeFailure = e;
+            notifyAll();
+         }
+         throw e;
+      }
+      synchronized (this) {
+         written(w);
+      }
    }
 
    /**
     * Returns an iterator for the log records,
     * which will be returned in reverse order starting with the most recent.
+    * As with the other iterators of the log, the records
+    * are read in place from a page of the iterator, and
+    * the same basic log record is returned by each call to next,
+    * positioned at the next record.
     * @see java.lang.Iterable#iterator()
     */
    public synchronized Iterator<BasicLogRecord> iterator() {
-      flush();
-      return new LogIterator(currentblk);
+      flushLog(false);
+      return new LogIterator(this, currentblknum);
    }
 
    /**
-    * Appends a log record to the file.
-    * The record contains an arbitrary array of strings and integers.
-    * The method also writes an integer to the end of each log record whose value
-    * is the offset of the corresponding integer for the previous log record.
-    * These integers allow log records to be read in reverse order.
-    * @param rec the list of values
-    * @return the LSN of the final value
-    */
-   public synchronized int append(Object[] rec) {
-      int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
-      for (Object obj : rec)
-         recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
-      }
-      for (Object obj : rec)
-         appendVal(obj);
-      finalizeRecord();
-      return currentLSN();
+    * Returns an iterator for the log records having the
+    * specified LSNs, which will be returned in reverse order.
+    * Only the blocks holding those records are read.
+    * @param lsns an array whose first count elements are
+    * the LSNs of the records, in increasing order
+    * @param count the number of records
+    * @return an iterator for the records, starting with the last
+    */
+   public synchronized Iterator<BasicLogRecord> iterator(long[] lsns, int count) {
+      flushLog(false);
+      return new ChainLogIterator(this, lsns, count);
    }
 
    /**
-    * Adds the specified value to the page at the position denoted by
-    * currentpos.  Then increments currentpos by the size of the value.
-    * @param val the integer or string to be added to the page
+    * Returns an iterator for the log records in the order
+    * that they were written, starting with the record
+    * having the specified LSN and ending with the most recent.
+    * @param lsn the LSN of the first record
+    * @return an iterator for the records starting at that LSN
     */
-   private void appendVal(Object val) {
-      if (val instanceof String)
-         mypage.setString(currentpos, (String)val);
-      else
-         mypage.setInt(currentpos, (Integer)val);
-      currentpos += size(val);
+   public synchronized Iterator<BasicLogRecord> forwardIterator(long lsn) {
+      flushLog(false);
+      return new ForwardLogIterator(this, lsn, currentblknum);
    }
 
    /**
-    * Calculates the size of the specified integer or string.
-    * @param val the value
-    * @return the size of the value, in bytes
+    * Removes the segments of the log that lie entirely before
+    * the specified LSN.
+    * The segments are moved to the specified archive directory,
+    * which is created if necessary,
+    * or are deleted if the directory is null.
+    * The segment holding the end of the log is never removed.
+    * The caller must ensure that the records before the LSN
+    * are no longer needed.
+    * @param lsn the LSN of the earliest record to keep
+    * @param archivedir the archive directory, or null
     */
-   private int size(Object val) {
-      if (val instanceof String) {
-         String sval = (String) val;
-         return STR_SIZE(sval.length());
+   public void truncate(long lsn, File archivedir) {
+      int blknum;
+      synchronized (this) {
+         blknum = (int) Math.min(lsn / BLOCK_SIZE, flushedblknum);
+      }
+      if (archivedir != null && !archivedir.isDirectory() && !archivedir.mkdirs())
+         throw new RuntimeException("cannot create " + archivedir);
+      FileMgr fm = SimpleDB.fileMgr();
+      while (true) {
+         int first = segments.first();
+         Integer next = segments.higher(first);
+         if (next == null || next > blknum)
+            return;
+         String filename = segmentName(first);
+         segments.remove(first);
+         fm.close(filename);
+         Path p = fm.file(filename).toPath();
+         try {
+            if (archivedir == null)
+               Files.delete(p);
+            else
+               Files.move(p, new File(archivedir, filename).toPath(),
+                          StandardCopyOption.REPLACE_EXISTING);
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot remove " + p);
+         }
       }
-      else
-         return INT_SIZE;
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
-    * @return the LSN of the most recent log record
+    * Returns the block of its segment file
+    * that holds the specified block of the log.
+    * @param blknum the number of a block of the log
+    * @return the block of the segment file
+    */
+   Block block(int blknum) {
+      Integer first = segments.floor(blknum);
+      if (first == null)
+         throw new RuntimeException("log block " + blknum + " has been truncated");
+      return new Block(segmentName(first), blknum - first);
+   }
+
+   /**
+    * Returns the number of the first block of the log
+    * that has not been truncated.
+    * @return the number of the first block of the earliest segment
+    */
+   int firstBlock() {
+      return segments.first();
+   }
+
+   /**
+    * Appends a log record to the log.
+    * The record writes its values into the current page
+    * through the log manager's output, so that nothing is
+    * allocated for the values.
+    * The method also writes an integer to the end of the log record whose value
+    * is the offset of the corresponding integer for the previous log record.
+    * A record must fit in a page of the log
+    * (see {@link #maxRecordSize()}); a larger record is rejected
+    * before anything is written.
+    * @param rec the log record
+    * @return the LSN of the record
     */
-   private int currentLSN() {
-      return currentblk.number();
+   public synchronized long append(Loggable rec) {
+      int recsize = INT_SIZE + rec.logSize();
+      if (recsize > BLOCK_SIZE - INT_SIZE)
+         throw new RuntimeException("log record of " + recsize + " bytes does not fit in a log page");
+      if (currentpos + recsize >= BLOCK_SIZE)
+         moveToNextPage();
+      long lsn = endLSN();
+      out.moveTo(mypage, currentpos);
+      rec.writeTo(out);
+      currentpos = out.position();
+      finalizeRecord();
+      return lsn;
    }
 
    /**
-    * Writes the current page to the log file.
+    * Returns the largest size of a log record that can be appended,
+    * which is the size of a page of the log less the pointers
+    * to the last record and to the previous record.
+    * @return the maximum value of {@link Loggable#logSize()}
     */
-   private void flush() {
-      mypage.write(currentblk);
+   public static int maxRecordSize() {
+      return BLOCK_SIZE - 2 * INT_SIZE;
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Returns the LSN at the end of the log,
+    * which is the LSN that the next record will have
+    * if it fits in the current page.
+    * @return the byte offset of the end of the log
     */
-   private void appendNewBlock() {
+   public synchronized long endLSN() {
+      return (long) currentblknum * BLOCK_SIZE + currentpos;
+   }
+
+   /**
+    * Moves the end of the log to the next page of the ring.
+    * If that page still holds a block that has not been
+    * written, then the log is first flushed.
+    * If the current segment is full, the new block
+    * starts a new segment.
+    */
+   private void moveToNextPage() {
+      int nextblknum = currentblknum + 1;
+      if (nextblknum - pages.length >= flushedblknum)
+         flushLog(true);
+      currentblknum = nextblknum;
+      if (currentblknum - segments.last() >= segmentsize)
+         segments.add(currentblknum);
+      mypage = pages[currentblknum % pages.length];
       setLastRecordPosition(0);
       currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
+   }
+
+   /**
+    * Writes the unwritten pages of the log to disk.
+    * All records appended so far are then on disk.
+    * @param pagefull true if the current page will not
+    * receive any more records
+    */
+   private void flushLog(boolean pagefull) {
+      LogWrite w = prepareWrite(mypage, pagefull);
+      write(w);
+      written(w);
+   }
+
+   /**
+    * Describes a write of the unwritten pages of the log,
+    * ending with the specified copy of the current page.
+    */
+   private LogWrite prepareWrite(Page current, boolean pagefull) {
+      LogWrite w = new LogWrite();
+      w.firstblknum = flushedblknum;
+      w.pages = new Page[currentblknum - flushedblknum + 1];
+      for (int i=0; i<w.pages.length-1; i++)
+         w.pages[i] = pages[(flushedblknum + i) % pages.length];
+      w.pages[w.pages.length-1] = current;
+      w.finalblknum = pagefull ? currentblknum + 1 : currentblknum;
+      w.endLSN = endLSN();
+      return w;
+   }
+
+   /**
+    * Performs the specified write, unless a write of
+    * later records has already been done.
+    * Pages whose blocks have already been written in their
+    * final form are skipped, because they may since have
+    * been reused for later blocks.
+    * The pages of each segment are written in a single write.
+    */
+   private void write(LogWrite w) {
+      synchronized (ioLock) {
+         if (w.endLSN <= writtenLSN && w.finalblknum <= writtenblknum)
+            return;
+         int from = Math.max(w.firstblknum, writtenblknum);
+         int end = w.firstblknum + w.pages.length;
+         while (from < end) {
+            Integer next = segments.higher(from);
+            int to = (next == null) ? end : Math.min(end, next);
+            Page[] ps = Arrays.copyOfRange(w.pages, from - w.firstblknum, to - w.firstblknum);
+            Page.write(block(from), ps);
+            from = to;
+         }
+         writtenLSN = Math.max(writtenLSN, w.endLSN);
+         writtenblknum = Math.max(writtenblknum, w.finalblknum);
+      }
+   }
+
+   /**
+    * Records that the specified write has been done,
+    * and wakes the transactions waiting for it.
+    */
+   private void written(LogWrite w) {
+      durableLSN = Math.max(durableLSN, w.endLSN);
+      flushedblknum = Math.max(flushedblknum, w.finalblknum);
+      notifyAll();
    }
 
    /**
@@ -162,6 +456,44 @@ public class LogMgr implements Iterable<BasicLogRecord> {
       currentpos += INT_SIZE;
    }
 
+   /**
+    * Finds the segments of the log in the database directory.
+    * A log file that is not divided into segments is renamed
+    * to be the first segment, and an empty last segment,
+    * left by a crash before its first block was written,
+    * is removed.
+    */
+   private void findSegments() {
+      FileMgr fm = SimpleDB.fileMgr();
+      File oldfile = fm.file(logfile);
+      if (oldfile.exists() && fm.isReadOnly()) {
+         unsegmented = true;
+         segments.add(0);
+         return;
+      }
+      if (oldfile.exists() && !oldfile.renameTo(fm.file(segmentName(0))))
+         throw new RuntimeException("cannot rename " + oldfile);
+      String prefix = logfile + ".";
+      for (String filename : oldfile.getParentFile().list())
+         if (filename.startsWith(prefix)) {
+            try {
+               segments.add(Integer.parseInt(filename.substring(prefix.length())));
+            }
+            catch (NumberFormatException e) {}
+         }
+      if (segments.isEmpty())
+         segments.add(0);
+      while (segments.size() > 1 && fm.size(segmentName(segments.last())) == 0) {
+         String filename = segmentName(segments.pollLast());
+         fm.close(filename);
+         fm.file(filename).delete();
+      }
+   }
+
+   private String segmentName(int firstblknum) {
+      return unsegmented ? logfile : logfile + "." + firstblknum;
+   }
+
    private int getLastRecordPosition() {
       return mypage.getInt(LAST_POS);
    }
@@ -169,4 +501,15 @@ public class LogMgr implements Iterable<BasicLogRecord> {
    private void setLastRecordPosition(int pos) {
       mypage.setInt(LAST_POS, pos);
    }
+
+   /**
+    * The pages of a write of the log, starting with
+    * the first block that had not been written in its
+    * final form. The blocks before finalblknum will not change.
+    */
+   private static class LogWrite {
+      int firstblknum, finalblknum;
+      Page[] pages;
+      long endLSN;
+   }
 }
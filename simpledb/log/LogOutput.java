@@ -0,0 +1,89 @@
+package simpledb.log;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Page;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+
+/**
+ * A class that writes the values of a log record
+ * directly into a log page, without boxing them.
+ * It is the counterpart of {@link BasicLogRecord}:
+ * the values are read back with its methods, in the same order.
+ * The log manager keeps a single output, which it positions
+ * at the end of the log for each record that is appended.
+ * Strings are copied into a character buffer of the output
+ * and encoded by its encoder directly into the page,
+ * so that writing a value allocates nothing.
+ * @author Edward Sciore
+ */
+public class LogOutput {
+   private Page pg;
+   private int pos;
+   private CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+   // replaces the characters that cannot be encoded, as String.getBytes does
+   private CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+         .onMalformedInput(CodingErrorAction.REPLACE)
+         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   
+   LogOutput() {}
+   
+   /**
+    * Positions the output at the specified offset of the page.
+    * @param pg the page
+    * @param pos the offset at which the next value is written
+    */
+   void moveTo(Page pg, int pos) {
+      this.pg = pg;
+      this.pos = pos;
+   }
+   
+   /**
+    * Returns the offset following the values written so far.
+    * @return the current offset
+    */
+   int position() {
+      return pos;
+   }
+   
+   /**
+    * Writes an integer value.
+    * @param val the value
+    */
+   public void writeInt(int val) {
+      pg.setInt(pos, val);
+      pos += INT_SIZE;
+   }
+   
+   /**
+    * Writes a long integer value.
+    * @param val the value
+    */
+   public void writeLong(long val) {
+      pg.setLong(pos, val);
+      pos += LONG_SIZE;
+   }
+   
+   /**
+    * Writes a string value.
+    * @param val the value
+    */
+   public void writeString(String val) {
+      if (chars.capacity() < val.length())
+         chars = CharBuffer.allocate(val.length());
+      chars.clear();
+      chars.put(val).flip();
+      pg.setString(pos, chars, encoder);
+      pos += STR_SIZE(val.length());
+   }
+   
+   /**
+    * Writes an array of bytes, preceded by its length.
+    * @param val the value
+    */
+   public void writeBytes(byte[] val) {
+      pg.setInt(pos, val.length);
+      pg.setBytes(pos + INT_SIZE, val);
+      pos += INT_SIZE + val.length;
+   }
+}
@@ -0,0 +1,24 @@
+package simpledb.log;
+
+/**
+ * The log writer thread.
+ * The thread repeatedly waits for flush requests,
+ * and writes the log page once for all of the requests
+ * that are pending.
+ * @author Edward Sciore
+ */
+class LogWriter implements Runnable {
+   private LogMgr logmgr;
+   
+   LogWriter(LogMgr logmgr) {
+      this.logmgr = logmgr;
+   }
+   
+   public void run() {
+      try {
+         while (true)
+            logmgr.writeRequested();
+      }
+      catch (InterruptedException e) {}
+   }
+}
@@ -0,0 +1,26 @@
+package simpledb.log;
+
+/**
+ * The interface implemented by a log record that writes
+ * its values directly into the log page.
+ * The log manager asks the record for its size,
+ * to decide whether it fits in the current page, and then
+ * has it write its values through a {@link LogOutput}.
+ * @author Edward Sciore
+ */
+public interface Loggable {
+   /**
+    * Returns the number of bytes needed by the values of the record,
+    * computed with {@link simpledb.file.Page#INT_SIZE INT_SIZE},
+    * {@link simpledb.file.Page#LONG_SIZE LONG_SIZE} and
+    * {@link simpledb.file.Page#STR_SIZE(int) STR_SIZE}.
+    * @return the size of the record
+    */
+   int logSize();
+   
+   /**
+    * Writes the values of the record, in order.
+    * @param out the output positioned at the start of the record
+    */
+   void writeTo(LogOutput out);
+}
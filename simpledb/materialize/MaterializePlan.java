@@ -1,6 +1,5 @@
 package simpledb.materialize;
 
-import static simpledb.file.Page.BLOCK_SIZE;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import simpledb.query.*;
@@ -54,7 +53,7 @@ public class MaterializePlan implements Plan {
    public int blocksAccessed() {
       // create a dummy TableInfo object to calculate record length
       TableInfo ti = new TableInfo("", srcplan.schema());
-      double rpb = (double) (BLOCK_SIZE / ti.recordLength());
+      double rpb = (double) ti.recordsPerBlock();
       return (int) Math.ceil(srcplan.recordsOutput() / rpb);
    }
    
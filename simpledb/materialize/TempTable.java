@@ -1,5 +1,6 @@
 package simpledb.materialize;
 
+import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import simpledb.query.*;
@@ -30,9 +31,11 @@ public class TempTable {
    
    /**
     * Opens a table scan for the temporary table.
+    * The scan uses its own buffer ring, since a temporary table
+    * is written and read sequentially.
     */
    public UpdateScan open() {
-      return new TableScan(ti, tx);
+      return new TableScan(ti, tx, SimpleDB.bufferMgr().newRing());
    }
    
    /**
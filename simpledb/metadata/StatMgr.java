@@ -10,6 +10,9 @@ import java.util.*;
  * The manager does not store this information in the database.
  * Instead, it calculates this information on system startup,
  * and periodically refreshes it.
+ * A refresh reads the tables in a read-only transaction,
+ * which takes no locks, so that the transaction that happens
+ * to trigger it does not lock every table until it ends.
  * @author Edward Sciore
  */
 class StatMgr {
@@ -37,8 +40,11 @@ class StatMgr {
     */
    public synchronized StatInfo getStatInfo(String tblname, TableInfo ti, Transaction tx) {
       numcalls++;
-      if (numcalls > 100)
-         refreshStatistics(tx);
+      if (numcalls > 100) {
+         Transaction snapshottx = new Transaction(true);
+         refreshStatistics(snapshottx);
+         snapshottx.commit();
+      }
       StatInfo si = tablestats.get(tblname);
       if (si == null) {
          si = calcTableStats(ti, tx);
@@ -26,6 +26,7 @@ public class MultiBufferProductScan implements Scan {
       this.lhsscan = lhsscan;
       this.ti = ti;
       this.tx = tx;
+      tx.sLockTable(ti.fileName());
       filesize = tx.size(ti.fileName());
       chunksize = BufferNeeds.bestFactor(filesize);
       beforeFirst();
@@ -9,13 +9,23 @@ import simpledb.record.Schema;
 public class CreateTableData {
    private String tblname;
    private Schema sch;
+   private boolean slotted;
    
    /**
     * Saves the table name and schema.
     */
    public CreateTableData(String tblname, Schema sch) {
+      this(tblname, sch, false);
+   }
+   
+   /**
+    * Saves the table name and schema, and whether
+    * the records are stored in slotted pages.
+    */
+   public CreateTableData(String tblname, Schema sch, boolean slotted) {
       this.tblname = tblname;
       this.sch = sch;
+      this.slotted = slotted;
    }
    
    /**
@@ -33,5 +43,14 @@ public class CreateTableData {
    public Schema newSchema() {
       return sch;
    }
+   
+   /**
+    * Returns true if the records of the new table
+    * are stored in slotted pages.
+    * @return true if the new table has slotted pages
+    */
+   public boolean isSlotted() {
+      return slotted;
+   }
 }
 
@@ -254,7 +254,12 @@ public class Parser {
       lex.eatDelim('(');
       Schema sch = fieldDefs();
       lex.eatDelim(')');
-      return new CreateTableData(tblname, sch);
+      boolean slotted = false;
+      if (lex.matchKeyword("slotted")) {
+         lex.eatKeyword("slotted");
+         slotted = true;
+      }
+      return new CreateTableData(tblname, sch, slotted);
    }
    
    private Schema fieldDefs() {
@@ -13,7 +13,7 @@ import simpledb.query.*;
 public class BasicUpdatePlanner implements UpdatePlanner {
    
    public int executeDelete(DeleteData data, Transaction tx) {
-      Plan p = new TablePlan(data.tableName(), tx);
+      Plan p = new TablePlan(data.tableName(), tx, true);
       p = new SelectPlan(p, data.pred());
       UpdateScan us = (UpdateScan) p.open();
       int count = 0;
@@ -26,7 +26,7 @@ public class BasicUpdatePlanner implements UpdatePlanner {
    }
    
    public int executeModify(ModifyData data, Transaction tx) {
-      Plan p = new TablePlan(data.tableName(), tx);
+      Plan p = new TablePlan(data.tableName(), tx, true);
       p = new SelectPlan(p, data.pred());
       UpdateScan us = (UpdateScan) p.open();
       int count = 0;
@@ -53,7 +53,7 @@ public class BasicUpdatePlanner implements UpdatePlanner {
    }
    
    public int executeCreateTable(CreateTableData data, Transaction tx) {
-      SimpleDB.mdMgr().createTable(data.tableName(), data.newSchema(), tx);
+      SimpleDB.mdMgr().createTable(data.tableName(), data.newSchema(), data.isSlotted(), tx);
       return 0;
    }
    
@@ -2,6 +2,7 @@ package simpledb.query;
 
 import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
+import simpledb.buffer.BufferRing;
 import simpledb.metadata.*;
 import simpledb.record.*;
 
@@ -12,6 +13,7 @@ public class TablePlan implements Plan {
    private Transaction tx;
    private TableInfo ti;
    private StatInfo si;
+   private boolean forupdate;
    
    /**
     * Creates a leaf node in the query tree corresponding
@@ -20,17 +22,35 @@ public class TablePlan implements Plan {
     * @param tx the calling transaction
     */
    public TablePlan(String tblname, Transaction tx) {
+      this(tblname, tx, false);
+   }
+   
+   /**
+    * Creates a leaf node in the query tree corresponding
+    * to the specified table, whose scan may modify
+    * or delete the records it moves to.
+    * Such a scan locks the records one at a time
+    * instead of locking the whole table.
+    * @param tblname the name of the table
+    * @param tx the calling transaction
+    * @param forupdate true if the scan modifies or deletes its records
+    */
+   public TablePlan(String tblname, Transaction tx, boolean forupdate) {
       this.tx = tx;
+      this.forupdate = forupdate;
       ti = SimpleDB.mdMgr().getTableInfo(tblname, tx);
       si = SimpleDB.mdMgr().getStatInfo(tblname, ti, tx);
    }
    
    /**
     * Creates a table scan for this query.
+    * A scan of a large table uses a buffer ring,
+    * so that it does not push other blocks out of the pool.
     * @see simpledb.query.Plan#open()
     */
    public Scan open() {
-      return new TableScan(ti, tx);
+      BufferRing ring = SimpleDB.bufferMgr().ringFor(si.blocksAccessed());
+      return new TableScan(ti, tx, ring, forupdate);
    }
    
    /**
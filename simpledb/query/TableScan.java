@@ -2,6 +2,7 @@ package simpledb.query;
 
 import static java.sql.Types.INTEGER;
 import simpledb.tx.Transaction;
+import simpledb.buffer.BufferRing;
 import simpledb.record.*;
 
 /**
@@ -23,7 +24,34 @@ public class TableScan implements UpdateScan {
     * @param tx the calling transaction
     */
    public TableScan(TableInfo ti, Transaction tx) {
-      rf  = new RecordFile(ti, tx);
+      this(ti, tx, null);
+   }
+   
+   /**
+    * Creates a new table scan whose blocks are
+    * pinned using the specified buffer ring,
+    * and opens its corresponding record file. 
+    * @param ti the table's metadata
+    * @param tx the calling transaction
+    * @param ring the buffer ring, or null
+    */
+   public TableScan(TableInfo ti, Transaction tx, BufferRing ring) {
+      this(ti, tx, ring, false);
+   }
+   
+   /**
+    * Creates a new table scan whose blocks are
+    * pinned using the specified buffer ring,
+    * and opens its corresponding record file,
+    * possibly for update.
+    * @param ti the table's metadata
+    * @param tx the calling transaction
+    * @param ring the buffer ring, or null
+    * @param forupdate true if the scan modifies or deletes its records
+    * @see simpledb.record.RecordFile#RecordFile(TableInfo, Transaction, BufferRing, boolean)
+    */
+   public TableScan(TableInfo ti, Transaction tx, BufferRing ring, boolean forupdate) {
+      rf  = new RecordFile(ti, tx, ring, forupdate);
       sch = ti.schema();
    }
    
@@ -0,0 +1,221 @@
+package simpledb.record;
+
+import static simpledb.file.Page.*;
+import simpledb.file.*;
+import simpledb.buffer.PageFormatter;
+import simpledb.tx.Transaction;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The free-space map of a table, which records
+ * which blocks of the table are full.
+ * The map is kept in a file of its own, which holds an integer
+ * for each block of the table: FULL if the block has no empty slot,
+ * and FREE if it may have one.
+ * A block that is not yet in the map is free, so
+ * a new block does not need to be added to it.
+ * An insertion uses the map to go straight to a block
+ * that has room, instead of searching the table for one.
+ * <P>
+ * The map is only a hint: an insertion still looks for
+ * an empty slot in the block, and marks the block full
+ * if it has none.
+ * The map is read and modified by actions
+ * (see {@link simpledb.tx.Transaction#beginAction()}),
+ * so that transactions do not lock it,
+ * and its changes are kept if a transaction rolls back.
+ * A block that an insertion filled can thus stay full in the map
+ * after the insertion is rolled back.
+ * So each time a search finds no free block, the blocks of the table
+ * are read again, in turn, and marked free if they have an empty slot.
+ * Two blocks are read for each search, so that the reading gets
+ * around a table that grows by one block for each search.
+ * <P>
+ * The lowest block of each table that may be free
+ * is also remembered in memory, as the place
+ * where the next search begins.
+ * @author Edward Sciore
+ */
+public class FreeSpaceMap {
+   public static final int FREE = 0, FULL = 1;
+   private static final int RECHECKS = 2;
+   
+   // the lowest block of each table that may be free
+   private static Map<String,Integer> hints = new ConcurrentHashMap<String,Integer>();
+   // the next block of each table to be read again
+   private static Map<String,Integer> rechecks = new ConcurrentHashMap<String,Integer>();
+   private TableInfo ti;
+   private String filename, tblfile;
+   private Transaction tx;
+   private int entries = DATA_SIZE() / INT_SIZE;
+   
+   /**
+    * Creates an object to manage the free-space map
+    * of the specified table.
+    * The map's file is created when a block is first marked full.
+    * @param ti the table's metadata
+    * @param tx the transaction that modifies the table
+    */
+   FreeSpaceMap(TableInfo ti, Transaction tx) {
+      this.ti = ti;
+      filename = ti.freeSpaceFileName();
+      tblfile = ti.fileName();
+      this.tx = tx;
+   }
+   
+   /**
+    * Forgets the blocks remembered in memory for every table.
+    * This method is called when the server starts,
+    * since the tables of another database may have the same names.
+    */
+   public static void reset() {
+      hints.clear();
+      rechecks.clear();
+   }
+   
+   /**
+    * Returns the first block of the table, at or after
+    * the specified one, that may have an empty slot.
+    * If every block from there on is full, then the next
+    * blocks of the table to be read again are checked instead,
+    * and -1 is returned if they are full too.
+    * @param from the block number where the search begins
+    * @return the number of a free block, or -1
+    */
+   int findFree(int from) {
+      Integer hint = hints.get(filename);
+      int start = Math.max(from, (hint == null) ? 0 : hint);
+      int found = -1;
+      Transaction action = tx.beginAction();
+      try {
+         int tblsize = action.size(tblfile);
+         int mapsize = action.size(filename);
+         int blknum = start;
+         while (found < 0 && blknum < tblsize) {
+            int mapblknum = blknum / entries;
+            if (mapblknum >= mapsize) {
+               found = blknum;
+               break;
+            }
+            Block mapblk = new Block(filename, mapblknum);
+            action.pin(mapblk);
+            action.sLatch(mapblk);
+            for (; blknum < tblsize && blknum / entries == mapblknum; blknum++)
+               if (action.getInt(mapblk, position(blknum)) == FREE) {
+                  found = blknum;
+                  break;
+               }
+            action.unlatch(mapblk);
+            action.unpin(mapblk);
+         }
+         action.commit();
+         if (hint != null && from <= hint)
+            hints.replace(filename, hint, (found < 0) ? tblsize : found);
+         else if (hint == null && from == 0)
+            hints.putIfAbsent(filename, (found < 0) ? tblsize : found);
+      }
+      catch (RuntimeException e) {
+         action.rollback();
+         throw e;
+      }
+      for (int i=0; found < 0 && i < RECHECKS; i++)
+         found = recheck(from);
+      return found;
+   }
+   
+   /**
+    * Reads the next block of the table in turn,
+    * and marks it free if it has an empty slot.
+    * @param from the block number where the search began
+    * @return the number of the block if it is not full
+    * and not before the specified one, or -1
+    */
+   private int recheck(int from) {
+      int blknum;
+      boolean full;
+      Transaction action = tx.beginAction();
+      try {
+         int tblsize = action.size(tblfile);
+         if (tblsize == 0) {
+            action.commit();
+            return -1;
+         }
+         blknum = rechecks.getOrDefault(filename, 0) % tblsize;
+         rechecks.put(filename, blknum + 1);
+         RecordPage rp = new RecordPage(new Block(tblfile, blknum), ti, action);
+         full = rp.isFull();
+         rp.close();
+         action.commit();
+      }
+      catch (RuntimeException e) {
+         action.rollback();
+         throw e;
+      }
+      if (full)
+         return -1;
+      setFree(blknum);
+      return (blknum >= from) ? blknum : -1;
+   }
+   
+   /**
+    * Marks the specified block of the table as full.
+    * @param blknum the number of the block
+    */
+   void setFull(int blknum) {
+      set(blknum, FULL);
+      hints.replace(filename, blknum, blknum + 1);
+   }
+   
+   /**
+    * Marks the specified block of the table as
+    * possibly having an empty slot.
+    * @param blknum the number of the block
+    */
+   void setFree(int blknum) {
+      set(blknum, FREE);
+      hints.merge(filename, blknum, Math::min);
+   }
+   
+   /**
+    * Sets the map's entry for the specified block in an action,
+    * appending blocks to the map if necessary.
+    * Nothing is written if the entry already has the value.
+    */
+   private void set(int blknum, int val) {
+      int mapblknum = blknum / entries;
+      Transaction action = tx.beginAction();
+      try {
+         int mapsize = action.size(filename);
+         if (mapblknum < mapsize || val == FULL) {
+            for (; mapsize <= mapblknum; mapsize++)
+               action.append(filename, new FreeSpaceFormatter());
+            Block mapblk = new Block(filename, mapblknum);
+            action.pin(mapblk);
+            action.xLatch(mapblk);
+            if (action.getInt(mapblk, position(blknum)) != val)
+               action.setInt(mapblk, position(blknum), val);
+         }
+         action.commit();
+      }
+      catch (RuntimeException e) {
+         action.rollback();
+         throw e;
+      }
+   }
+   
+   private int position(int blknum) {
+      return (blknum % entries) * INT_SIZE;
+   }
+   
+   /**
+    * Formats a new block of the map,
+    * in which every block is free.
+    */
+   private static class FreeSpaceFormatter implements PageFormatter {
+      public void format(Page page) {
+         for (int pos=0; pos+INT_SIZE<=DATA_SIZE(); pos += INT_SIZE)
+            page.setInt(pos, FREE);
+      }
+   }
+}
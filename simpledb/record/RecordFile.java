@@ -1,12 +1,33 @@
 package simpledb.record;
 
 import simpledb.file.Block;
+import simpledb.buffer.BufferRing;
 import simpledb.tx.Transaction;
 
 /**
  * Manages a file of records.
  * There are methods for iterating through the records
  * and accessing their contents.
+ * A record file may be given a {@link BufferRing},
+ * in which case the blocks it reads and appends
+ * recycle a few buffers instead of filling the pool.
+ * <P>
+ * A table keeps a {@link FreeSpaceMap}, so that an insertion
+ * that does not fit in the current block goes straight to
+ * a block that has room.
+ * A temporary table has no map: it is filled by one
+ * transaction, from its first block to its last.
+ * <P>
+ * The transaction locks the table hierarchically.
+ * Moving through the records of the file gives the table an SLock,
+ * so that no other transaction can modify the records or insert
+ * new ones; a record that is accessed by its RID, or inserted,
+ * is locked by itself, under an intention lock on the table.
+ * A record file that is opened for update, in order to
+ * modify or delete the records that it moves to, locks those
+ * records one at a time instead, and keeps the locks of only
+ * the records that it modifies; the records of a slotted table
+ * are locked by page, so its table is locked as for any scan.
  * @author Edward Sciore
  */
 public class RecordFile {
@@ -15,6 +36,10 @@ public class RecordFile {
    private String filename;
    private RecordPage rp;
    private int currentblknum;
+   private BufferRing ring;
+   private FreeSpaceMap fsm = null;
+   private boolean scanning = false;
+   private boolean lockrecords = false;
    
    /**
     * Constructs an object to manage a file of records.
@@ -23,11 +48,46 @@ public class RecordFile {
     * @param tx the transaction
     */
    public RecordFile(TableInfo ti, Transaction tx) {
+      this(ti, tx, null);
+   }
+   
+   /**
+    * Constructs an object to manage a file of records,
+    * whose blocks are pinned using the specified buffer ring.
+    * If the file does not exist, it is created;
+    * a read-only transaction, which cannot create it,
+    * sees it as a file with no records.
+    * @param ti the table metadata
+    * @param tx the transaction
+    * @param ring the buffer ring, or null
+    */
+   public RecordFile(TableInfo ti, Transaction tx, BufferRing ring) {
+      this(ti, tx, ring, false);
+   }
+   
+   /**
+    * Constructs an object to manage a file of records,
+    * whose blocks are pinned using the specified buffer ring,
+    * and which may be opened for update.
+    * @param ti the table metadata
+    * @param tx the transaction
+    * @param ring the buffer ring, or null
+    * @param forupdate true if the records moved to will be modified
+    */
+   public RecordFile(TableInfo ti, Transaction tx, BufferRing ring, boolean forupdate) {
       this.ti = ti;
       this.tx = tx;
+      this.ring = ring;
       filename = ti.fileName();
-      if (tx.size(filename) == 0)
+      if (!filename.startsWith("temp"))
+         fsm = new FreeSpaceMap(ti, tx);
+      lockrecords = forupdate && fsm != null && !ti.isSlotted();
+      tx.isLockTable(filename);
+      if (tx.size(filename) == 0) {
+         if (tx.isReadOnly())
+            return;
          appendBlock();
+      }
       moveTo(0);
    }
    
@@ -35,7 +95,8 @@ public class RecordFile {
     * Closes the record file.
     */
    public void close() {
-      rp.close();
+      if (rp != null)
+         rp.close();
    }
    
    /**
@@ -43,15 +104,25 @@ public class RecordFile {
     * will wind up at the first record. 
     */
    public void beforeFirst() {
-      moveTo(0);
+      if (rp != null)
+         moveTo(0);
    }
    
    /**
     * Moves to the next record. Returns false if there
     * is no next record.
+    * The first call obtains an SLock on the table,
+    * unless the file locks the records it moves to.
     * @return false if there is no next record.
     */
    public boolean next() {
+      if (!scanning) {
+         if (!lockrecords)
+            tx.sLockTable(filename);
+         scanning = true;
+      }
+      if (rp == null)
+         return false;
       while (true) {
          if (rp.next())
             return true;
@@ -107,22 +178,39 @@ public class RecordFile {
     * the next record.
     * Calls to methods on a deleted record 
     * have unspecified behavior.
+    * The record's block is marked free in the free-space map.
     */
    public void delete() {
       rp.delete();
+      if (fsm != null)
+         fsm.setFree(currentblknum);
    }
    
    /**
-    * Inserts a new, blank record somewhere in the file
-    * beginning at the current record.
+    * Inserts a new, blank record somewhere in the file.
+    * The record is inserted into the current block if it fits;
+    * otherwise the block is marked full, if it is, and the
+    * free-space map is searched for a block that has room.
     * If the new record does not fit into an existing block,
     * then a new block is appended to the file.
     */
    public void insert() {
+      if (rp == null)
+         moveTo(appendBlock());
+      int from = 0;
       while (!rp.insert()) {
-         if (atLastBlock())
-            appendBlock();
-         moveTo(currentblknum + 1);
+         int blknum;
+         if (fsm == null)
+            blknum = atLastBlock() ? appendBlock() : currentblknum + 1;
+         else {
+            if (rp.isFull())
+               fsm.setFull(currentblknum);
+            blknum = fsm.findFree(from);
+            if (blknum < 0)
+               blknum = appendBlock();
+            from = blknum + 1;
+         }
+         moveTo(blknum);
       }
    }
    
@@ -150,15 +238,15 @@ public class RecordFile {
          rp.close();
       currentblknum = b;
       Block blk = new Block(filename, currentblknum);
-      rp = new RecordPage(blk, ti, tx);
+      rp = new RecordPage(blk, ti, tx, ring, lockrecords);
    }
    
    private boolean atLastBlock() {
       return currentblknum == tx.size(filename) - 1;
    }
    
-   private void appendBlock() {
+   private int appendBlock() {
       RecordFormatter fmtr = new RecordFormatter(ti);
-      tx.append(filename, fmtr);
+      return tx.append(filename, fmtr, ring).number();
    }
 }
\ No newline at end of file
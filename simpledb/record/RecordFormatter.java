@@ -28,11 +28,18 @@ class RecordFormatter implements PageFormatter {
     * Each record slot is assigned a flag of EMPTY.
     * Each integer field is given a value of 0, and
     * each string field is given a value of "".
+    * A slotted page is formatted with no slots, and
+    * its record data beginning at the end of the page.
     * @see simpledb.buffer.PageFormatter#format(simpledb.file.Page)
     */
    public void format(Page page) {
+      if (ti.isSlotted()) {
+         page.setInt(0, 0);
+         page.setInt(INT_SIZE, DATA_SIZE());
+         return;
+      }
       int recsize = ti.recordLength() + INT_SIZE;
-      for (int pos=0; pos+recsize<=BLOCK_SIZE; pos += recsize) {
+      for (int pos=0; pos+recsize<=DATA_SIZE(); pos += recsize) {
          page.setInt(pos, EMPTY);
          makeDefaultRecord(page, pos);
       }
@@ -2,10 +2,22 @@ package simpledb.record;
 
 import static simpledb.file.Page.*;
 import simpledb.file.Block;
+import simpledb.buffer.BufferRing;
 import simpledb.tx.Transaction;
 
 /**
  * Manages the placement and access of records in a block.
+ * Each record that is read or modified is locked by the
+ * transaction, unless the transaction has locked the table.
+ * Moving through the records of the block reads the
+ * flags of records that are not locked, so it requires
+ * the transaction to have an SLock on the table,
+ * unless the page locks the records as it reaches them:
+ * each record is then read under an SLock, which is released
+ * when the page moves on if the record was not modified
+ * and the transaction had not locked it before.
+ * The records of a table that is stored in slotted pages
+ * are managed by a {@link SlottedPage} instead.
  * @author Edward Sciore
  */
 public class RecordPage {
@@ -16,6 +28,10 @@ public class RecordPage {
    private Transaction tx;
    private int slotsize;
    private int currentslot = -1;
+   private SlottedPage slotted = null;
+   private boolean lockrecords = false;
+   // true if moving to the current record locked it
+   private boolean currentlocked = false;
    
    /** Creates the record manager for the specified block.
      * The current record is set to be prior to the first one.
@@ -24,11 +40,38 @@ public class RecordPage {
      * @param tx the transaction performing the operations
      */
    public RecordPage(Block blk, TableInfo ti, Transaction tx) {
+      this(blk, ti, tx, null);
+   }
+   
+   /** Creates the record manager for the specified block,
+     * pinning the block with the specified buffer ring.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param ring the scan's buffer ring, or null
+     */
+   public RecordPage(Block blk, TableInfo ti, Transaction tx, BufferRing ring) {
+      this(blk, ti, tx, ring, false);
+   }
+   
+   /** Creates the record manager for the specified block,
+     * pinning the block with the specified buffer ring,
+     * which may lock the records that it moves to.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param ring the scan's buffer ring, or null
+     * @param lockrecords true if moving to a record locks it
+     */
+   public RecordPage(Block blk, TableInfo ti, Transaction tx, BufferRing ring, boolean lockrecords) {
       this.blk = blk;
+      this.lockrecords = lockrecords;
       this.ti = ti;
       this.tx = tx;
       slotsize = ti.recordLength() + INT_SIZE;
-      tx.pin(blk);
+      tx.pin(blk, ring);
+      if (ti.isSlotted())
+         slotted = new SlottedPage(blk, ti, tx);
   }
    
    /**
@@ -36,6 +79,7 @@ public class RecordPage {
     */
    public void close() {
       if (blk != null) {
+         releaseCurrent();
     	  tx.unpin(blk);
     	  blk = null;
       }
@@ -46,7 +90,20 @@ public class RecordPage {
     * @return false if there is no next record.
     */
    public boolean next() {
-      return searchFor(INUSE);
+      if (slotted != null)
+         return slotted.next();
+      if (!lockrecords)
+         return searchFor(INUSE);
+      releaseCurrent();
+      currentslot++;
+      while (isValidSlot()) {
+         currentlocked = tx.sLockRecord(blk, currentslot);
+         if (tx.getInt(blk, currentpos()) == INUSE)
+            return true;
+         releaseCurrent();
+         currentslot++;
+      }
+      return false;
    }
    
    /**
@@ -56,6 +113,9 @@ public class RecordPage {
     * @return the integer stored in that field
     */
    public int getInt(String fldname) {
+      if (slotted != null)
+         return slotted.getInt(fldname);
+      tx.sLockRecord(blk, currentslot);
       int position = fieldpos(fldname);
       return tx.getInt(blk, position);
    }
@@ -67,6 +127,9 @@ public class RecordPage {
     * @return the string stored in that field
     */
    public String getString(String fldname) {
+      if (slotted != null)
+         return slotted.getString(fldname);
+      tx.sLockRecord(blk, currentslot);
       int position = fieldpos(fldname);
       return tx.getString(blk, position);
    }
@@ -78,6 +141,11 @@ public class RecordPage {
     * @param val the integer value stored in that field
     */
    public void setInt(String fldname, int val) {
+      if (slotted != null) {
+         slotted.setInt(fldname, val);
+         return;
+      }
+      tx.xLockRecord(blk, currentslot);
       int position = fieldpos(fldname);
       tx.setInt(blk, position, val);
    }
@@ -89,6 +157,11 @@ public class RecordPage {
     * @param val the string value stored in that field
     */
    public void setString(String fldname, String val) {
+      if (slotted != null) {
+         slotted.setString(fldname, val);
+         return;
+      }
+      tx.xLockRecord(blk, currentslot);
       int position = fieldpos(fldname);
       tx.setString(blk, position, val);
    }
@@ -100,6 +173,11 @@ public class RecordPage {
     * To get to the next record, call next().
     */
    public void delete() {
+      if (slotted != null) {
+         slotted.delete();
+         return;
+      }
+      tx.xLockRecord(blk, currentslot);
       int position = currentpos();
       tx.setInt(blk, position, EMPTY);
    }
@@ -107,16 +185,39 @@ public class RecordPage {
    /**
     * Inserts a new, blank record somewhere in the page.
     * Return false if there were no available slots.
+    * An empty slot is only used if the transaction can lock
+    * it without waiting: a slot that another transaction
+    * has locked may hold a record whose deletion is not
+    * yet committed.
     * @return false if the insertion was not possible
     */
    public boolean insert() {
+      if (slotted != null)
+         return slotted.insert();
       currentslot = -1;
-      boolean found = searchFor(EMPTY);
-      if (found) {
+      while (searchFor(EMPTY)) {
          int position = currentpos();
-         tx.setInt(blk, position, INUSE);
+         if (tx.tryXLockRecord(blk, currentslot) && tx.getInt(blk, position) == EMPTY) {
+            tx.setInt(blk, position, INUSE);
+            return true;
+         }
       }
-      return found;
+      return false;
+   }
+   
+   /**
+    * Returns true if the page has no empty slot.
+    * The flags are read without locks,
+    * so the answer is only a hint.
+    * @return true if every slot of the page is in use
+    */
+   public boolean isFull() {
+      if (slotted != null)
+         return slotted.isFull();
+      for (int pos=0; pos+slotsize<=DATA_SIZE(); pos += slotsize)
+         if (tx.getInt(blk, pos) == EMPTY)
+            return false;
+      return true;
    }
    
    /**
@@ -125,6 +226,9 @@ public class RecordPage {
     * @param id the ID of the record within the page.
     */
    public void moveToId(int id) {
+      if (slotted != null)
+         slotted.moveToId(id);
+      releaseCurrent();
       currentslot = id;
    }
    
@@ -133,6 +237,8 @@ public class RecordPage {
     * @return the ID of the current record
     */
    public int currentId() {
+      if (slotted != null)
+         return slotted.currentId();
       return currentslot;
    }
    
@@ -146,7 +252,18 @@ public class RecordPage {
    }
    
    private boolean isValidSlot() {
-      return currentpos() + slotsize <= BLOCK_SIZE;
+      return currentpos() + slotsize <= DATA_SIZE();
+   }
+   
+   /**
+    * Releases the SLock on the current record, if moving
+    * to the record locked it; an XLock on a
+    * record that has been modified is kept.
+    */
+   private void releaseCurrent() {
+      if (currentlocked)
+         tx.sUnlockRecord(blk, currentslot);
+      currentlocked = false;
    }
    
    private boolean searchFor(int flag) {
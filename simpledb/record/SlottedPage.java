@@ -0,0 +1,496 @@
+package simpledb.record;
+
+import static java.sql.Types.INTEGER;
+import static simpledb.file.Page.*;
+import static simpledb.record.RecordPage.*;
+import simpledb.file.Block;
+import simpledb.tx.Transaction;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Manages the variable-length records of a block of a table
+ * that is stored in slotted pages.
+ * The page begins with the number of its slots and the offset
+ * at which its record data begins, followed by the slot directory,
+ * which holds the flag, offset and length of the record in each slot.
+ * The records are stored at the end of the page, and the data
+ * grows toward the directory.
+ * A record holds its fields in the order of their offsets
+ * (see {@link TableInfo#offset(String)}):
+ * an integer in four bytes, and a string as the length of
+ * its encoding followed by the encoding, so that a string
+ * only takes the space it needs.
+ * <P>
+ * A string that changes its length is written to a new place
+ * in the page, and the space of the old record is reclaimed
+ * by compacting the page when the page needs it.
+ * A record that no longer fits in its page is moved to another
+ * block of the table: the slot of the record becomes FORWARDED,
+ * and holds the block and slot where the record now is,
+ * which are MOVED; the ID of the record does not change.
+ * <P>
+ * Because compaction moves the records of the page,
+ * a transaction that reads or modifies a record locks the
+ * whole page (as slot -1 of the block), and the bytes of the
+ * page are logged physically.
+ * A slotted table therefore loses the record-level concurrency
+ * of a table of fixed-length records: once a transaction has read
+ * one record of a page, no other transaction can modify any record
+ * of it, and their insertions go to other blocks.
+ * The page is pinned by its {@link RecordPage};
+ * the block that a forwarded record has moved to is
+ * pinned and locked for each access.
+ * @author Edward Sciore
+ */
+class SlottedPage {
+   public static final int MOVED = 2, FORWARDED = 3;
+   
+   /**
+    * The size of the page header, and of each slot of the directory.
+    */
+   static final int HEADER_SIZE = 2 * INT_SIZE, SLOT_SIZE = 3 * INT_SIZE;
+   
+   // the lock on slot -1 of a block, which covers the whole page
+   private static final int WHOLE_PAGE = -1;
+   // the positions of the header values, and of the values in a slot
+   private static final int NUMSLOTS = 0, DATASTART = INT_SIZE;
+   private static final int FLAG = 0, OFFSET = INT_SIZE, LENGTH = 2 * INT_SIZE;
+   
+   private Block blk;
+   private TableInfo ti;
+   private Transaction tx;
+   private List<String> fields;
+   private int reserve;
+   private int currentslot = -1;
+   // the block and slot of the current record's data,
+   // which differ from the current ones if the record has moved
+   private Block datablk;
+   private int dataslot;
+   
+   /** Creates the record manager for the specified block,
+     * which the caller has pinned.
+     * The current record is set to be prior to the first one.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     */
+   SlottedPage(Block blk, TableInfo ti, Transaction tx) {
+      this.blk = blk;
+      this.ti = ti;
+      this.tx = tx;
+      fields = new ArrayList<String>(ti.schema().fields());
+      fields.sort((f1, f2) -> ti.offset(f1) - ti.offset(f2));
+      // the room kept for a new record, unless a record
+      // of the maximum length cannot fit in a page
+      reserve = Math.min(ti.recordLength(), DATA_SIZE() - HEADER_SIZE - SLOT_SIZE);
+   }
+   
+   /**
+    * Moves to the next record in the block.
+    * The data of a record that has moved
+    * to this block is skipped.
+    * @return false if there is no next record.
+    */
+   boolean next() {
+      currentslot++;
+      int numslots = tx.getInt(blk, NUMSLOTS);
+      for (; currentslot < numslots; currentslot++) {
+         int flag = tx.getInt(blk, slotpos(currentslot) + FLAG);
+         if (flag == INUSE || flag == FORWARDED)
+            return true;
+      }
+      return false;
+   }
+   
+   /**
+    * Returns the integer value stored for the
+    * specified field of the current record.
+    * @param fldname the name of the field.
+    * @return the integer stored in that field
+    */
+   int getInt(String fldname) {
+      tx.sLockRecord(blk, WHOLE_PAGE);
+      locate(false);
+      try {
+         return tx.getInt(datablk, fieldpos(fldname));
+      }
+      finally {
+         release();
+      }
+   }
+   
+   /**
+    * Returns the string value stored for the
+    * specified field of the current record.
+    * @param fldname the name of the field.
+    * @return the string stored in that field
+    */
+   String getString(String fldname) {
+      tx.sLockRecord(blk, WHOLE_PAGE);
+      locate(false);
+      try {
+         return tx.getString(datablk, fieldpos(fldname));
+      }
+      finally {
+         release();
+      }
+   }
+   
+   /**
+    * Stores an integer at the specified field
+    * of the current record.
+    * @param fldname the name of the field
+    * @param val the integer value stored in that field
+    */
+   void setInt(String fldname, int val) {
+      tx.xLockRecord(blk, WHOLE_PAGE);
+      locate(true);
+      try {
+         tx.setInt(datablk, fieldpos(fldname), val);
+      }
+      finally {
+         release();
+      }
+   }
+   
+   /**
+    * Stores a string at the specified field
+    * of the current record.
+    * A string of the same length as the old one is
+    * written in place; otherwise the record is rewritten
+    * with the new string, in its page if the page has room,
+    * and in another block if it does not.
+    * @param fldname the name of the field
+    * @param val the string value stored in that field
+    */
+   void setString(String fldname, String val) {
+      tx.xLockRecord(blk, WHOLE_PAGE);
+      locate(true);
+      try {
+         int pos = fieldpos(fldname);
+         int oldlen = tx.getInt(datablk, pos);
+         byte[] bytes = val.getBytes();
+         if (bytes.length == oldlen) {
+            tx.setString(datablk, pos, val);
+            return;
+         }
+         int recpos = tx.getInt(datablk, slotpos(dataslot) + OFFSET);
+         int reclen = tx.getInt(datablk, slotpos(dataslot) + LENGTH);
+         byte[] rec = tx.getBytes(datablk, recpos, reclen);
+         int before = pos - recpos;
+         int after = before + INT_SIZE + oldlen;
+         byte[] newrec = new byte[reclen - oldlen + bytes.length];
+         System.arraycopy(rec, 0, newrec, 0, before);
+         ByteBuffer.wrap(newrec).putInt(before, bytes.length);
+         System.arraycopy(bytes, 0, newrec, before + INT_SIZE, bytes.length);
+         System.arraycopy(rec, after, newrec, before + INT_SIZE + bytes.length, reclen - after);
+         rewrite(newrec);
+      }
+      finally {
+         release();
+      }
+   }
+   
+   /**
+    * Deletes the current record, by marking its slot
+    * (and the slot of its data, if it has moved) as empty.
+    * The space of the record is reclaimed when the
+    * page is compacted.
+    */
+   void delete() {
+      tx.xLockRecord(blk, WHOLE_PAGE);
+      locate(true);
+      try {
+         if (!datablk.equals(blk))
+            free(datablk, dataslot);
+         tx.setInt(blk, slotpos(currentslot) + FLAG, EMPTY);
+      }
+      finally {
+         release();
+      }
+   }
+   
+   /**
+    * Inserts a new, blank record in the page,
+    * whose integers are 0 and whose strings are empty.
+    * The page must have room for a record of the maximum
+    * length, so that the values of the new record fit in it.
+    * The page is only used if the transaction can lock it
+    * without waiting.
+    * @return false if the insertion was not possible
+    */
+   boolean insert() {
+      currentslot = -1;
+      if (!tx.tryXLockRecord(blk, WHOLE_PAGE))
+         return false;
+      int numslots = tx.getInt(blk, NUMSLOTS);
+      int slot = emptySlot(blk);
+      int needed = reserve + ((slot == numslots) ? SLOT_SIZE : 0);
+      if (!makeRoom(blk, needed, -1))
+         return false;
+      if (slot == numslots)
+         tx.setInt(blk, NUMSLOTS, numslots + 1);
+      write(blk, slot, new byte[fields.size() * INT_SIZE]);
+      tx.setInt(blk, slotpos(slot) + FLAG, INUSE);
+      currentslot = slot;
+      return true;
+   }
+   
+   /**
+    * Returns true if the page does not have room for
+    * a new record, even if it were compacted.
+    * The page is read without locks,
+    * so the answer is only a hint.
+    * @return true if a record cannot be inserted in the page
+    */
+   boolean isFull() {
+      int numslots = tx.getInt(blk, NUMSLOTS);
+      int needed = reserve + ((emptySlot(blk) == numslots) ? SLOT_SIZE : 0);
+      return freeSpace(blk, -1) < needed;
+   }
+   
+   /**
+    * Sets the current record to be the record having the
+    * specified ID.
+    * @param id the ID of the record within the page.
+    */
+   void moveToId(int id) {
+      currentslot = id;
+   }
+   
+   /**
+    * Returns the ID of the current record.
+    * @return the ID of the current record
+    */
+   int currentId() {
+      return currentslot;
+   }
+   
+   /**
+    * Finds the block and slot of the current record's data.
+    * If the record has moved to another block,
+    * that block is locked and pinned.
+    */
+   private void locate(boolean exclusive) {
+      int pos = slotpos(currentslot);
+      if (tx.getInt(blk, pos + FLAG) != FORWARDED) {
+         datablk = blk;
+         dataslot = currentslot;
+         return;
+      }
+      datablk = new Block(blk.fileName(), tx.getInt(blk, pos + OFFSET));
+      dataslot = tx.getInt(blk, pos + LENGTH);
+      if (exclusive)
+         tx.xLockRecord(datablk, WHOLE_PAGE);
+      else
+         tx.sLockRecord(datablk, WHOLE_PAGE);
+      tx.pin(datablk);
+   }
+   
+   /**
+    * Unpins the block of the current record's data,
+    * if it was pinned by locate.
+    */
+   private void release() {
+      if (!datablk.equals(blk))
+         tx.unpin(datablk);
+      datablk = null;
+   }
+   
+   /**
+    * Returns the position of the specified field
+    * of the current record's data, which is found by
+    * skipping the strings of the preceding fields.
+    */
+   private int fieldpos(String fldname) {
+      int pos = tx.getInt(datablk, slotpos(dataslot) + OFFSET);
+      for (String fld : fields) {
+         if (fld.equals(fldname))
+            return pos;
+         pos += INT_SIZE;
+         if (ti.schema().type(fld) != INTEGER)
+            pos += tx.getInt(datablk, pos - INT_SIZE);
+      }
+      throw new RuntimeException("field " + fldname + " not found.");
+   }
+   
+   /**
+    * Replaces the data of the current record, which has
+    * changed its length.
+    * The record is rewritten in the page of its data if
+    * there is room, or else in its own page if it has moved;
+    * otherwise the record moves to another block.
+    */
+   private void rewrite(byte[] rec) {
+      if (rec.length > DATA_SIZE() - HEADER_SIZE - SLOT_SIZE)
+         throw new RuntimeException("record too large for a block");
+      if (makeRoom(datablk, rec.length, dataslot))
+         write(datablk, dataslot, rec);
+      else if (!datablk.equals(blk) && makeRoom(blk, rec.length, -1)) {
+         free(datablk, dataslot);
+         write(blk, currentslot, rec);
+         tx.setInt(blk, slotpos(currentslot) + FLAG, INUSE);
+      }
+      else
+         moveRecord(rec);
+   }
+   
+   /**
+    * Moves the current record's data to a new slot of another block
+    * that has room for it, which is found in the free-space map
+    * of the table, or appended to the table.
+    * A block is only used if the transaction can lock it
+    * without waiting; a block that does not have room
+    * is marked full, so that it is not searched again.
+    */
+   private void moveRecord(byte[] rec) {
+      FreeSpaceMap fsm = new FreeSpaceMap(ti, tx);
+      int from = 0;
+      while (true) {
+         int blknum = fsm.findFree(from);
+         if (blknum < 0)
+            blknum = tx.append(blk.fileName(), new RecordFormatter(ti)).number();
+         from = blknum + 1;
+         Block target = new Block(blk.fileName(), blknum);
+         if (target.equals(blk) || target.equals(datablk) || !tx.tryXLockRecord(target, WHOLE_PAGE))
+            continue;
+         tx.pin(target);
+         int numslots = tx.getInt(target, NUMSLOTS);
+         int slot = emptySlot(target);
+         int needed = rec.length + ((slot == numslots) ? SLOT_SIZE : 0);
+         if (makeRoom(target, needed, -1)) {
+            if (slot == numslots)
+               tx.setInt(target, NUMSLOTS, numslots + 1);
+            write(target, slot, rec);
+            tx.setInt(target, slotpos(slot) + FLAG, MOVED);
+            if (!datablk.equals(blk))
+               free(datablk, dataslot);
+            int pos = slotpos(currentslot);
+            tx.setInt(blk, pos + OFFSET, blknum);
+            tx.setInt(blk, pos + LENGTH, slot);
+            tx.setInt(blk, pos + FLAG, FORWARDED);
+            tx.unpin(target);
+            return;
+         }
+         tx.unpin(target);
+         fsm.setFull(blknum);
+      }
+   }
+   
+   /**
+    * Marks the slot of a moved record's data as empty,
+    * and its block as having room.
+    */
+   private void free(Block b, int slot) {
+      tx.setInt(b, slotpos(slot) + FLAG, EMPTY);
+      new FreeSpaceMap(ti, tx).setFree(b.number());
+   }
+   
+   /**
+    * Writes the data of a record in front of the
+    * other records of the page, and points the
+    * specified slot to it.
+    * The caller has made room for it.
+    */
+   private void write(Block b, int slot, byte[] rec) {
+      int pos = tx.getInt(b, DATASTART) - rec.length;
+      writeBytes(b, pos, rec);
+      tx.setInt(b, DATASTART, pos);
+      tx.setInt(b, slotpos(slot) + OFFSET, pos);
+      tx.setInt(b, slotpos(slot) + LENGTH, rec.length);
+   }
+   
+   /**
+    * Ensures that the page has the specified number of contiguous
+    * free bytes between its directory and its data,
+    * compacting the page if necessary.
+    * The data of the specified slot, if any, is not kept,
+    * because it is about to be replaced.
+    * @return false if the page does not have enough room
+    */
+   private boolean makeRoom(Block b, int needed, int deadslot) {
+      int numslots = tx.getInt(b, NUMSLOTS);
+      int dirend = slotpos(numslots);
+      if (tx.getInt(b, DATASTART) - dirend >= needed)
+         return true;
+      if (freeSpace(b, deadslot) < needed)
+         return false;
+      compact(b, deadslot);
+      return true;
+   }
+   
+   /**
+    * Returns the number of bytes of the page that are
+    * not used by its directory or by the data of its records.
+    */
+   private int freeSpace(Block b, int deadslot) {
+      int numslots = tx.getInt(b, NUMSLOTS);
+      int free = DATA_SIZE() - slotpos(numslots);
+      for (int slot=0; slot<numslots; slot++) {
+         int flag = tx.getInt(b, slotpos(slot) + FLAG);
+         if ((flag == INUSE || flag == MOVED) && slot != deadslot)
+            free -= tx.getInt(b, slotpos(slot) + LENGTH);
+      }
+      return free;
+   }
+   
+   /**
+    * Compacts the page by moving the data of its records
+    * to the end of the page, in the same order,
+    * so that all of its free space is contiguous.
+    */
+   private void compact(Block b, int deadslot) {
+      int numslots = tx.getInt(b, NUMSLOTS);
+      int datastart = tx.getInt(b, DATASTART);
+      byte[] olddata = tx.getBytes(b, datastart, DATA_SIZE() - datastart);
+      List<int[]> recs = new ArrayList<int[]>();
+      for (int slot=0; slot<numslots; slot++) {
+         int pos = slotpos(slot);
+         int flag = tx.getInt(b, pos + FLAG);
+         if ((flag == INUSE || flag == MOVED) && slot != deadslot)
+            recs.add(new int[] {slot, tx.getInt(b, pos + OFFSET), tx.getInt(b, pos + LENGTH)});
+      }
+      recs.sort((r1, r2) -> r2[1] - r1[1]);
+      byte[] newdata = new byte[olddata.length];
+      int newstart = DATA_SIZE();
+      for (int[] r : recs) {
+         newstart -= r[2];
+         System.arraycopy(olddata, r[1] - datastart, newdata, newstart - datastart, r[2]);
+         if (newstart != r[1])
+            tx.setInt(b, slotpos(r[0]) + OFFSET, newstart);
+      }
+      writeBytes(b, newstart, Arrays.copyOfRange(newdata, newstart - datastart, newdata.length));
+      tx.setInt(b, DATASTART, newstart);
+   }
+   
+   /**
+    * Writes the bytes to the page in pieces, each of which
+    * is logged with its old value, and must fit in a log page.
+    * A piece that is not changed is not written.
+    */
+   private void writeBytes(Block b, int pos, byte[] bytes) {
+      int chunk = BLOCK_SIZE / 8;
+      for (int i=0; i<bytes.length; i += chunk) {
+         byte[] piece = Arrays.copyOfRange(bytes, i, Math.min(i + chunk, bytes.length));
+         if (!Arrays.equals(piece, tx.getBytes(b, pos + i, piece.length)))
+            tx.setBytes(b, pos + i, piece);
+      }
+   }
+   
+   /**
+    * Returns the first empty slot of the page,
+    * or the number of slots if none is empty.
+    */
+   private int emptySlot(Block b) {
+      int numslots = tx.getInt(b, NUMSLOTS);
+      int slot = 0;
+      while (slot < numslots && tx.getInt(b, slotpos(slot) + FLAG) != EMPTY)
+         slot++;
+      return slot;
+   }
+   
+   private int slotpos(int slot) {
+      return HEADER_SIZE + slot * SLOT_SIZE;
+   }
+}
@@ -6,6 +6,9 @@ import java.util.*;
 
 /**
  * The metadata about a table and its records.
+ * The records of a table are either fixed-length records
+ * in fixed-size slots, or variable-length records in
+ * slotted pages (see {@link SlottedPage}).
  * @author Edward Sciore
  */
 public class TableInfo {
@@ -13,6 +16,7 @@ public class TableInfo {
    private Map<String,Integer> offsets;
    private int recordlen;
    private String tblname;
+   private boolean slotted;
    
    /**
     * Creates a TableInfo object, given a table name
@@ -23,8 +27,24 @@ public class TableInfo {
     * @param schema the schema of the table's records
     */
    public TableInfo(String tblname, Schema schema) {
+      this(tblname, schema, false);
+   }
+   
+   /**
+    * Creates a TableInfo object, given a table name
+    * and schema, for a table whose records are either
+    * fixed-length or stored in slotted pages.
+    * The constructor calculates the physical offset
+    * of each field; in a slotted page, the offsets
+    * only determine the order of the fields.
+    * @param tblname the name of the table
+    * @param schema the schema of the table's records
+    * @param slotted true if the records are stored in slotted pages
+    */
+   public TableInfo(String tblname, Schema schema, boolean slotted) {
       this.schema = schema;
       this.tblname = tblname;
+      this.slotted = slotted;
       offsets  = new HashMap<String,Integer>();
       int pos = 0;
       for (String fldname : schema.fields()) {
@@ -45,10 +65,27 @@ public class TableInfo {
     * @param recordlen the already-calculated length of each record
     */
    public TableInfo(String tblname, Schema schema, Map<String,Integer> offsets, int recordlen) {
+      this(tblname, schema, offsets, recordlen, false);
+   }
+   
+   /**
+    * Creates a TableInfo object from the 
+    * specified metadata, for a table whose records
+    * are either fixed-length or stored in slotted pages.
+    * This constructor is used when the metadata
+    * is retrieved from the catalog.
+    * @param tblname the name of the table
+    * @param schema the schema of the table's records
+    * @param offsets the already-calculated offsets of the fields within a record
+    * @param recordlen the already-calculated length of each record
+    * @param slotted true if the records are stored in slotted pages
+    */
+   public TableInfo(String tblname, Schema schema, Map<String,Integer> offsets, int recordlen, boolean slotted) {
       this.tblname   = tblname;
       this.schema    = schema;
       this.offsets   = offsets;
       this.recordlen = recordlen;
+      this.slotted   = slotted;
    }
    
    /**
@@ -61,6 +98,17 @@ public class TableInfo {
       return tblname + ".tbl";
    }
    
+   /**
+    * Returns the name of the file that holds
+    * the table's free-space map.
+    * Currently, the filename is the table name
+    * followed by ".fsm".
+    * @return the name of the table's free-space map file
+    */
+   public String freeSpaceFileName() {
+      return tblname + ".fsm";
+   }
+   
    /**
     * Returns the schema of the table's records
     * @return the table's record schema
@@ -80,12 +128,38 @@ public class TableInfo {
    
    /**
     * Returns the length of a record, in bytes.
+    * In a slotted page, this is the maximum length of a record,
+    * whose strings have their maximum lengths.
     * @return the length in bytes of a record
     */
    public int recordLength() {
       return recordlen;
    }
    
+   /**
+    * Returns true if the table's records are variable-length
+    * records stored in slotted pages.
+    * @return true if the table has slotted pages
+    */
+   public boolean isSlotted() {
+      return slotted;
+   }
+   
+   /**
+    * Returns the number of records that fit in a block
+    * of a record file.
+    * Each slot holds a record preceded by its in-use flag,
+    * and the number depends on the block size of the database.
+    * A slotted page holds at least this many records,
+    * each with its entry in the slot directory.
+    * @return the number of records per block
+    */
+   public int recordsPerBlock() {
+      if (slotted)
+         return (DATA_SIZE() - SlottedPage.HEADER_SIZE) / (recordlen + SlottedPage.SLOT_SIZE);
+      return DATA_SIZE() / (recordlen + INT_SIZE);
+   }
+   
    private int lengthInBytes(String fldname) {
       int fldtype = schema.type(fldname);
       if (fldtype == INTEGER)
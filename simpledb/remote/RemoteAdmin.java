@@ -0,0 +1,16 @@
+package simpledb.remote;
+
+import java.rmi.*;
+
+/**
+ * The RMI remote interface for administering a running server.
+ * Unlike the other remote interfaces, it does not
+ * correspond to a JDBC interface.
+ * @author Edward Sciore
+ */
+public interface RemoteAdmin extends Remote {
+   public int bufferSize() throws RemoteException;
+   public int resizeBuffers(String size) throws RemoteException;
+   public long bufferHits() throws RemoteException;
+   public long bufferMisses() throws RemoteException;
+}
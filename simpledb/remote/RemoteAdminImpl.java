@@ -0,0 +1,55 @@
+package simpledb.remote;
+
+import simpledb.server.SimpleDB;
+import simpledb.buffer.BufferMgr;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * The RMI server-side implementation of RemoteAdmin.
+ * @author Edward Sciore
+ */
+@SuppressWarnings("serial")
+public class RemoteAdminImpl extends UnicastRemoteObject implements RemoteAdmin {
+   public RemoteAdminImpl() throws RemoteException {
+   }
+   
+   /**
+    * Returns the number of buffers in the buffer pool.
+    * @see simpledb.remote.RemoteAdmin#bufferSize()
+    */
+   public int bufferSize() throws RemoteException {
+      return SimpleDB.bufferMgr().size();
+   }
+   
+   /**
+    * Resizes the buffer pool.
+    * The size is a number of buffers, or a number of
+    * bytes with the suffix k, m or g.
+    * @see simpledb.remote.RemoteAdmin#resizeBuffers(java.lang.String)
+    * @see simpledb.buffer.BufferMgr#parseSize(String)
+    */
+   public int resizeBuffers(String size) throws RemoteException {
+      BufferMgr bm = SimpleDB.bufferMgr();
+      bm.resize(BufferMgr.parseSize(size));
+      return bm.size();
+   }
+   
+   /**
+    * Returns the number of pins since the server started
+    * that found their block in the buffer pool.
+    * @see simpledb.remote.RemoteAdmin#bufferHits()
+    */
+   public long bufferHits() throws RemoteException {
+      return SimpleDB.bufferMgr().hits();
+   }
+   
+   /**
+    * Returns the number of pins since the server started
+    * that had to read their block from disk.
+    * @see simpledb.remote.RemoteAdmin#bufferMisses()
+    */
+   public long bufferMisses() throws RemoteException {
+      return SimpleDB.bufferMgr().misses();
+   }
+}
@@ -11,6 +11,7 @@ import java.rmi.server.UnicastRemoteObject;
 @SuppressWarnings("serial") 
 class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnection {
    private Transaction tx;
+   private boolean readOnly = false;
    
    /**
     * Creates a remote connection
@@ -38,6 +39,31 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
       tx.commit();
    }
    
+   /**
+    * Returns true if the connection's transactions
+    * are read-only.
+    * @see simpledb.remote.RemoteConnection#isReadOnly()
+    */
+   public boolean isReadOnly() throws RemoteException {
+      return readOnly;
+   }
+   
+   /**
+    * Specifies whether the connection's transactions
+    * are read-only.
+    * If the mode changes, the current transaction is committed,
+    * and a new one is begun in the new mode.
+    * A read-only transaction reads a snapshot of the database
+    * without locking or logging (see {@link Transaction#Transaction(boolean)}).
+    * @see simpledb.remote.RemoteConnection#setReadOnly(boolean)
+    */
+   public void setReadOnly(boolean readOnly) throws RemoteException {
+      if (readOnly != this.readOnly) {
+         this.readOnly = readOnly;
+         commit();
+      }
+   }
+   
 // The following methods are used by the server-side classes.
    
    /**
@@ -55,7 +81,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void commit() {
       tx.commit();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
    
    /**
@@ -64,7 +90,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void rollback() {
       tx.rollback();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
 }
 
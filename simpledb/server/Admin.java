@@ -0,0 +1,39 @@
+package simpledb.server;
+
+import simpledb.remote.RemoteAdmin;
+import java.rmi.registry.*;
+
+/**
+ * A command-line tool for administering a running server.
+ * The usage is
+ * <pre>
+ *    java simpledb.server.Admin host buffersize [size]
+ * </pre>
+ * Without a size, the command prints the current number
+ * of buffers; with a size (such as 2000 or 64m), it resizes
+ * the buffer pool.
+ * The command also prints the numbers of buffer hits and misses
+ * since the server started, which allow the replacement policies
+ * (see {@link SimpleDB#BUFFER_POLICY}) to be compared on a workload.
+ * @author Edward Sciore
+ */
+public class Admin {
+   public static void main(String args[]) throws Exception {
+      if (args.length < 2 || !args[1].equals("buffersize")) {
+         System.out.println("usage: java simpledb.server.Admin host buffersize [size]");
+         return;
+      }
+      Registry reg = LocateRegistry.getRegistry(args[0]);
+      RemoteAdmin admin = (RemoteAdmin) reg.lookup("simpledbadmin");
+      int size;
+      if (args.length > 2)
+         size = admin.resizeBuffers(args[2]);
+      else
+         size = admin.bufferSize();
+      System.out.println("buffer pool has " + size + " buffers");
+      long hits = admin.bufferHits();
+      long misses = admin.bufferMisses();
+      double ratio = (hits + misses == 0) ? 0 : 100.0 * hits / (hits + misses);
+      System.out.printf("%d hits, %d misses (hit ratio %.1f%%)%n", hits, misses, ratio);
+   }
+}
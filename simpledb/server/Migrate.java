@@ -0,0 +1,222 @@
+package simpledb.server;
+
+import static java.sql.Types.INTEGER;
+import simpledb.tx.Transaction;
+import simpledb.record.*;
+import simpledb.query.TableScan;
+import simpledb.metadata.*;
+import simpledb.index.Index;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A command-line tool that rewrites a database with a new block size,
+ * in the current format.
+ * The usage is
+ * <pre>
+ *    java simpledb.server.Migrate dbname blocksize
+ * </pre>
+ * The server must not be running.
+ * The tool opens the database (recovering it if necessary),
+ * and copies the definitions of its tables, views and indexes,
+ * and the records of its tables, to a dump file.
+ * A database of an earlier format version, such as one that was
+ * created before databases had a header, is read without recovery
+ * (see {@link SimpleDB#initReadOnly(String)}), so the tool also
+ * upgrades such a database to the current format.
+ * It then creates a new database having the new block size,
+ * loads the dump into it, and rebuilds the indexes.
+ * Finally, the old database directory is renamed
+ * to <i>dbname</i>.old and the new one takes its place.
+ * @author Edward Sciore
+ */
+public class Migrate {
+   private static final List<String> CATALOG =
+         Arrays.asList("tblcat", "fldcat", "viewcat", "idxcat");
+   
+   public static void main(String args[]) throws Exception {
+      if (args.length != 2) {
+         System.out.println("usage: java simpledb.server.Migrate dbname blocksize");
+         return;
+      }
+      String dbname = args[0];
+      int blocksize = Integer.parseInt(args[1]);
+      File homedir = new File(System.getProperty("user.home"));
+      File olddir = new File(homedir, dbname);
+      File newdir = new File(homedir, dbname + ".new");
+      File backupdir = new File(homedir, dbname + ".old");
+      if (!olddir.exists())
+         throw new RuntimeException("database " + dbname + " does not exist");
+      if (newdir.exists() || backupdir.exists())
+         throw new RuntimeException("remove " + newdir + " and " + backupdir + " first");
+      
+      // no background threads, so that the old pool is quiet when it is abandoned
+      SimpleDB.HOT_PAGE_INTERVAL = 0;
+      SimpleDB.CLEAN_BUFFERS = 0;
+      SimpleDB.CHECKPOINT_INTERVAL = 0;
+      SimpleDB.CHECKPOINT_LOG_SIZE = 0;
+      
+      File dumpfile = File.createTempFile("simpledb", ".dump");
+      try {
+         SimpleDB.initReadOnly(dbname);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dumpfile)));
+         try {
+            dump(out);
+         }
+         finally {
+            out.close();
+         }
+         
+         SimpleDB.BLOCK_SIZE = blocksize;
+         SimpleDB.init(newdir.getName());
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dumpfile)));
+         try {
+            load(in);
+         }
+         finally {
+            in.close();
+         }
+         SimpleDB.bufferMgr().flushAll();
+      }
+      finally {
+         dumpfile.delete();
+      }
+      
+      if (!olddir.renameTo(backupdir) || !newdir.renameTo(olddir))
+         throw new RuntimeException("cannot rename " + newdir + " to " + olddir);
+      System.out.println("database " + dbname + " now has block size " + blocksize
+            + "; the old database is in " + backupdir);
+   }
+   
+   /**
+    * Writes the table definitions and records,
+    * followed by the view and index definitions.
+    */
+   private static void dump(DataOutputStream out) throws IOException {
+      Transaction tx = new Transaction(true);
+      MetadataMgr md = SimpleDB.mdMgr();
+      List<String> tables = new ArrayList<String>();
+      for (String[] row : catalog("tblcat", new String[] {"tblname"}, tx))
+         if (!CATALOG.contains(row[0]))
+         tables.add(row[0]);
+      
+      out.writeInt(tables.size());
+      for (String tblname : tables) {
+         TableInfo ti = md.getTableInfo(tblname, tx);
+         Schema sch = ti.schema();
+         out.writeUTF(tblname);
+         out.writeBoolean(ti.isSlotted());
+         out.writeInt(sch.fields().size());
+         for (String fldname : sch.fields()) {
+            out.writeUTF(fldname);
+            out.writeInt(sch.type(fldname));
+            out.writeInt(sch.length(fldname));
+         }
+         int count = 0;
+         TableScan ts = new TableScan(ti, tx);
+         while (ts.next()) {
+            out.writeBoolean(true);
+            for (String fldname : sch.fields())
+               if (sch.type(fldname) == INTEGER)
+               out.writeInt(ts.getInt(fldname));
+            else
+               out.writeUTF(ts.getString(fldname));
+            count++;
+         }
+         ts.close();
+         out.writeBoolean(false);
+         System.out.println("dumped " + count + " records of " + tblname);
+      }
+      
+      List<String[]> views = catalog("viewcat", new String[] {"viewname", "viewdef"}, tx);
+      out.writeInt(views.size());
+      for (String[] view : views) {
+         out.writeUTF(view[0]);
+         out.writeUTF(view[1]);
+      }
+      
+      List<String[]> indexes = catalog("idxcat", new String[] {"indexname", "tablename", "fieldname"}, tx);
+      out.writeInt(indexes.size());
+      for (String[] index : indexes) {
+         out.writeUTF(index[0]);
+         out.writeUTF(index[1]);
+         out.writeUTF(index[2]);
+      }
+      tx.commit();
+   }
+   
+   /**
+    * Re-creates the tables, views and indexes of the dump
+    * in the current database.
+    * Each table is loaded in its own transaction,
+    * and then each index is built from its table.
+    */
+   private static void load(DataInputStream in) throws IOException {
+      MetadataMgr md = SimpleDB.mdMgr();
+      int numtables = in.readInt();
+      for (int i=0; i<numtables; i++) {
+         Transaction tx = new Transaction();
+         String tblname = in.readUTF();
+         boolean slotted = in.readBoolean();
+         Schema sch = new Schema();
+         int numfields = in.readInt();
+         for (int j=0; j<numfields; j++) {
+            String fldname = in.readUTF();
+            int type = in.readInt();
+            int length = in.readInt();
+            sch.addField(fldname, type, length);
+         }
+         md.createTable(tblname, sch, slotted, tx);
+         TableScan ts = new TableScan(md.getTableInfo(tblname, tx), tx);
+         while (in.readBoolean()) {
+            ts.insert();
+            for (String fldname : sch.fields())
+               if (sch.type(fldname) == INTEGER)
+               ts.setInt(fldname, in.readInt());
+            else
+               ts.setString(fldname, in.readUTF());
+         }
+         ts.close();
+         tx.commit();
+      }
+      
+      Transaction tx = new Transaction();
+      int numviews = in.readInt();
+      for (int i=0; i<numviews; i++)
+         md.createView(in.readUTF(), in.readUTF(), tx);
+      tx.commit();
+      
+      int numindexes = in.readInt();
+      for (int i=0; i<numindexes; i++) {
+         tx = new Transaction();
+         String idxname = in.readUTF();
+         String tblname = in.readUTF();
+         String fldname = in.readUTF();
+         md.createIndex(idxname, tblname, fldname, tx);
+         Index idx = md.getIndexInfo(tblname, tx).get(fldname).open();
+         TableScan ts = new TableScan(md.getTableInfo(tblname, tx), tx);
+         while (ts.next())
+            idx.insert(ts.getVal(fldname), ts.getRid());
+         ts.close();
+         idx.close();
+         tx.commit();
+      }
+   }
+   
+   /**
+    * Returns the values of the specified string fields
+    * of every record in a catalog table.
+    */
+   private static List<String[]> catalog(String tblname, String[] fields, Transaction tx) {
+      List<String[]> rows = new ArrayList<String[]>();
+      TableScan ts = new TableScan(SimpleDB.mdMgr().getTableInfo(tblname, tx), tx);
+      while (ts.next()) {
+         String[] row = new String[fields.length];
+         for (int i=0; i<fields.length; i++)
+            row[i] = ts.getString(fields[i]);
+         rows.add(row);
+      }
+      ts.close();
+      return rows;
+   }
+}
@@ -3,6 +3,8 @@ package simpledb.server;
 import simpledb.file.FileMgr;
 import simpledb.buffer.*;
 import simpledb.tx.Transaction;
+import simpledb.tx.recovery.RecoveryMgr;
+import simpledb.record.FreeSpaceMap;
 import simpledb.log.LogMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.planner.*;
@@ -23,8 +25,124 @@ import simpledb.index.planner.IndexUpdatePlanner;
  * @author Edward Sciore
  */
 public class SimpleDB {
-   public static int BUFFER_SIZE = 8;
+   /**
+    * The block size of a newly-created database, in bytes,
+    * set with the system property simpledb.blocksize.
+    * An existing database keeps the block size
+    * recorded in its header.
+    */
+   public static int BLOCK_SIZE = Integer.getInteger("simpledb.blocksize", FileMgr.OLD_BLOCK_SIZE);
+   /**
+    * The I/O mode of the database, set with the system
+    * property simpledb.io: "channel" reads and writes files
+    * through file channels, and "mmap" through memory-mapped regions.
+    * The mode is recorded in the header of the database;
+    * if the property is not set, an existing database keeps
+    * its recorded mode and a new database uses "channel".
+    */
+   public static String FILE_IO = System.getProperty("simpledb.io");
+   /**
+    * The size of the buffer pool, set with the
+    * system property simpledb.buffersize.
+    * The size is a number of buffers, or a number
+    * of bytes with the suffix k, m or g (such as 64m),
+    * which is converted using the block size of the database.
+    * The pool can later be resized with
+    * {@link simpledb.buffer.BufferMgr#resize(int)}.
+    */
+   public static String BUFFER_SIZE = System.getProperty("simpledb.buffersize", "8");
+   /**
+    * The buffer replacement policy: one of "clock", "lru",
+    * "lru-k" (or "lru-2", "lru-3", ...) and "2q".
+    * It can be chosen at startup with the system property
+    * simpledb.bufferpolicy.
+    */
+   public static String BUFFER_POLICY = System.getProperty("simpledb.bufferpolicy", "clock");
+   /**
+    * The number of stripes of the buffer pool, set with the
+    * system property simpledb.bufferstripes.
+    * The value 0 lets the buffer manager choose.
+    */
+   public static int BUFFER_STRIPES = Integer.getInteger("simpledb.bufferstripes", 0);
+   /**
+    * The number of clean, unpinned buffers that the
+    * background page writer tries to keep available,
+    * set with the system property simpledb.cleanbuffers.
+    * The value -1 means a quarter of the pool, and
+    * the value 0 disables the page writer.
+    */
+   public static int CLEAN_BUFFERS = Integer.getInteger("simpledb.cleanbuffers", -1);
+   /**
+    * Whether commits are flushed to the log by a log writer
+    * thread, which writes the log once for all of the
+    * transactions committing at the same time (group commit).
+    * It is set with the system property simpledb.groupcommit.
+    */
+   public static boolean GROUP_COMMIT = Boolean.parseBoolean(System.getProperty("simpledb.groupcommit", "true"));
+   /**
+    * The number of pages in the ring of log pages, set with
+    * the system property simpledb.logbuffers.
+    * The unwritten pages are written to the log together,
+    * so more pages mean fewer and larger log writes.
+    */
+   public static int LOG_BUFFERS = Integer.getInteger("simpledb.logbuffers", 16);
+   /**
+    * The number of blocks in each segment file of the log,
+    * set with the system property simpledb.logsegment.
+    */
+   public static int LOG_SEGMENT_SIZE = Integer.getInteger("simpledb.logsegment", 4096);
+   /**
+    * The directory to which segments of the log are moved
+    * when a checkpoint makes them unnecessary, set with the
+    * system property simpledb.logarchive.
+    * A relative name is taken within the database directory.
+    * If the property is not set, the segments are deleted.
+    */
+   public static String LOG_ARCHIVE = System.getProperty("simpledb.logarchive");
+   /**
+    * The maximum number of seconds between checkpoints,
+    * set with the system property simpledb.checkpointinterval.
+    * The value 0 disables periodic checkpoints.
+    */
+   public static int CHECKPOINT_INTERVAL = Integer.getInteger("simpledb.checkpointinterval", 60);
+   /**
+    * The maximum number of log bytes written between checkpoints,
+    * set with the system property simpledb.checkpointlog.
+    * The value 0 lets the log grow without a checkpoint.
+    */
+   public static long CHECKPOINT_LOG_SIZE = Long.getLong("simpledb.checkpointlog", 16 * 1024 * 1024);
+   /**
+    * The number of milliseconds that a transaction waits for
+    * a lock before it is aborted, set with the system property
+    * simpledb.locktimeout.
+    * Deadlocks are detected when they occur, so the timeout
+    * only bounds long waits; the value 0 means no timeout.
+    */
+   public static long LOCK_TIMEOUT = Long.getLong("simpledb.locktimeout", 10000);
+   /**
+    * The number of records of a table that a transaction
+    * can lock before its record locks are replaced by a lock
+    * on the whole table, set with the system property
+    * simpledb.lockescalation.
+    * The value 0 means that record locks are never escalated.
+    */
+   public static int LOCK_ESCALATION = Integer.getInteger("simpledb.lockescalation", 1000);
+   /**
+    * The number of milliseconds that a transaction waits for
+    * a buffer to become available before it is aborted,
+    * set with the system property simpledb.buffertimeout.
+    */
+   public static long BUFFER_TIMEOUT = Long.getLong("simpledb.buffertimeout", 10000);
+   /**
+    * The number of seconds between saves of the list of
+    * blocks in the buffer pool, which is used to warm up
+    * the pool at startup.
+    * It is set with the system property simpledb.hotpageinterval;
+    * the value 0 disables both saving and warming up.
+    */
+   public static int HOT_PAGE_INTERVAL = Integer.getInteger("simpledb.hotpageinterval", 60);
    public static String LOG_FILE = "simpledb.log";
+   public static String HOT_PAGE_FILE = "simpledb.hot";
    
    private static FileMgr     fm;
    private static BufferMgr   bm;
@@ -33,11 +151,17 @@ public class SimpleDB {
    
    /**
     * Initializes the system.
-    * This method is called during system startup.
+    * This method is called during system startup,
+    * and again for each database that is opened afterwards.
     * @param dirname the name of the database directory
     */
    public static void init(String dirname) {
       initFileLogAndBufferMgr(dirname);
+      if (fm.isReadOnly())
+         throw new RuntimeException("database " + dirname + " has format version "
+               + fm.version() + "; upgrade it with java simpledb.server.Migrate "
+               + dirname + " " + fm.blockSize());
+      FreeSpaceMap.reset();
       Transaction tx = new Transaction();
       boolean isnew = fm.isNew();
       if (isnew)
@@ -48,6 +172,37 @@ public class SimpleDB {
       }
       initMetadataMgr(isnew, tx);
       tx.commit();
+      if (HOT_PAGE_INTERVAL > 0)
+         new HotPageList(HOT_PAGE_FILE).start(HOT_PAGE_INTERVAL);
+      RecoveryMgr.startCheckpointer(CHECKPOINT_INTERVAL, CHECKPOINT_LOG_SIZE);
+   }
+   
+   /**
+    * Initializes the system to read the specified database,
+    * which may have an earlier format version
+    * (see {@link FileMgr#VERSION}).
+    * This method is called by {@link Migrate}.
+    * A database of the current version is recovered as in
+    * {@link #init(String) init}.
+    * A database of an earlier version is read-only and is
+    * not recovered, since its log has an earlier format;
+    * instead, its log must show that no work is unfinished.
+    * Only read-only transactions can be used afterwards.
+    * @param dirname the name of the database directory
+    */
+   public static void initReadOnly(String dirname) {
+      initFileLogAndBufferMgr(dirname);
+      FreeSpaceMap.reset();
+      if (fm.isReadOnly())
+         RecoveryMgr.checkFinished(fm.version());
+      else {
+         Transaction tx = new Transaction();
+         tx.recover();
+         tx.commit();
+      }
+      Transaction tx = new Transaction(true);
+      initMetadataMgr(false, tx);
+      tx.commit();
    }
    
    // The following initialization methods are useful for 
@@ -59,7 +214,7 @@ public class SimpleDB {
     * @param dirname the name of the database directory
     */
    public static void initFileMgr(String dirname) {
-      fm = new FileMgr(dirname);
+      fm = new FileMgr(dirname, BLOCK_SIZE, FILE_IO);
    }
    
    /**
@@ -68,7 +223,9 @@ public class SimpleDB {
     */
    public static void initFileAndLogMgr(String dirname) {
       initFileMgr(dirname);
-      logm = new LogMgr(LOG_FILE);
+      logm = new LogMgr(LOG_FILE, LOG_BUFFERS, LOG_SEGMENT_SIZE);
+      if (GROUP_COMMIT)
+         logm.startLogWriter();
    }
    
    /**
@@ -77,7 +234,9 @@ public class SimpleDB {
     */
    public static void initFileLogAndBufferMgr(String dirname) {
       initFileAndLogMgr(dirname);
-      bm = new BufferMgr(BUFFER_SIZE);
+      int numbuffers = BufferMgr.parseSize(BUFFER_SIZE);
+      bm = new BufferMgr(numbuffers, BUFFER_POLICY, BUFFER_STRIPES);
+      bm.startPageWriter(CLEAN_BUFFERS);
    }
    
    /**
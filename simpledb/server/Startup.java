@@ -14,6 +14,7 @@ public class Startup {
       // and post the server entry in it
       RemoteDriver d = new RemoteDriverImpl();
       reg.rebind("simpledb", d);
+      reg.rebind("simpledbadmin", new RemoteAdminImpl());
       
       System.out.println("database server ready");
    }
@@ -6,12 +6,16 @@ import simpledb.buffer.*;
 import java.util.*;
 
 /**
- * Manages the transaction's currently-pinned buffers. 
+ * Manages the transaction's currently-pinned buffers,
+ * and the buffers that it has latched.
+ * A latched buffer is pinned once more for the latch,
+ * so that it keeps its block until it is unlatched.
  * @author Edward Sciore
  */
 class BufferList {
    private Map<Block,Buffer> buffers = new HashMap<Block,Buffer>();
    private List<Block> pins = new ArrayList<Block>();
+   private List<Block> latches = new ArrayList<Block>();
    private BufferMgr bufferMgr = SimpleDB.bufferMgr();
    
    /**
@@ -30,7 +34,17 @@ class BufferList {
     * @param blk a reference to the disk block
     */
    void pin(Block blk) {
-      Buffer buff = bufferMgr.pin(blk);
+      pin(blk, null);
+   }
+   
+   /**
+    * Pins the block using the specified buffer ring,
+    * and keeps track of the buffer internally.
+    * @param blk a reference to the disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   void pin(Block blk, BufferRing ring) {
+      Buffer buff = bufferMgr.pin(blk, ring);
       buffers.put(blk, buff);
       pins.add(blk);
    }
@@ -40,10 +54,11 @@ class BufferList {
     * and pins it.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the new page
+    * @param ring the scan's buffer ring, or null
     * @return a reference to the newly-created block
     */
-   Block pinNew(String filename, PageFormatter fmtr) {
-      Buffer buff = bufferMgr.pinNew(filename, fmtr);
+   Block pinNew(String filename, PageFormatter fmtr, BufferRing ring) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr, ring);
       Block blk = buff.block();
       buffers.put(blk, buff);
       pins.add(blk);
@@ -62,6 +77,38 @@ class BufferList {
          buffers.remove(blk);
    }
    
+   /**
+    * Pins the block and latches its buffer.
+    * @param blk a reference to the disk block
+    * @param exclusive true for an exclusive latch, false for a shared one
+    */
+   void latch(Block blk, boolean exclusive) {
+      pin(blk);
+      buffers.get(blk).latch(exclusive);
+      latches.add(blk);
+   }
+   
+   /**
+    * Releases the latch on the block's buffer, if it has one,
+    * and unpins the buffer once.
+    * @param blk a reference to the disk block
+    */
+   void unlatch(Block blk) {
+      if (latches.remove(blk)) {
+         buffers.get(blk).unlatch();
+         unpin(blk);
+      }
+   }
+   
+   /**
+    * Releases all of the transaction's latches.
+    */
+   void unlatchAll() {
+      for (Block blk : latches)
+         buffers.get(blk).unlatch();
+      latches.clear();
+   }
+   
    /**
     * Unpins any buffers still pinned by this transaction.
     */
@@ -3,22 +3,42 @@ package simpledb.tx;
 import simpledb.server.SimpleDB;
 import simpledb.file.Block;
 import simpledb.buffer.*;
-import simpledb.tx.recovery.RecoveryMgr;
+import simpledb.record.*;
+import simpledb.query.Constant;
+import simpledb.tx.recovery.*;
 import simpledb.tx.concurrency.ConcurrencyMgr;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides transaction management for clients,
  * ensuring that all transactions are serializable, recoverable,
  * and in general satisfy the ACID properties.
+ * <P>
+ * A read-only transaction takes no locks.
+ * It reads a snapshot of the database instead, which contains
+ * the modifications of the transactions that finished before
+ * it began; it can modify only temporary files.
+ * A read-only transaction has no recovery or concurrency manager:
+ * it writes nothing to the log, and its commit and rollback
+ * only unpin its buffers and close its snapshot.
+ * <P>
+ * An action is a short transaction that a transaction begins
+ * in order to change the pages of a B-tree (see {@link #beginAction()}).
+ * It takes no locks: it latches the pages it uses instead,
+ * and keeps its exclusive latches until it commits.
+ * Its log records are written when it first modifies a page,
+ * and its commit is not flushed to the log.
  * @author Edward Sciore
  */
 public class Transaction {
-   private static int nextTxNum = 0;
+   private static AtomicInteger nextTxNum = new AtomicInteger();
    private static final int END_OF_FILE = -1;
-   private RecoveryMgr    recoveryMgr;
-   private ConcurrencyMgr concurMgr;
+   private RecoveryMgr    recoveryMgr = null;
+   private ConcurrencyMgr concurMgr = null;
    private int txnum;
    private BufferList myBuffers = new BufferList();
+   private Snapshot snapshot = null;
+   private boolean action = false;
    
    /**
     * Creates a new transaction and its associated 
@@ -33,18 +53,96 @@ public class Transaction {
     * is called first.
     */
    public Transaction() {
-      txnum       = nextTxNumber();
-      recoveryMgr = new RecoveryMgr(txnum);
-      concurMgr   = new ConcurrencyMgr();
+      this(false);
+   }
+   
+   /**
+    * Creates a new transaction, which is read-only
+    * if so specified.
+    * A read-only transaction begins a snapshot of the database,
+    * instead of creating recovery and concurrency managers.
+    * @param readOnly true if the transaction is read-only
+    */
+   public Transaction(boolean readOnly) {
+      txnum = nextTxNum.incrementAndGet();
+      if (readOnly)
+         snapshot = RecoveryMgr.snapshot();
+      else {
+         System.out.println("new transaction: " + txnum);
+         recoveryMgr = new RecoveryMgr(txnum);
+         concurMgr   = new ConcurrencyMgr(txnum);
+      }
+   }
+   
+   /**
+    * Creates an action, which reads the specified snapshot
+    * if it is not null.
+    */
+   private Transaction(Snapshot snapshot) {
+      txnum = nextTxNum.incrementAndGet();
+      this.snapshot = snapshot;
+      action = true;
+   }
+   
+   /**
+    * Begins an action on behalf of the transaction.
+    * The changes that the action makes are committed by the
+    * action, and are not undone if the transaction rolls back.
+    * The action of a read-only transaction reads its snapshot,
+    * and cannot modify anything.
+    * @return the new action
+    */
+   public Transaction beginAction() {
+      return new Transaction(snapshot);
+   }
+   
+   /**
+    * Begins an action on behalf of no transaction,
+    * such as the undo of a logical log record.
+    * @return the new action
+    */
+   public static Transaction systemAction() {
+      return new Transaction((Snapshot) null);
+   }
+   
+   /**
+    * Makes sure that new transactions have greater IDs than the
+    * specified one, which recovery has found in the log.
+    * @param txnum the ID of a transaction in the log
+    */
+   public static void reserveTxNumber(int txnum) {
+      nextTxNum.accumulateAndGet(txnum, Math::max);
+   }
+   
+   /**
+    * Returns true if the transaction is read-only.
+    * @return true if the transaction reads a snapshot
+    */
+   public boolean isReadOnly() {
+      return snapshot != null;
    }
    
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
-    * writes and flushes a commit record to the log,
+    * Writes and flushes a commit record to the log
+    * (the modified buffers are written later),
     * releases all locks, and unpins any pinned buffers.
+    * A read-only transaction only unpins its buffers
+    * and closes its snapshot.
+    * An action writes its commit record without flushing it,
+    * and then releases its latches.
     */
    public void commit() {
+      if (action) {
+         if (recoveryMgr != null)
+            recoveryMgr.commitAction();
+         finishAction();
+         return;
+      }
+      if (snapshot != null) {
+         finishReadOnly();
+         return;
+      }
       recoveryMgr.commit();
       concurMgr.release();
       myBuffers.unpinAll();
@@ -54,11 +152,23 @@ public class Transaction {
    /**
     * Rolls back the current transaction.
     * Undoes any modified values,
-    * flushes those buffers,
     * writes and flushes a rollback record to the log,
     * releases all locks, and unpins any pinned buffers.
+    * A read-only transaction has nothing to undo;
+    * it only unpins its buffers and closes its snapshot.
+    * An action is rolled back before it releases its latches.
     */
    public void rollback() {
+      if (action) {
+         if (recoveryMgr != null)
+            recoveryMgr.rollback();
+         finishAction();
+         return;
+      }
+      if (snapshot != null) {
+         finishReadOnly();
+         return;
+      }
       recoveryMgr.rollback();
       concurMgr.release();
       myBuffers.unpinAll();
@@ -87,6 +197,16 @@ public class Transaction {
       myBuffers.pin(blk);
    }
    
+   /**
+    * Pins the specified block on behalf of a scan
+    * that uses the specified buffer ring.
+    * @param blk a reference to the disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   public void pin(Block blk, BufferRing ring) {
+      myBuffers.pin(blk, ring);
+   }
+   
    /**
     * Unpins the specified block.
     * The transaction looks up the buffer pinned to this block,
@@ -97,17 +217,63 @@ public class Transaction {
       myBuffers.unpin(blk);
    }
    
+   /**
+    * Obtains a shared latch on the specified block,
+    * which keeps other threads from modifying it
+    * until the latch is released.
+    * The block stays pinned while it is latched.
+    * A read-only transaction reads its snapshot,
+    * and does not latch anything.
+    * @param blk a reference to the disk block
+    */
+   public void sLatch(Block blk) {
+      if (snapshot == null)
+         myBuffers.latch(blk, false);
+   }
+   
+   /**
+    * Obtains an exclusive latch on the specified block,
+    * which keeps other threads from reading or modifying it
+    * until the latch is released.
+    * The block stays pinned while it is latched.
+    * @param blk a reference to the disk block
+    */
+   public void xLatch(Block blk) {
+      if (snapshot == null)
+         myBuffers.latch(blk, true);
+   }
+   
+   /**
+    * Releases the latch on the specified block, if any.
+    * An action must not release the latch on a block
+    * that it has modified; its latches are released
+    * when it commits or rolls back.
+    * @param blk a reference to the disk block
+    */
+   public void unlatch(Block blk) {
+      if (snapshot == null)
+         myBuffers.unlatch(blk);
+   }
+   
    /**
     * Returns the integer value stored at the
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * The block is not locked if the transaction has locked
+    * its table; the caller locks the record instead.
+    * A read-only transaction takes no lock, and
+    * reads the value from its snapshot;
+    * an action takes no lock either.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the integer stored at that offset
     */
    public int getInt(Block blk, int offset) {
-      concurMgr.sLock(blk);
+      if (snapshot != null)
+         return snapshot.getInt(myBuffers.getBuffer(blk), offset);
+      if (concurMgr != null)
+         concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
       return buff.getInt(offset);
    }
@@ -117,54 +283,247 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * The block is not locked if the transaction has locked
+    * its table; the caller locks the record instead.
+    * A read-only transaction takes no lock, and
+    * reads the value from its snapshot;
+    * an action takes no lock either.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the string stored at that offset
     */
    public String getString(Block blk, int offset) {
-      concurMgr.sLock(blk);
+      if (snapshot != null)
+         return snapshot.getString(myBuffers.getBuffer(blk), offset);
+      if (concurMgr != null)
+         concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
       return buff.getString(offset);
    }
    
+   /**
+    * Returns the specified number of bytes stored at the
+    * specified offset of the specified block.
+    * The block is locked and read like
+    * {@link #getString(Block, int) getString}.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @param n the number of bytes
+    * @return the bytes stored at that offset
+    */
+   public byte[] getBytes(Block blk, int offset, int n) {
+      if (snapshot != null)
+         return snapshot.getBytes(myBuffers.getBuffer(blk), offset, n);
+      if (concurMgr != null)
+         concurMgr.sLock(blk);
+      Buffer buff = myBuffers.getBuffer(blk);
+      return buff.getBytes(offset, n);
+   }
+   
    /**
     * Stores an integer at the specified offset 
     * of the specified block.
-    * The method first obtains an XLock on the block.
+    * The method first obtains an XLock on the block,
+    * unless the transaction has locked its table;
+    * the caller then has an XLock on the record.
     * It then reads the current value at that offset,
     * puts it into an update log record, and 
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer is locked while both are done, so that a
+    * checkpoint never sees the log record without the change.
+    * A read-only transaction can store values only
+    * in temporary files, which it neither locks nor logs.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setInt(Block blk, int offset, int val) {
-      concurMgr.xLock(blk);
+      if (lockToWrite(blk.fileName()))
+         concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      synchronized (buff) {
+         long lsn = (snapshot != null) ? -1 : recoveryMgr().setInt(buff, offset, val);
+         buff.setInt(offset, val, txnum, lsn);
+      }
    }
    
    /**
     * Stores a string at the specified offset 
     * of the specified block.
-    * The method first obtains an XLock on the block.
+    * The method first obtains an XLock on the block,
+    * unless the transaction has locked its table;
+    * the caller then has an XLock on the record.
     * It then reads the current value at that offset,
     * puts it into an update log record, and 
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer is locked while both are done, so that a
+    * checkpoint never sees the log record without the change.
+    * A read-only transaction can store values only
+    * in temporary files, which it neither locks nor logs.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setString(Block blk, int offset, String val) {
-      concurMgr.xLock(blk);
+      if (lockToWrite(blk.fileName()))
+         concurMgr.xLock(blk);
+      Buffer buff = myBuffers.getBuffer(blk);
+      synchronized (buff) {
+         long lsn = (snapshot != null) ? -1 : recoveryMgr().setString(buff, offset, val);
+         buff.setString(offset, val, txnum, lsn);
+      }
+   }
+   
+   /**
+    * Stores bytes at the specified offset 
+    * of the specified block.
+    * The block is locked, and the bytes are logged and
+    * stored, like {@link #setString(Block, int, String) setString};
+    * the log record holds the old and the new bytes,
+    * so it must fit in a page of the log.
+    * @param blk a reference to the disk block
+    * @param offset a byte offset within that block
+    * @param val the bytes to be stored
+    */
+   public void setBytes(Block blk, int offset, byte[] val) {
+      if (lockToWrite(blk.fileName()))
+         concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      synchronized (buff) {
+         long lsn = (snapshot != null) ? -1 : recoveryMgr().setBytes(buff, offset, val);
+         buff.setBytes(offset, val, txnum, lsn);
+      }
+   }
+   
+   /**
+    * Obtains an IS lock on the specified table,
+    * which allows the transaction to lock its records.
+    * @param tblfile the name of the table's file
+    */
+   public void isLockTable(String tblfile) {
+      if (concurMgr != null)
+         concurMgr.isLock(tblfile);
+   }
+   
+   /**
+    * Obtains an SLock on the specified table,
+    * which allows the transaction to read all of its records.
+    * @param tblfile the name of the table's file
+    */
+   public void sLockTable(String tblfile) {
+      if (concurMgr != null)
+         concurMgr.sLock(tblfile);
+   }
+   
+   /**
+    * Obtains an XLock on the specified table,
+    * which allows the transaction to read and modify
+    * all of its records.
+    * @param tblfile the name of the table's file
+    */
+   public void xLockTable(String tblfile) {
+      if (lockToWrite(tblfile))
+         concurMgr.xLock(tblfile);
+   }
+   
+   /**
+    * Obtains an SLock on the record in the specified slot
+    * of the specified block, and an IS lock on its table.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @return true if the record was not locked before
+    */
+   public boolean sLockRecord(Block blk, int slot) {
+      return concurMgr != null && concurMgr.sLock(blk, slot);
+   }
+   
+   /**
+    * Releases the SLock on the record in the specified slot
+    * of the specified block, which the transaction has
+    * read but not modified.
+    * An XLock on the record is kept until the transaction ends.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    */
+   public void sUnlockRecord(Block blk, int slot) {
+      if (concurMgr != null)
+         concurMgr.sUnlock(blk, slot);
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified slot
+    * of the specified block, and an IX lock on its table.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    */
+   public void xLockRecord(Block blk, int slot) {
+      if (lockToWrite(blk.fileName()))
+         concurMgr.xLock(blk, slot);
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified slot
+    * of the specified block, if no other transaction
+    * has locked the record.
+    * The table is given an IX lock.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @return true if the record was locked
+    */
+   public boolean tryXLockRecord(Block blk, int slot) {
+      return !lockToWrite(blk.fileName()) || concurMgr.tryXLock(blk, slot);
+   }
+   
+   /**
+    * Obtains an SLock on the specified key of a B-tree index,
+    * before the index is searched for the key.
+    * @param idxfile the name of the index's file
+    * @param key the key value
+    */
+   public void sLockKey(String idxfile, Constant key) {
+      if (concurMgr != null)
+         concurMgr.sLockKey(idxfile, key.asJavaVal());
+   }
+   
+   /**
+    * Obtains an IX lock on the specified key of a B-tree index,
+    * before an index record having that key is inserted or deleted.
+    * @param idxfile the name of the index's file
+    * @param key the key value
+    */
+   public void ixLockKey(String idxfile, Constant key) {
+      if (lockToWrite(idxfile))
+         concurMgr.ixLockKey(idxfile, key.asJavaVal());
+   }
+   
+   /**
+    * Writes a log record saying that the transaction is
+    * inserting the specified record into a B-tree index.
+    * If the transaction rolls back, the index record is deleted.
+    * @param idxname the name of the index
+    * @param leafsch the schema of the index's leaf records
+    * @param val the dataval of the index record
+    * @param rid the dataRID of the index record
+    */
+   public void logIndexInsert(String idxname, Schema leafsch, Constant val, RID rid) {
+      recoveryMgr().indexInsert(idxname, leafsch, val, rid);
+   }
+   
+   /**
+    * Writes a log record saying that the transaction is
+    * deleting the specified record from a B-tree index.
+    * If the transaction rolls back, the index record is reinserted.
+    * @param idxname the name of the index
+    * @param leafsch the schema of the index's leaf records
+    * @param val the dataval of the index record
+    * @param rid the dataRID of the index record
+    */
+   public void logIndexDelete(String idxname, Schema leafsch, Constant val, RID rid) {
+      recoveryMgr().indexDelete(idxname, leafsch, val, rid);
    }
    
    /**
@@ -172,12 +531,18 @@ public class Transaction {
     * This method first obtains an SLock on the 
     * "end of the file", before asking the file manager
     * to return the file size.
+    * If the file is a table that the transaction has locked,
+    * then the table lock takes the place of that SLock.
+    * A read-only transaction takes no lock; the blocks
+    * that were appended after its snapshot began
+    * are empty in the snapshot.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
    public int size(String filename) {
       Block dummyblk = new Block(filename, END_OF_FILE);
-      concurMgr.sLock(dummyblk);
+      if (concurMgr != null)
+         concurMgr.sLock(dummyblk);
       return SimpleDB.fileMgr().size(filename);
    }
    
@@ -186,21 +551,70 @@ public class Transaction {
     * and returns a reference to it.
     * This method first obtains an XLock on the
     * "end of the file", before performing the append.
+    * If the file is a table that the transaction has locked,
+    * then no XLock is needed: the new block is empty,
+    * and appends to a file are serialized by the file manager.
+    * A read-only transaction can only append a block to
+    * a temporary file, which it does without a lock.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the new page
     * @return a reference to the newly-created disk block
     */
    public Block append(String filename, PageFormatter fmtr) {
+      return append(filename, fmtr, null);
+   }
+   
+   /**
+    * Appends a new block to the end of the specified file
+    * on behalf of a scan that uses the specified buffer ring,
+    * and returns a reference to it.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the new page
+    * @param ring the scan's buffer ring, or null
+    * @return a reference to the newly-created disk block
+    */
+   public Block append(String filename, PageFormatter fmtr, BufferRing ring) {
       Block dummyblk = new Block(filename, END_OF_FILE);
-      concurMgr.xLock(dummyblk);
-      Block blk = myBuffers.pinNew(filename, fmtr);
+      if (lockToWrite(filename))
+         concurMgr.xLock(dummyblk);
+      Block blk = myBuffers.pinNew(filename, fmtr, ring);
       unpin(blk);
       return blk;
    }
    
-   private static synchronized int nextTxNumber() {
-      nextTxNum++;
-      System.out.println("new transaction: " + nextTxNum);
-      return nextTxNum;
+   /**
+    * Determines whether the transaction must lock the
+    * specified file in order to modify it.
+    * A read-only transaction modifies only temporary
+    * files, which are not locked; an action locks nothing.
+    * @param filename the name of the file
+    * @return true if the file must be locked
+    */
+   private boolean lockToWrite(String filename) {
+      if (snapshot == null)
+         return concurMgr != null;
+      if (!filename.startsWith("temp"))
+         throw new RuntimeException("transaction " + txnum + " is read-only");
+      return false;
+   }
+   
+   /**
+    * Returns the recovery manager, which an action
+    * creates when it first writes to the log.
+    */
+   private RecoveryMgr recoveryMgr() {
+      if (recoveryMgr == null)
+         recoveryMgr = new RecoveryMgr(txnum);
+      return recoveryMgr;
+   }
+   
+   private void finishReadOnly() {
+      myBuffers.unpinAll();
+      snapshot.close();
+   }
+   
+   private void finishAction() {
+      myBuffers.unlatchAll();
+      myBuffers.unpinAll();
    }
 }
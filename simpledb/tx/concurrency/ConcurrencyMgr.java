@@ -1,14 +1,46 @@
 package simpledb.tx.concurrency;
 
+import static simpledb.tx.concurrency.LockTable.*;
 import simpledb.file.Block;
+import simpledb.server.SimpleDB;
 import java.util.*;
 
 /**
  * The concurrency manager for the transaction.
- * Each transaction has its own concurrency manager. 
- * The concurrency manager keeps track of which locks the 
+ * Each transaction has its own concurrency manager.
+ * The concurrency manager keeps track of which locks the
  * transaction currently has, and interacts with the
- * global lock table as needed. 
+ * global lock table as needed.
+ * <P>
+ * Tables are locked hierarchically.
+ * A transaction that reads individual records of a table
+ * gets an IS lock on the table and an SLock on each record,
+ * and a transaction that modifies them gets an IX lock
+ * on the table and an XLock on each record;
+ * a transaction that reads the whole table gets an SLock
+ * on the table, which covers all of its records.
+ * A scan that modifies records of the table does not lock
+ * the whole table: it reads each record under an SLock,
+ * which it releases if it does not modify the record,
+ * so that transactions modifying different records
+ * do not wait for each other.
+ * A transaction that has read the whole table and then
+ * modifies records gets a SIX lock on the table.
+ * The blocks of a locked table are not locked,
+ * and neither is the end of its file:
+ * the table lock keeps other transactions from adding
+ * records that a reader of the whole table would see.
+ * When a transaction holds too many record locks on a table
+ * (see {@link simpledb.server.SimpleDB#LOCK_ESCALATION}),
+ * they are replaced by an SLock or XLock on the table.
+ * B-tree indexes are locked by key value instead:
+ * a transaction that looks up a key gets an SLock on it, and a
+ * transaction that inserts or deletes an index record gets an
+ * IX lock on its key, so that it blocks the readers of the key
+ * but not the other writers, whose records are different.
+ * The pages of a B-tree are latched rather than locked.
+ * Other files, such as the files of hash indexes,
+ * are locked block by block.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
@@ -18,48 +50,251 @@ public class ConcurrencyMgr {
     * share the same table.
     */
    private static LockTable locktbl = new LockTable();
-   private Map<Block,String> locks  = new HashMap<Block,String>();
+   private Map<Object,Integer> locks  = new HashMap<Object,Integer>();
+   private Map<String,Integer> reclocks = new HashMap<String,Integer>();
+   private int txnum;
+   
+   /**
+    * Creates the concurrency manager for the specified transaction.
+    * The lock table uses the ID of the transaction to
+    * detect deadlocks.
+    * @param txnum the ID of the transaction
+    */
+   public ConcurrencyMgr(int txnum) {
+      this.txnum = txnum;
+   }
    
    /**
     * Obtains an SLock on the block, if necessary.
     * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * if the transaction currently has no locks on that block,
+    * and has not locked the table that the block belongs to.
     * @param blk a reference to the disk block
     */
    public void sLock(Block blk) {
-      if (locks.get(blk) == null) {
-         locktbl.sLock(blk);
-         locks.put(blk, "S");
-      }
+      if (locks.get(blk.fileName()) == null && locks.get(blk) == null)
+         lock(blk, S);
    }
    
    /**
     * Obtains an XLock on the block, if necessary.
     * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * and has not locked the table that the block belongs to,
+    * then the method asks the lock table for an XLock,
+    * which upgrades an SLock that the transaction has.
     * @param blk a refrence to the disk block
     */
    public void xLock(Block blk) {
-      if (!hasXLock(blk)) {
-         sLock(blk);
-         locktbl.xLock(blk);
-         locks.put(blk, "X");
+      if (locks.get(blk.fileName()) == null)
+         lock(blk, X);
+   }
+   
+   /**
+    * Obtains an IS lock on the table, if the transaction
+    * has no lock on it.
+    * The transaction can then lock the records of the table.
+    * @param tblfile the name of the table's file
+    */
+   public void isLock(String tblfile) {
+      if (locks.get(tblfile) == null)
+         lock(tblfile, IS);
+   }
+   
+   /**
+    * Obtains an SLock on the table, if necessary.
+    * The lock allows the transaction to read every
+    * record of the table; an IX lock that the transaction
+    * has on the table is upgraded to an XLock.
+    * @param tblfile the name of the table's file
+    */
+   public void sLock(String tblfile) {
+      lock(tblfile, S);
+   }
+   
+   /**
+    * Obtains an XLock on the table, if necessary.
+    * The lock allows the transaction to read
+    * and modify every record of the table.
+    * @param tblfile the name of the table's file
+    */
+   public void xLock(String tblfile) {
+      lock(tblfile, X);
+   }
+   
+   /**
+    * Obtains an SLock on the record in the specified
+    * slot of the block, if necessary.
+    * The table of the record is first given an IS lock;
+    * no record lock is needed if the transaction has an
+    * SLock or XLock on the table.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @return true if the record was not locked before
+    */
+   public boolean sLock(Block blk, int slot) {
+      String tblfile = blk.fileName();
+      Integer tblmode = locks.get(tblfile);
+      if (tblmode != null && (tblmode == S || tblmode == SIX || tblmode == X))
+         return false;
+      isLock(tblfile);
+      RecordKey key = new RecordKey(blk, slot);
+      if (locks.get(key) != null)
+         return false;
+      lock(key, S);
+      recordLocked(tblfile);
+      return true;
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified
+    * slot of the block, if necessary.
+    * The table of the record is first given an IX lock;
+    * no record lock is needed if the transaction has
+    * an XLock on the table.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    */
+   public void xLock(Block blk, int slot) {
+      String tblfile = blk.fileName();
+      if (!needsRecordXLock(tblfile))
+         return;
+      RecordKey key = new RecordKey(blk, slot);
+      Integer mode = locks.get(key);
+      if (mode == null || mode != X) {
+         lock(key, X);
+         if (mode == null)
+            recordLocked(tblfile);
       }
    }
    
+   /**
+    * Releases the SLock on the record in the specified
+    * slot of the block, before the transaction ends.
+    * Nothing is released if the transaction has an XLock
+    * on the record, or has no lock on it.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    */
+   public void sUnlock(Block blk, int slot) {
+      RecordKey key = new RecordKey(blk, slot);
+      Integer mode = locks.get(key);
+      if (mode == null || mode != S)
+         return;
+      locktbl.unlock(key, txnum);
+      locks.remove(key);
+      String tblfile = blk.fileName();
+      reclocks.put(tblfile, reclocks.get(tblfile) - 1);
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified
+    * slot of the block, if it can be obtained without waiting.
+    * The table of the record is first given an IX lock,
+    * which may require waiting.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @return true if the transaction has an XLock on the record
+    */
+   public boolean tryXLock(Block blk, int slot) {
+      String tblfile = blk.fileName();
+      if (!needsRecordXLock(tblfile))
+         return true;
+      RecordKey key = new RecordKey(blk, slot);
+      Integer mode = locks.get(key);
+      if (mode != null && mode == X)
+         return true;
+      if (!locktbl.tryLock(key, txnum, X))
+         return false;
+      locks.put(key, X);
+      if (mode == null)
+         recordLocked(tblfile);
+      return true;
+   }
+   
+   /**
+    * Obtains an SLock on the specified key of the index,
+    * if necessary.
+    * @param idxfile the name of the index's file
+    * @param val the key value
+    */
+   public void sLockKey(String idxfile, Object val) {
+      lock(new IndexKey(idxfile, val), S);
+   }
+   
+   /**
+    * Obtains an IX lock on the specified key of the index,
+    * if necessary, before an index record with that key
+    * is inserted or deleted.
+    * @param idxfile the name of the index's file
+    * @param val the key value
+    */
+   public void ixLockKey(String idxfile, Object val) {
+      lock(new IndexKey(idxfile, val), IX);
+   }
+   
    /**
     * Releases all locks by asking the lock table to
     * unlock each one.
     */
    public void release() {
-      for (Block blk : locks.keySet())
-         locktbl.unlock(blk);
+      for (Object obj : locks.keySet())
+         locktbl.unlock(obj, txnum);
       locks.clear();
+      reclocks.clear();
+   }
+   
+   /**
+    * Gives the table an IX lock, and determines
+    * whether its records still need XLocks.
+    */
+   private boolean needsRecordXLock(String tblfile) {
+      lock(tblfile, IX);
+      return locks.get(tblfile) != X;
+   }
+   
+   /**
+    * Obtains a lock of the specified mode on the object,
+    * combining it with the lock that the transaction
+    * already has on the object.
+    */
+   private void lock(Object obj, int mode) {
+      Integer held = locks.get(obj);
+      int newmode = (held == null) ? mode : combine(held, mode);
+      if (held == null || newmode != held) {
+         locktbl.lock(obj, txnum, newmode);
+         locks.put(obj, newmode);
+      }
    }
    
-   private boolean hasXLock(Block blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+   /**
+    * Counts a new record lock on the table,
+    * and escalates the record locks of the table to
+    * a table lock if there are too many of them.
+    */
+   private void recordLocked(String tblfile) {
+      Integer count = reclocks.get(tblfile);
+      count = (count == null) ? 1 : count + 1;
+      reclocks.put(tblfile, count);
+      if (SimpleDB.LOCK_ESCALATION > 0 && count > SimpleDB.LOCK_ESCALATION)
+         escalate(tblfile);
+   }
+   
+   /**
+    * Replaces the record locks on the table by a table lock:
+    * an XLock if the transaction intends to modify records,
+    * and an SLock otherwise.
+    * The record locks are released once the table lock is granted.
+    */
+   private void escalate(String tblfile) {
+      lock(tblfile, locks.get(tblfile) == IS ? S : X);
+      Iterator<Map.Entry<Object,Integer>> iter = locks.entrySet().iterator();
+      while (iter.hasNext()) {
+         Object obj = iter.next().getKey();
+         if (obj instanceof RecordKey && ((RecordKey) obj).fileName().equals(tblfile)) {
+            locktbl.unlock(obj, txnum);
+            iter.remove();
+         }
+      }
+      reclocks.remove(tblfile);
    }
 }
@@ -0,0 +1,37 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The key under which the lock table locks a key value
+ * of an index: the name of the index's file, and the value.
+ * @author Edward Sciore
+ */
+class IndexKey {
+   private String idxfile;
+   private Object val;
+   
+   /**
+    * Creates the key of the specified value
+    * in the specified index file.
+    * @param idxfile the name of the index's file
+    * @param val the key value
+    */
+   IndexKey(String idxfile, Object val) {
+      this.idxfile = idxfile;
+      this.val = val;
+   }
+   
+   public boolean equals(Object obj) {
+      if (!(obj instanceof IndexKey))
+         return false;
+      IndexKey key = (IndexKey) obj;
+      return idxfile.equals(key.idxfile) && val.equals(key.val);
+   }
+   
+   public int hashCode() {
+      return idxfile.hashCode() * 31 + val.hashCode();
+   }
+   
+   public String toString() {
+      return "[" + idxfile + ", key " + val + "]";
+   }
+}
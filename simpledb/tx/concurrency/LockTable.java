@@ -1,103 +1,398 @@
 package simpledb.tx.concurrency;
 
-import simpledb.file.Block;
+import simpledb.server.SimpleDB;
 import java.util.*;
 
 /**
- * The lock table, which provides methods to lock and unlock blocks.
- * If a transaction requests a lock that causes a conflict with an
- * existing lock, then that transaction is placed on a wait list.
- * There is only one wait list for all blocks.
- * When the last lock on a block is unlocked, then all transactions
- * are removed from the wait list and rescheduled.
- * If one of those transactions discovers that the lock it is waiting for
- * is still locked, it will place itself back on the wait list.
+ * The lock table, which provides methods to lock and unlock
+ * objects: blocks, tables and records.
+ * A lock has one of five modes.
+ * An SLock allows its transaction to read the object,
+ * and an XLock allows it to read and write the object.
+ * The intention locks IS and IX are taken on a table by
+ * transactions that lock records of the table with
+ * SLocks and XLocks respectively.
+ * A SIX lock is an SLock together with an IX lock:
+ * its transaction reads the whole table, and
+ * locks the records that it modifies.
+ * Two transactions can hold locks on the same object
+ * if the modes are compatible:
+ * <pre>
+ *       IS  IX  S   SIX X
+ *   IS  yes yes yes yes no
+ *   IX  yes yes no  no  no
+ *   S   yes no  yes no  no
+ *   SIX yes no  no  no  no
+ *   X   no  no  no  no  no
+ * </pre>
+ * A transaction that holds a lock can ask for a stronger mode;
+ * a transaction that needs both an S and an IX lock
+ * on a table gets a SIX lock.
+ * <P>
+ * The table is divided into stripes, each of which is synchronized
+ * separately; an object always belongs to the same stripe,
+ * so requests for objects of different stripes do not contend.
+ * Each locked object has a FIFO queue of the requests that
+ * conflict with its current locks.
+ * A waiting transaction waits on its own request, and when
+ * locks are released, the requests at the head of the queue
+ * are granted in order for as long as they are compatible:
+ * the lock is handed directly to those transactions,
+ * and no other transaction is woken.
+ * A new lock is not granted ahead of a waiting request, so that
+ * a transaction waiting for an XLock is not starved by readers;
+ * a request to strengthen a lock goes ahead of the
+ * requests for new locks, because its transaction already
+ * holds a lock.
+ * <P>
+ * The table keeps a wait-for graph, which records for each
+ * waiting transaction the transactions it waits for:
+ * the holders of conflicting locks, and the transactions whose
+ * requests are ahead of it in the queue.
+ * Whenever the graph gains an edge, the table looks for cycles,
+ * and aborts the youngest transaction of each cycle at once.
+ * A transaction that waits longer than the lock timeout
+ * (see {@link simpledb.server.SimpleDB#LOCK_TIMEOUT}) is also aborted.
+ * An aborted request is withdrawn and an exception is thrown.
  * @author Edward Sciore
  */
 class LockTable {
-   private static final long MAX_TIME = 10000; // 10 seconds
+   static final int IS = 0, IX = 1, S = 2, SIX = 3, X = 4;
+   private static final int STRIPES = 64;
+   private static final boolean[][] COMPATIBLE = {
+      { true,  true,  true,  true,  false },
+      { true,  true,  false, false, false },
+      { true,  false, true,  false, false },
+      { true,  false, false, false, false },
+      { false, false, false, false, false } };
    
-   private Map<Block,Integer> locks = new HashMap<Block,Integer>();
+   private Stripe[] stripes = new Stripe[STRIPES];
+   
+   // the wait-for graph: the request of each waiting transaction,
+   // which holds the transactions it waits for
+   private Map<Integer,Request> waiting = new HashMap<Integer,Request>();
+   
+   LockTable() {
+      for (int i=0; i<STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
+   
+   /**
+    * Returns the weakest mode that is at least as strong
+    * as both specified modes.
+    * @param mode1 a lock mode
+    * @param mode2 a lock mode
+    * @return the combined mode
+    */
+   static int combine(int mode1, int mode2) {
+      if (mode1 == mode2 || mode2 == IS)
+         return mode1;
+      else if (mode1 == IS)
+         return mode2;
+      else if (mode1 == X || mode2 == X)
+         return X;
+      else
+         return SIX;
+   }
    
    /**
-    * Grants an SLock on the specified block.
-    * If an XLock exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the lock is released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
+    * Grants a lock of the specified mode on the specified object
+    * to the specified transaction.
+    * If the transaction already holds a lock on the object,
+    * the lock is changed to the specified mode, which must
+    * be stronger.
+    * If a conflicting lock exists when the method is called,
+    * or other transactions are waiting for the object,
+    * then the calling thread will be placed on the object's
+    * wait queue until the lock is granted.
+    * If waiting would cause a deadlock, or the thread
+    * remains on the wait queue for too long,
     * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * @param obj the object to lock
+    * @param txnum the id of the transaction
+    * @param mode the mode of the lock
     */
-   public synchronized void sLock(Block blk) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         while (hasXlock(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasXlock(blk))
-            throw new LockAbortException();
-         int val = getLockVal(blk);  // will not be negative
-         locks.put(blk, val+1);
+   void lock(Object obj, int txnum, int mode) {
+      Stripe stripe = stripeOf(obj);
+      Lock lock;
+      Request req;
+      synchronized (stripe) {
+         lock = stripe.lock(obj);
+         boolean upgrade = lock.holders.containsKey(txnum);
+         if (canGrant(lock, txnum, mode, upgrade)) {
+            lock.holders.put(txnum, mode);
+            return;
+         }
+         req = new Request(txnum, mode, upgrade);
+         int pos = lock.waiters.size();
+         if (upgrade) {
+            pos = 0;
+            while (pos < lock.waiters.size() && lock.waiters.get(pos).upgrade)
+               pos++;
+         }
+         lock.waiters.add(pos, req);
+         startWaiting(lock, req);
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      await(stripe, obj, lock, req);
+   }
+   
+   /**
+    * Grants a lock of the specified mode on the specified object
+    * to the specified transaction, if that can be done
+    * without waiting.
+    * @param obj the object to lock
+    * @param txnum the id of the transaction
+    * @param mode the mode of the lock
+    * @return true if the lock was granted
+    */
+   boolean tryLock(Object obj, int txnum, int mode) {
+      Stripe stripe = stripeOf(obj);
+      synchronized (stripe) {
+         Lock lock = stripe.lock(obj);
+         if (canGrant(lock, txnum, mode, lock.holders.containsKey(txnum))) {
+            lock.holders.put(txnum, mode);
+            return true;
+         }
+         return false;
       }
    }
    
    /**
-    * Grants an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the locks are released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * Releases the lock of the specified transaction
+    * on the specified object.
+    * The requests at the head of the object's wait queue
+    * are then granted, as far as they are compatible.
+    * @param obj the locked object
+    * @param txnum the id of the transaction
+    */
+   void unlock(Object obj, int txnum) {
+      Stripe stripe = stripeOf(obj);
+      synchronized (stripe) {
+         Lock lock = stripe.locks.get(obj);
+         lock.holders.remove(txnum);
+         grantWaiters(stripe, obj, lock);
+      }
+   }
+   
+   /**
+    * Determines whether a lock of the specified mode can be
+    * granted to the specified transaction without waiting:
+    * it must be compatible with the locks of the other
+    * transactions, and must not overtake a waiting request.
+    * A request to strengthen a lock only waits behind
+    * other such requests.
+    * The caller must synchronize on the stripe.
     */
-   synchronized void xLock(Block blk) {
+   private boolean canGrant(Lock lock, int txnum, int mode, boolean upgrade) {
+      Request first = lock.waiters.peekFirst();
+      if (first != null && (first.upgrade || !upgrade))
+         return false;
+      return isCompatible(lock, txnum, mode);
+   }
+   
+   private boolean isCompatible(Lock lock, int txnum, int mode) {
+      for (Map.Entry<Integer,Integer> e : lock.holders.entrySet())
+         if (e.getKey() != txnum && !COMPATIBLE[e.getValue()][mode])
+            return false;
+      return true;
+   }
+   
+   /**
+    * Waits until the specified request is granted.
+    * If the request is aborted to break a deadlock,
+    * is not granted in time, or the thread is interrupted,
+    * then the request is withdrawn and an exception is thrown.
+    */
+   private void await(Stripe stripe, Object obj, Lock lock, Request req) {
+      long timeout = SimpleDB.LOCK_TIMEOUT;
+      long deadline = System.currentTimeMillis() + timeout;
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasOtherSLocks(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasOtherSLocks(blk))
-            throw new LockAbortException();
-         locks.put(blk, -1);
+         synchronized (req) {
+            long remaining = timeout;
+            while (!req.granted && !req.aborted && (timeout <= 0 || remaining > 0)) {
+               req.wait(timeout <= 0 ? 0 : remaining);
+               remaining = deadline - System.currentTimeMillis();
+            }
+         }
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      catch(InterruptedException e) {}
+      synchronized (stripe) {
+         if (req.granted)
+            return;
+         lock.waiters.remove(req);
+         stopWaiting(req);
+         grantWaiters(stripe, obj, lock);
       }
+      throw new LockAbortException();
    }
    
    /**
-    * Releases a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
-    * @param blk a reference to the disk block
+    * Grants the requests at the head of the wait queue of
+    * the object, for as long as they are compatible with the
+    * locks held, and wakes the transactions that made them.
+    * The lock is removed from the stripe when it is no longer
+    * held or waited for.
+    * The caller must synchronize on the stripe.
     */
-   synchronized void unlock(Block blk) {
-      int val = getLockVal(blk);
-      if (val > 1)
-         locks.put(blk, val-1);
-      else {
-         locks.remove(blk);
-         notifyAll();
+   private void grantWaiters(Stripe stripe, Object obj, Lock lock) {
+      while (!lock.waiters.isEmpty()) {
+         Request req = lock.waiters.peekFirst();
+         if (!isCompatible(lock, req.txnum, req.mode))
+            break;
+         lock.holders.put(req.txnum, req.mode);
+         lock.waiters.removeFirst();
+         stopWaiting(req);
+         synchronized (req) {
+            req.granted = true;
+            req.notify();
+         }
       }
+      if (lock.holders.isEmpty() && lock.waiters.isEmpty())
+         stripe.locks.remove(obj);
+      else
+         updateWaitsFor(lock);
    }
    
-   private boolean hasXlock(Block blk) {
-      return getLockVal(blk) < 0;
+   /**
+    * Adds the specified request to the wait-for graph.
+    * The caller must synchronize on the stripe.
+    */
+   private void startWaiting(Lock lock, Request req) {
+      synchronized (waiting) {
+         waiting.put(req.txnum, req);
+      }
+      updateWaitsFor(lock);
    }
    
-   private boolean hasOtherSLocks(Block blk) {
-      return getLockVal(blk) > 1;
+   /**
+    * Removes the specified request from the wait-for graph.
+    */
+   private void stopWaiting(Request req) {
+      synchronized (waiting) {
+         waiting.remove(req.txnum);
+      }
    }
    
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+   /**
+    * Recomputes the edges of the wait-for graph for the requests
+    * waiting for the specified lock, and looks for a cycle through
+    * each request that has gained an edge.
+    * The caller must synchronize on the stripe, so that
+    * the edges agree with the state of the lock.
+    */
+   private void updateWaitsFor(Lock lock) {
+      synchronized (waiting) {
+         Set<Integer> ahead = new HashSet<Integer>();
+         for (Request req : lock.waiters) {
+            Set<Integer> blockers = new HashSet<Integer>(ahead);
+            for (Map.Entry<Integer,Integer> e : lock.holders.entrySet())
+               if (!COMPATIBLE[e.getValue()][req.mode])
+                  blockers.add(e.getKey());
+            blockers.remove(req.txnum);
+            boolean added = !req.waitsFor.containsAll(blockers);
+            req.waitsFor = blockers;
+            if (added)
+               breakCycle(req);
+            ahead.add(req.txnum);
+         }
+      }
+   }
+   
+   /**
+    * Breaks the cycles of the wait-for graph through the specified
+    * request: for each cycle, the request of the youngest transaction
+    * in the cycle (the one having the largest id) is aborted.
+    * Requests that have already been aborted are not part of any
+    * cycle, because their transactions will release their locks.
+    * The caller must synchronize on the wait-for graph.
+    */
+   private void breakCycle(Request start) {
+      while (!start.aborted) {
+         List<Request> cycle = findPath(start, start.txnum, new ArrayList<Request>(), new HashSet<Integer>());
+         if (cycle == null)
+            return;
+         Request victim = start;
+         for (Request req : cycle)
+            if (req.txnum > victim.txnum)
+               victim = req;
+         synchronized (victim) {
+            victim.aborted = true;
+            victim.notify();
+         }
+      }
+   }
+   
+   /**
+    * Searches the wait-for graph depth-first for a path from
+    * the specified request back to the specified transaction,
+    * through requests that have not been aborted.
+    * @return the requests on the path, or null if there is none
+    */
+   private List<Request> findPath(Request req, int target, List<Request> path, Set<Integer> visited) {
+      path.add(req);
+      for (int txnum : req.waitsFor) {
+         if (txnum == target)
+            return path;
+         Request next = waiting.get(txnum);
+         if (next != null && !next.aborted && visited.add(txnum)) {
+            List<Request> result = findPath(next, target, path, visited);
+            if (result != null)
+               return result;
+         }
+      }
+      path.remove(path.size()-1);
+      return null;
+   }
+   
+   private Stripe stripeOf(Object obj) {
+      int h = obj.hashCode();
+      h ^= (h >>> 16);
+      return stripes[(h & Integer.MAX_VALUE) % stripes.length];
    }
    
-   private int getLockVal(Block blk) {
-      Integer ival = locks.get(blk);
-      return (ival == null) ? 0 : ival.intValue();
+   /**
+    * A stripe of the lock table, which holds
+    * the locks of the objects that hash to it.
+    */
+   private static class Stripe {
+      Map<Object,Lock> locks = new HashMap<Object,Lock>();
+   
+      Lock lock(Object obj) {
+         Lock lock = locks.get(obj);
+         if (lock == null) {
+            lock = new Lock();
+            locks.put(obj, lock);
+         }
+         return lock;
+      }
+   }
+   
+   /**
+    * The locks on an object: the mode held by each
+    * transaction, and the queue of waiting requests.
+    */
+   private static class Lock {
+      Map<Integer,Integer> holders = new HashMap<Integer,Integer>();
+      LinkedList<Request> waiters = new LinkedList<Request>();
+   }
+   
+   /**
+    * A waiting request for a lock, which is a node
+    * of the wait-for graph.
+    * The request is granted while synchronized on its stripe,
+    * and aborted while synchronized on the wait-for graph;
+    * the transaction waits on the request itself.
+    */
+   private static class Request {
+      int txnum, mode;
+      boolean upgrade;
+      Set<Integer> waitsFor = Collections.emptySet();
+      boolean granted = false, aborted = false;
+   
+      Request(int txnum, int mode, boolean upgrade) {
+         this.txnum = txnum;
+         this.mode = mode;
+         this.upgrade = upgrade;
+      }
    }
 }
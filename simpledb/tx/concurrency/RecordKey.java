@@ -0,0 +1,47 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.Block;
+
+/**
+ * The key under which the lock table locks a record:
+ * the block of the record, and the record's slot in the block.
+ * @author Edward Sciore
+ */
+class RecordKey {
+   private Block blk;
+   private int slot;
+   
+   /**
+    * Creates the key of the record in the specified slot
+    * of the specified block.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record in the block
+    */
+   RecordKey(Block blk, int slot) {
+      this.blk = blk;
+      this.slot = slot;
+   }
+   
+   /**
+    * Returns the name of the file that contains the record.
+    * @return the filename
+    */
+   String fileName() {
+      return blk.fileName();
+   }
+   
+   public boolean equals(Object obj) {
+      if (!(obj instanceof RecordKey))
+         return false;
+      RecordKey key = (RecordKey) obj;
+      return slot == key.slot && blk.equals(key.blk);
+   }
+   
+   public int hashCode() {
+      return blk.hashCode() * 31 + slot;
+   }
+   
+   public String toString() {
+      return "[" + blk + ", slot " + slot + "]";
+   }
+}
@@ -0,0 +1,47 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+
+/**
+ * The background checkpointer.
+ * The checkpointer periodically checks how much time has passed
+ * and how much log has been written since the last checkpoint,
+ * and calls {@link RecoveryMgr#checkpoint()} when either
+ * exceeds its limit.
+ * Thus the log that recovery has to read is bounded.
+ * @author Edward Sciore
+ */
+class Checkpointer implements Runnable {
+   private static final long INTERVAL = 1000; // milliseconds
+   private long maxtime, maxlog;
+   
+   /**
+    * Creates a checkpointer having the specified limits.
+    * A limit of 0 is ignored.
+    * @param seconds the maximum number of seconds between checkpoints
+    * @param logbytes the maximum number of log bytes between checkpoints
+    */
+   Checkpointer(int seconds, long logbytes) {
+      this.maxtime = seconds * 1000L;
+      this.maxlog = logbytes;
+   }
+   
+   public void run() {
+      long lasttime = System.currentTimeMillis();
+      long lastlsn = SimpleDB.logMgr().endLSN();
+      try {
+         while (true) {
+            Thread.sleep(INTERVAL);
+            long now = System.currentTimeMillis();
+            long lsn = SimpleDB.logMgr().endLSN();
+            if ((maxtime > 0 && now - lasttime >= maxtime)
+                  || (maxlog > 0 && lsn - lastlsn >= maxlog)) {
+               RecoveryMgr.checkpoint();
+               lasttime = now;
+               lastlsn = lsn;
+            }
+         }
+      }
+      catch(InterruptedException e) {}
+   }
+}
@@ -0,0 +1,153 @@
+package simpledb.tx.recovery;
+
+import static java.sql.Types.INTEGER;
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import simpledb.tx.Transaction;
+import simpledb.record.*;
+import simpledb.query.*;
+import simpledb.index.btree.BTreeIndex;
+import simpledb.log.*;
+
+/**
+ * The INDEXINSERT and INDEXDELETE log records, which say that
+ * a transaction inserted or deleted a record of a B-tree index.
+ * The records are logical: the modified pages of the B-tree are
+ * logged by the actions that modified them, which commit at once
+ * (see {@link simpledb.tx.Transaction#beginAction()}),
+ * and an index record is undone by deleting or reinserting
+ * the index record, wherever it is in the B-tree by then.
+ * @author Edward Sciore
+ */
+class IndexRecord implements LogRecord {
+   private int txnum, type, length;
+   private boolean insert, compensation;
+   private String idxname;
+   private Constant val;
+   private RID rid;
+   
+   /**
+    * Creates a new index log record.
+    * @param txnum the ID of the specified transaction
+    * @param insert true if the index record was inserted, false if deleted
+    * @param idxname the name of the index
+    * @param leafsch the schema of the index's leaf records
+    * @param val the dataval of the index record
+    * @param rid the dataRID of the index record
+    */
+   public IndexRecord(int txnum, boolean insert, String idxname, Schema leafsch, Constant val, RID rid) {
+      this(txnum, insert, idxname, leafsch.type("dataval"), leafsch.length("dataval"), val, rid, false);
+   }
+   
+   private IndexRecord(int txnum, boolean insert, String idxname, int type, int length,
+                       Constant val, RID rid, boolean compensation) {
+      this.txnum = txnum;
+      this.insert = insert;
+      this.idxname = idxname;
+      this.type = type;
+      this.length = length;
+      this.val = val;
+      this.rid = rid;
+      this.compensation = compensation;
+   }
+   
+   /**
+    * Creates a log record by reading eight other values from the log.
+    * @param rec the basic log record
+    * @param insert true for an INDEXINSERT record
+    */
+   public IndexRecord(BasicLogRecord rec, boolean insert) {
+      this.insert = insert;
+      txnum = rec.nextInt();
+      idxname = rec.nextString();
+      type = rec.nextInt();
+      length = rec.nextInt();
+      if (type == INTEGER)
+         val = new IntConstant(rec.nextInt());
+      else
+         val = new StringConstant(rec.nextString());
+      int blknum = rec.nextInt();
+      rid = new RID(blknum, rec.nextInt());
+      compensation = rec.nextInt() != 0;
+   }
+   
+   /**
+    * Writes an index record to the log.
+    * This log record contains the INDEXINSERT or INDEXDELETE
+    * operator, followed by the transaction id, the name of the
+    * index, the type and length of its datavals, the dataval and
+    * dataRID of the index record, and a flag that is 1 for a
+    * compensation record.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+   
+   public int logSize() {
+      int valsize = (type == INTEGER) ? INT_SIZE
+            : STR_SIZE(((String) val.asJavaVal()).length());
+      return 7 * INT_SIZE + STR_SIZE(idxname.length()) + valsize;
+   }
+   
+   public void writeTo(LogOutput out) {
+      out.writeInt(op());
+      out.writeInt(txnum);
+      out.writeString(idxname);
+      out.writeInt(type);
+      out.writeInt(length);
+      if (type == INTEGER)
+         out.writeInt((Integer) val.asJavaVal());
+      else
+         out.writeString((String) val.asJavaVal());
+      out.writeInt(rid.blockNumber());
+      out.writeInt(rid.id());
+      out.writeInt(compensation ? 1 : 0);
+   }
+   
+   public int op() {
+      return insert ? INDEXINSERT : INDEXDELETE;
+   }
+   
+   public int txNumber() {
+      return txnum;
+   }
+   
+   public boolean isCompensation() {
+      return compensation;
+   }
+   
+   public String toString() {
+      return "<" + (insert ? "INDEXINSERT" : "INDEXDELETE") + (compensation ? " CLR " : " ")
+            + txnum + " " + idxname + " " + val + " " + rid + ">";
+   }
+   
+   /**
+    * Deletes the inserted index record, or reinserts the deleted one,
+    * in an action of its own, and then writes a compensation record.
+    * Both are harmless if they were already done,
+    * so that an undo interrupted by a crash can be repeated.
+    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    */
+   public void undo(int txnum) {
+      Schema leafsch = new Schema();
+      leafsch.addIntField("block");
+      leafsch.addIntField("id");
+      leafsch.addField("dataval", type, length);
+      Transaction tx = Transaction.systemAction();
+      BTreeIndex idx = new BTreeIndex(idxname, leafsch, tx);
+      if (insert)
+         idx.undoInsert(val, rid);
+      else
+         idx.undoDelete(val, rid);
+      idx.close();
+      tx.commit();
+      new IndexRecord(this.txnum, insert, idxname, type, length, val, rid, true).writeToLog();
+   }
+   
+   /**
+    * Does nothing, because the modified pages of the index
+    * are redone from the log records of the actions.
+    */
+   public void redo(int txnum, long lsn) {}
+}
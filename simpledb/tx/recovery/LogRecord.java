@@ -1,27 +1,27 @@
 package simpledb.tx.recovery;
 
-import simpledb.log.LogMgr;
-import simpledb.server.SimpleDB;
+import simpledb.log.Loggable;
 
 /**
  * The interface implemented by each type of log record.
+ * Each log record writes its values directly into the log,
+ * through the methods of {@link Loggable}.
  * @author Edward Sciore
  */
-public interface LogRecord {
+public interface LogRecord extends Loggable {
    /**
-    * The six different types of log record
+    * The ten different types of log record
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5;
-   
-   static final LogMgr logMgr = SimpleDB.logMgr();
+      SETINT = 4, SETSTRING = 5, NQCKPT = 6,
+      INDEXINSERT = 7, INDEXDELETE = 8, SETBYTES = 9;
    
    /**
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   long writeToLog();
    
    /**
     * Returns the log record's type. 
@@ -37,10 +37,31 @@ public interface LogRecord {
    int txNumber();
    
    /**
-    * Undoes the operation encoded by this log record.
+    * Returns true if the log record is a compensation record,
+    * which was written when undoing an earlier modification.
+    * A compensation record is redone but never undone.
+    * @return true if the record is a compensation record
+    */
+   boolean isCompensation();
+   
+   /**
+    * Undoes the operation encoded by this log record,
+    * writing a compensation record for the undo.
     * The only log record types for which this method
-    * does anything interesting are SETINT and SETSTRING.
+    * does anything interesting are SETINT, SETSTRING
+    * and SETBYTES, which are undone physically, and INDEXINSERT and
+    * INDEXDELETE, which are undone logically.
     * @param txnum the id of the transaction that is performing the undo.
     */
    void undo(int txnum);
+   
+   /**
+    * Redoes the operation encoded by this log record,
+    * if the modified block does not already contain it.
+    * The only log record types for which this method
+    * does anything interesting are SETINT, SETSTRING and SETBYTES.
+    * @param txnum the id of the transaction that is performing the redo.
+    * @param lsn the LSN of this log record
+    */
+   void redo(int txnum, long lsn);
 }
\ No newline at end of file
@@ -7,14 +7,54 @@ import simpledb.server.SimpleDB;
 
 /**
  * A class that provides the ability to read records
- * from the log in reverse order.
+ * from the log in reverse order, or forward from a given LSN,
+ * or only the records having given LSNs.
  * Unlike the similar class 
  * {@link simpledb.log.LogIterator LogIterator},  
  * this class understands the meaning of the log records.
  * @author Edward Sciore
  */
 class LogRecordIterator implements Iterator<LogRecord> {
-   private Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+   private Iterator<BasicLogRecord> iter;
+   private long lsn = -1;
+   
+   /**
+    * Creates an iterator that reads the log in reverse order,
+    * starting with the most recent record.
+    */
+   LogRecordIterator() {
+      iter = SimpleDB.logMgr().iterator();
+   }
+   
+   /**
+    * Creates an iterator that reads the log records having
+    * the specified LSNs, in reverse order.
+    * @param lsns an array whose first count elements are
+    * the LSNs of the records, in increasing order
+    * @param count the number of records
+    */
+   LogRecordIterator(long[] lsns, int count) {
+      iter = SimpleDB.logMgr().iterator(lsns, count);
+   }
+   
+   /**
+    * Creates an iterator that reads the log in the order
+    * it was written, starting with the first record
+    * having the specified LSN.
+    * @param lsn the LSN of the first record
+    */
+   LogRecordIterator(long lsn) {
+      iter = SimpleDB.logMgr().forwardIterator(lsn);
+   }
+   
+   /**
+    * Returns the LSN of the record most recently
+    * returned by {@link #next()}.
+    * @return the LSN of the current record
+    */
+   long lsn() {
+      return lsn;
+   }
    
    public boolean hasNext() {
       return iter.hasNext();
@@ -31,10 +71,13 @@ class LogRecordIterator implements Iterator<LogRecord> {
     */
    public LogRecord next() {
       BasicLogRecord rec = iter.next();
+      lsn = rec.lsn();
       int op = rec.nextInt();
       switch (op) {
          case CHECKPOINT:
             return new CheckpointRecord(rec);
+         case NQCKPT:
+            return new NQCheckpointRecord(rec);
          case START:
             return new StartRecord(rec);
          case COMMIT:
@@ -45,6 +88,12 @@ class LogRecordIterator implements Iterator<LogRecord> {
             return new SetIntRecord(rec);
          case SETSTRING:
             return new SetStringRecord(rec);
+         case SETBYTES:
+            return new SetBytesRecord(rec);
+         case INDEXINSERT:
+            return new IndexRecord(rec, true);
+         case INDEXDELETE:
+            return new IndexRecord(rec, false);
          default:
             return null;
       }
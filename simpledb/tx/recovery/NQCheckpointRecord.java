@@ -0,0 +1,108 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import simpledb.log.*;
+
+/**
+ * The NQCKPT (nonquiescent checkpoint) log record.
+ * The record is written while transactions are running.
+ * It holds the LSN where the redo phase of recovery must start,
+ * which is no later than the first logged modification of any
+ * page that was not on disk, and the LSN where the analysis of
+ * unfinished transactions must start, which is no later than
+ * the START record of any transaction that was active.
+ * @author Edward Sciore
+ */
+class NQCheckpointRecord implements LogRecord {
+   private long redoLSN, undoLSN;
+   
+   /**
+    * Creates a nonquiescent checkpoint record.
+    * @param redoLSN the LSN where redo must start
+    * @param undoLSN the LSN of the earliest START record of an active transaction
+    */
+   public NQCheckpointRecord(long redoLSN, long undoLSN) {
+      this.redoLSN = redoLSN;
+      this.undoLSN = undoLSN;
+   }
+   
+   /**
+    * Creates a log record by reading two other values 
+    * from the basic log record.
+    * @param rec the basic log record
+    */
+   public NQCheckpointRecord(BasicLogRecord rec) {
+      redoLSN = rec.nextLong();
+      undoLSN = rec.nextLong();
+   }
+   
+   /** 
+    * Writes a nonquiescent checkpoint record to the log.
+    * This log record contains the NQCKPT operator,
+    * followed by the redo LSN and the undo LSN.
+    * @return the LSN of the record
+    */
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+   
+   public int logSize() {
+      return INT_SIZE + 2 * LONG_SIZE;
+   }
+   
+   public void writeTo(LogOutput out) {
+      out.writeInt(NQCKPT);
+      out.writeLong(redoLSN);
+      out.writeLong(undoLSN);
+   }
+   
+   public int op() {
+      return NQCKPT;
+   }
+   
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns the LSN where the redo phase of recovery must start.
+    * @return the redo LSN
+    */
+   long redoLSN() {
+      return redoLSN;
+   }
+   
+   /**
+    * Returns the LSN where the search for
+    * unfinished transactions must start.
+    * @return the undo LSN
+    */
+   long undoLSN() {
+      return undoLSN;
+   }
+   
+   public boolean isCompensation() {
+      return false;
+   }
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+   
+   public String toString() {
+      return "<NQCKPT " + redoLSN + " " + undoLSN + ">";
+   }
+}
@@ -1,17 +1,70 @@
 package simpledb.tx.recovery;
 
 import static simpledb.tx.recovery.LogRecord.*;
+import static simpledb.file.Page.*;
 import simpledb.file.Block;
-import simpledb.buffer.Buffer;
+import simpledb.buffer.*;
+import simpledb.log.*;
 import simpledb.server.SimpleDB;
+import simpledb.tx.Transaction;
+import simpledb.record.*;
+import simpledb.query.Constant;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * The log records for modifications contain both the old and the new
+ * values, so modified buffers need not be written to disk at commit
+ * (no-force): committing only flushes the log.
+ * Recovery redoes the modifications since the last checkpoint
+ * that are missing from their blocks, and then undoes the modifications
+ * of the unfinished transactions.
+ * Each undo is logged as a compensation record, so that a rollback
+ * interrupted by a crash is completed, and not repeated, by recovery.
+ * Each recovery manager keeps the LSNs of its transaction's
+ * update records, so that a rollback reads only those records
+ * rather than the log of every transaction since it started.
+ * <P>
+ * Checkpoints are written periodically while transactions run
+ * (see {@link #checkpoint()}).
+ * The LSN of the most recent checkpoint is saved in a master file,
+ * so that recovery can go directly to it; the work of recovery is
+ * then bounded by the log written since the checkpoint before it,
+ * plus the log of any transaction that was still running.
+ * The segments of the log before that point are then no longer
+ * needed, and are removed (see {@link simpledb.server.SimpleDB#LOG_ARCHIVE}).
+ * <P>
+ * The update records that are written while snapshots may need
+ * them are also kept in memory (see {@link VersionStore}),
+ * so that a read-only transaction can read the database as of
+ * the time it began, without locks (see {@link Snapshot}).
+ * <P>
+ * The insertions and deletions of B-tree index records are logged
+ * logically, and undone by the opposite operation; the pages of the
+ * B-tree are modified by short actions, which are logged physically
+ * and commit without waiting for the transaction.
+ * Recovery undoes the unfinished actions before the logical records,
+ * so that the B-tree is consistent when those are undone.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   /**
+    * The name of the master file, which holds
+    * the LSN of the most recent checkpoint.
+    */
+   public static final String MASTER_FILE = "simpledb.master";
+   
+   // the LSN of the START record of each active transaction
+   private static Map<Integer,Long> activeTxs = new HashMap<Integer,Long>();
+   private static long lastCheckpointLSN = 0;
+   
    private int txnum;
+   // the LSNs of the update records of the transaction that
+   // have not been undone, in the order they were written
+   private long[] updates = new long[16];
+   private int numupdates = 0;
 
    /**
     * Creates a recovery manager for the specified transaction.
@@ -19,38 +72,158 @@ public class RecoveryMgr {
     */
    public RecoveryMgr(int txnum) {
       this.txnum = txnum;
-      new StartRecord(txnum).writeToLog();
+      synchronized (activeTxs) {
+         long lsn = new StartRecord(txnum).writeToLog();
+         activeTxs.put(txnum, lsn);
+      }
    }
 
    /**
     * Writes a commit record to the log, and flushes it to disk.
+    * The modified buffers are not flushed, because the
+    * log records contain their new values.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
+      long lsn = new CommitRecord(txnum).writeToLog();
+      finished();
       SimpleDB.logMgr().flush(lsn);
    }
 
+   /**
+    * Writes a commit record for an action to the log,
+    * without flushing it.
+    * The action is durable once a later record is flushed,
+    * such as the commit record of a transaction that depends on it.
+    */
+   public void commitAction() {
+      new CommitRecord(txnum).writeToLog();
+      finished();
+   }
+
    /**
     * Writes a rollback record to the log, and flushes it to disk.
     */
    public void rollback() {
       doRollback();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
+      long lsn = new RollbackRecord(txnum).writeToLog();
+      finished();
       SimpleDB.logMgr().flush(lsn);
    }
 
    /**
     * Recovers uncompleted transactions from the log,
-    * then writes a quiescent checkpoint record to the log and flushes it.
+    * then flushes all buffers and writes a quiescent
+    * checkpoint record to the log and flushes it.
+    * The log before the checkpoint is then removed.
     */
    public void recover() {
       doRecover();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
+      VersionStore.clear();
+      SimpleDB.bufferMgr().flushAll();
+      long lsn = new CheckpointRecord().writeToLog();
       SimpleDB.logMgr().flush(lsn);
+      writeMaster(lsn);
+      lastCheckpointLSN = lsn;
+      SimpleDB.logMgr().truncate(lsn, archiveDir());
+   }
+
+   /**
+    * Writes a nonquiescent checkpoint record to the log,
+    * without stopping the running transactions.
+    * Buffers whose modifications are older than the previous
+    * checkpoint are flushed first, so that the redo phase
+    * of recovery never starts before the previous checkpoint.
+    * The record holds the smallest recovery LSN of the
+    * buffer pool and the LSN of the earliest START record of
+    * an active transaction; the LSN at the end of the log is
+    * taken first, and bounds both.
+    * Once the record is on disk, its LSN is saved in the master file,
+    * and the log before both LSNs is removed.
+    */
+   public static synchronized void checkpoint() {
+      BufferMgr bm = SimpleDB.bufferMgr();
+      LogMgr lm = SimpleDB.logMgr();
+      bm.flushOlderThan(lastCheckpointLSN);
+      long begin = lm.endLSN();
+      long redoLSN = Math.min(begin, bm.minRecoveryLSN());
+      long undoLSN = begin;
+      synchronized (activeTxs) {
+         for (long startlsn : activeTxs.values())
+            undoLSN = Math.min(undoLSN, startlsn);
+      }
+      long lsn = new NQCheckpointRecord(redoLSN, undoLSN).writeToLog();
+      lm.flush(lsn);
+      writeMaster(lsn);
+      lastCheckpointLSN = begin;
+      lm.truncate(Math.min(redoLSN, undoLSN), archiveDir());
+   }
 
+   /**
+    * Starts a daemon thread that writes checkpoints periodically.
+    * A checkpoint is written when the specified number of seconds
+    * or the specified number of log bytes has passed since the
+    * previous one; a limit of 0 is ignored.
+    * If both limits are 0, no thread is started.
+    * @param seconds the maximum number of seconds between checkpoints
+    * @param logbytes the maximum number of log bytes between checkpoints
+    */
+   public static void startCheckpointer(int seconds, long logbytes) {
+      if (seconds <= 0 && logbytes <= 0)
+         return;
+      Thread t = new Thread(new Checkpointer(seconds, logbytes), "Checkpointer");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Begins a snapshot of the database, which contains the
+    * modifications of the transactions that have finished,
+    * and none of the modifications of the active ones.
+    * The modifications that the active transactions made
+    * while no snapshot was open are read from the log.
+    * The snapshot must be closed when it is no longer needed.
+    * @return the new snapshot
+    */
+   public static Snapshot snapshot() {
+      synchronized (activeTxs) {
+         long lsn = SimpleDB.logMgr().endLSN();
+         Snapshot s = new Snapshot(lsn, new HashSet<Integer>(activeTxs.keySet()));
+         VersionStore.load(activeTxs);
+         return s;
+      }
+   }
+
+   /**
+    * Checks that a database of an earlier format version,
+    * which is read without being recovered,
+    * has no unfinished work in its log.
+    * The log is read backwards from its end to its last
+    * checkpoint, looking only at the operation and transaction
+    * of each record, which every version writes first.
+    * A transaction of versions 0 and 1 wrote its modified pages
+    * to disk before its COMMIT or ROLLBACK record, so the pages are
+    * consistent if every transaction in that part of the log finished.
+    * From version 2 on, committed pages are written later,
+    * so that part of the log must not modify anything.
+    * @param version the format version of the database
+    */
+   public static void checkFinished(int version) {
+      String recover = "; start the database once with the version that created it, to recover it";
+      Collection<Integer> finishedTxs = new HashSet<Integer>();
+      Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+      while (iter.hasNext()) {
+         BasicLogRecord rec = iter.next();
+         int op = rec.nextInt();
+         if (op == CHECKPOINT)
+            return;
+         int tx = rec.nextInt();
+         if (op == COMMIT || op == ROLLBACK)
+            finishedTxs.add(tx);
+         else if (!finishedTxs.contains(tx))
+            throw new RuntimeException("transaction " + tx + " did not finish" + recover);
+         else if (version >= 2 && op != START)
+            throw new RuntimeException("transaction " + tx + " made changes that may not be on disk" + recover);
+      }
    }
 
    /**
@@ -61,71 +234,306 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+         return logged(new SetIntRecord(txnum, blk, offset, oldval, newval));
    }
 
    /**
     * Writes a setstring record to the log, and returns its lsn.
     * Updates to temporary files are not logged; instead, a
     * "dummy" negative lsn is returned.
+    * A record holding a long old and new value may not fit in
+    * a page of the log; the change is then logged as the
+    * setbytes records of its pieces, and the lsn of the last
+    * piece is returned.
     * @param buff the buffer containing the page
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
+      if (isTempBlock(blk))
+         return -1;
+      SetStringRecord rec = new SetStringRecord(txnum, blk, offset, oldval, newval);
+      if (rec.logSize() <= LogMgr.maxRecordSize())
+         return logged(rec);
+      byte[] strbytes = newval.getBytes();
+      byte[] newbytes = ByteBuffer.allocate(INT_SIZE + strbytes.length)
+                                  .putInt(strbytes.length).put(strbytes).array();
+      long lsn = -1;
+      int chunk = BLOCK_SIZE / 4;
+      for (int i=0; i<newbytes.length; i += chunk) {
+         byte[] piece = Arrays.copyOfRange(newbytes, i, Math.min(i + chunk, newbytes.length));
+         lsn = setBytes(buff, offset + i, piece);
+      }
+      return lsn;
+   }
+
+   /**
+    * Writes a setbytes record to the log, and returns its lsn.
+    * Updates to temporary files are not logged; instead, a
+    * "dummy" negative lsn is returned.
+    * @param buff the buffer containing the page
+    * @param offset the offset of the bytes in the page
+    * @param newval the bytes to be written
+    */
+   public long setBytes(Buffer buff, int offset, byte[] newval) {
+      byte[] oldval = buff.getBytes(offset, newval.length);
+      Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+         return logged(new SetBytesRecord(txnum, blk, offset, oldval, newval));
+   }
+
+   /**
+    * Writes an indexinsert record to the log, and returns its lsn.
+    * The record must be written before the index record is inserted.
+    * @param idxname the name of the B-tree index
+    * @param leafsch the schema of the index's leaf records
+    * @param val the dataval of the index record
+    * @param rid the dataRID of the index record
+    */
+   public long indexInsert(String idxname, Schema leafsch, Constant val, RID rid) {
+      return chained(new IndexRecord(txnum, true, idxname, leafsch, val, rid).writeToLog());
+   }
+
+   /**
+    * Writes an indexdelete record to the log, and returns its lsn.
+    * The record must be written before the index record is deleted.
+    * @param idxname the name of the B-tree index
+    * @param leafsch the schema of the index's leaf records
+    * @param val the dataval of the index record
+    * @param rid the dataRID of the index record
+    */
+   public long indexDelete(String idxname, Schema leafsch, Constant val, RID rid) {
+      return chained(new IndexRecord(txnum, false, idxname, leafsch, val, rid).writeToLog());
+   }
+
+   /**
+    * Writes an update record to the log, adds its LSN to the
+    * chain of the transaction's updates, and keeps the update
+    * as a version of its block if a snapshot may need it.
+    * @param rec the update record
+    * @return the LSN of the record
+    */
+   private long logged(UpdateRecord rec) {
+      long lsn = rec.writeToLog();
+      VersionStore.add(txnum, rec, lsn);
+      return chained(lsn);
+   }
+
+   /**
+    * Adds the LSN of a record to the chain of the
+    * transaction's updates.
+    * @param lsn the LSN of the record
+    * @return the LSN
+    */
+   private long chained(long lsn) {
+      if (numupdates == updates.length)
+         updates = Arrays.copyOf(updates, 2 * numupdates);
+      updates[numupdates++] = lsn;
+      return lsn;
+   }
+
+   /**
+    * Removes the transaction from the active transactions,
+    * once its COMMIT or ROLLBACK record has been written.
+    */
+   private void finished() {
+      synchronized (activeTxs) {
+         activeTxs.remove(txnum);
+         VersionStore.retire(txnum);
+      }
    }
 
    /**
     * Rolls back the transaction.
-    * The method iterates through the log records,
-    * calling undo() for each log record it finds
-    * for the transaction,
-    * until it finds the transaction's START record.
+    * The method reads the transaction's update records
+    * in reverse order, following the chain of their LSNs,
+    * and calls undo() for each of them.
+    * Each record is removed from the chain once it has been
+    * undone, so that a rollback that fails part way
+    * can be continued.
     */
    private void doRollback() {
-      Iterator<LogRecord> iter = new LogRecordIterator();
+      Iterator<LogRecord> iter = new LogRecordIterator(updates, numupdates);
       while (iter.hasNext()) {
-         LogRecord rec = iter.next();
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(txnum);
-         }
+         iter.next().undo(txnum);
+         numupdates--;
       }
    }
 
    /**
-    * Does a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
+    * Does a complete database recovery, in two passes.
+    * The method first finds the most recent checkpoint,
+    * using the master file or, if that fails, by reading
+    * the log backwards.
+    * The first pass reads the log forward from the checkpoint's
+    * undo LSN or redo LSN, whichever is earlier, finding the unfinished
+    * transactions and calling redo() on each log record
+    * at or after the redo LSN.
+    * The second pass reads the log backwards until it has found
+    * the START record of each unfinished transaction;
+    * whenever it finds a log record for an unfinished
+    * transaction that has not already been undone,
+    * it calls undo() on that record; the logical records
+    * of B-tree indexes are undone after that pass, newest first,
+    * once the unfinished actions on the B-trees have been undone.
+    * Finally, a ROLLBACK record is written for each
+    * unfinished transaction.
     */
    private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<Integer>();
-      Iterator<LogRecord> iter = new LogRecordIterator();
+      long redoLSN = 0, undoLSN = 0;
+      LogRecord ckpt = lastCheckpoint();
+      if (ckpt instanceof NQCheckpointRecord) {
+         redoLSN = ((NQCheckpointRecord) ckpt).redoLSN();
+         undoLSN = ((NQCheckpointRecord) ckpt).undoLSN();
+      }
+      else if (ckpt != null)
+         redoLSN = undoLSN = lastCheckpointLSN;
+
+      Collection<Integer> finishedTxs = new HashSet<Integer>();
+      Collection<Integer> unfinishedTxs = new HashSet<Integer>();
+      LogRecordIterator iter = new LogRecordIterator(Math.min(redoLSN, undoLSN));
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
-         if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
-            finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
+         int tx = rec.txNumber();
+         Transaction.reserveTxNumber(tx);
+         if (rec.op() == COMMIT || rec.op() == ROLLBACK) {
+            finishedTxs.add(tx);
+            unfinishedTxs.remove(tx);
+         }
+         else if (tx >= 0 && !finishedTxs.contains(tx))
+            unfinishedTxs.add(tx);
+         if (iter.lsn() >= redoLSN)
+            rec.redo(txnum, iter.lsn());
+      }
+
+      Collection<Integer> unstarted = new HashSet<Integer>(unfinishedTxs);
+      Map<Integer,Integer> undone = new HashMap<Integer,Integer>();
+      List<LogRecord> logical = new ArrayList<LogRecord>();
+      iter = new LogRecordIterator();
+      while (!unstarted.isEmpty() && iter.hasNext()) {
+         LogRecord rec = iter.next();
+         int tx = rec.txNumber();
+         if (!unfinishedTxs.contains(tx))
+            continue;
+         int n = undone.containsKey(tx) ? undone.get(tx) : 0;
+         if (rec.op() == START)
+            unstarted.remove(tx);
+         else if (rec.isCompensation())
+            undone.put(tx, n+1);
+         else if (n > 0)
+            undone.put(tx, n-1);
+         else if (rec.op() == INDEXINSERT || rec.op() == INDEXDELETE)
+            logical.add(rec);
+         else
             rec.undo(txnum);
       }
+      for (LogRecord rec : logical)
+         rec.undo(txnum);
+      for (int tx : unfinishedTxs)
+         new RollbackRecord(tx).writeToLog();
+   }
+
+   /**
+    * Returns the most recent checkpoint record, and sets
+    * lastCheckpointLSN to its LSN.
+    * The LSN is read from the master file; if the file is
+    * missing or does not point to a checkpoint record,
+    * the log is read backwards to find one.
+    * @return the checkpoint record, or null if the log has none
+    */
+   private LogRecord lastCheckpoint() {
+      long lsn = readMaster();
+      if (lsn >= 0 && lsn < SimpleDB.logMgr().endLSN()) {
+         LogRecordIterator iter = new LogRecordIterator(lsn);
+         if (iter.hasNext()) {
+            LogRecord rec = iter.next();
+            if (iter.lsn() == lsn && (rec.op() == CHECKPOINT || rec.op() == NQCKPT)) {
+               lastCheckpointLSN = lsn;
+               return rec;
+            }
+         }
+      }
+      LogRecordIterator iter = new LogRecordIterator();
+      while (iter.hasNext()) {
+         LogRecord rec = iter.next();
+         if (rec.op() == CHECKPOINT || rec.op() == NQCKPT) {
+            lastCheckpointLSN = iter.lsn();
+            return rec;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns the directory to which removed segments
+    * of the log are moved, or null if they are deleted.
+    */
+   private static File archiveDir() {
+      String dirname = SimpleDB.LOG_ARCHIVE;
+      if (dirname == null)
+         return null;
+      File dir = new File(dirname);
+      return dir.isAbsolute() ? dir : SimpleDB.fileMgr().file(dirname);
+   }
+
+   /**
+    * Returns the LSN saved in the master file,
+    * or -1 if the file cannot be read.
+    */
+   private static long readMaster() {
+      File f = SimpleDB.fileMgr().file(MASTER_FILE);
+      try {
+         BufferedReader in = new BufferedReader(new FileReader(f));
+         try {
+            return Long.parseLong(in.readLine().trim());
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch (IOException e) {
+         return -1;
+      }
+      catch (RuntimeException e) {
+         return -1;
+      }
+   }
+
+   /**
+    * Saves the LSN of a checkpoint record in the master file.
+    * The file is written under a temporary name and then renamed,
+    * so that it is never seen half-written.
+    * The checkpoint record must already be on disk.
+    * @param lsn the LSN of the checkpoint record
+    */
+   private static void writeMaster(long lsn) {
+      File f = SimpleDB.fileMgr().file(MASTER_FILE);
+      File tmp = SimpleDB.fileMgr().file(MASTER_FILE + ".new");
+      try {
+         FileOutputStream out = new FileOutputStream(tmp);
+         try {
+            out.write((lsn + "\n").getBytes());
+            out.getFD().sync();
+         }
+         finally {
+            out.close();
+         }
+         if (!tmp.renameTo(f))
+            throw new IOException();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + f);
+      }
    }
 
    /**
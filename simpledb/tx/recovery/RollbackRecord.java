@@ -1,6 +1,8 @@
 package simpledb.tx.recovery;
 
-import simpledb.log.BasicLogRecord;
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import simpledb.log.*;
 
 /**
  * The ROLLBACK log record.
@@ -31,9 +33,17 @@ class RollbackRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {ROLLBACK, txnum};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+   
+   public int logSize() {
+      return 2 * INT_SIZE;
+   }
+   
+   public void writeTo(LogOutput out) {
+      out.writeInt(ROLLBACK);
+      out.writeInt(txnum);
    }
    
    public int op() {
@@ -50,6 +60,16 @@ class RollbackRecord implements LogRecord {
     */
    public void undo(int txnum) {}
    
+   public boolean isCompensation() {
+      return false;
+   }
+   
+   /**
+    * Does nothing, because a rollback record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+   
    public String toString() {
       return "<ROLLBACK " + txnum + ">";
    }
@@ -0,0 +1,152 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import simpledb.buffer.*;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.log.*;
+
+class SetBytesRecord implements UpdateRecord {
+   private int txnum, offset;
+   private byte[] oldval, newval;
+   private Block blk;
+   private boolean compensation;
+   
+   /**
+    * Creates a new setbytes log record.
+    * @param txnum the ID of the specified transaction
+    * @param blk the block containing the bytes
+    * @param offset the offset of the bytes in the block
+    * @param oldval the previous bytes
+    * @param newval the new bytes
+    */
+   public SetBytesRecord(int txnum, Block blk, int offset, byte[] oldval, byte[] newval) {
+      this(txnum, blk, offset, oldval, newval, false);
+   }
+   
+   /**
+    * Creates a new setbytes log record, which is a compensation
+    * record if it was written when undoing an earlier modification.
+    * @param txnum the ID of the specified transaction
+    * @param blk the block containing the bytes
+    * @param offset the offset of the bytes in the block
+    * @param oldval the previous bytes
+    * @param newval the new bytes
+    * @param compensation true if the record is a compensation record
+    */
+   SetBytesRecord(int txnum, Block blk, int offset, byte[] oldval, byte[] newval, boolean compensation) {
+      this.txnum = txnum;
+      this.blk = blk;
+      this.offset = offset;
+      this.oldval = oldval;
+      this.newval = newval;
+      this.compensation = compensation;
+   }
+   
+   /**
+    * Creates a log record by reading seven other values from the log.
+    * @param rec the basic log record
+    */
+   public SetBytesRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      String filename = rec.nextString();
+      int blknum = rec.nextInt();
+      blk = new Block(filename, blknum);
+      offset = rec.nextInt();
+      oldval = rec.nextBytes();
+      newval = rec.nextBytes();
+      compensation = rec.nextInt() != 0;
+   }
+   
+   /**
+    * Writes a setBytes record to the log.
+    * This log record contains the SETBYTES operator,
+    * followed by the transaction id, the filename, number,
+    * and offset of the modified block, the previous
+    * and new bytes at that offset, and a flag
+    * that is 1 for a compensation record.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+   
+   public int logSize() {
+      return 5 * INT_SIZE + STR_SIZE(blk.fileName().length())
+            + 2 * INT_SIZE + oldval.length + newval.length;
+   }
+   
+   public void writeTo(LogOutput out) {
+      out.writeInt(SETBYTES);
+      out.writeInt(txnum);
+      out.writeString(blk.fileName());
+      out.writeInt(blk.number());
+      out.writeInt(offset);
+      out.writeBytes(oldval);
+      out.writeBytes(newval);
+      out.writeInt(compensation ? 1 : 0);
+   }
+   
+   public int op() {
+      return SETBYTES;
+   }
+   
+   public int txNumber() {
+      return txnum;
+   }
+   
+   public boolean isCompensation() {
+      return compensation;
+   }
+   
+   public Block block() {
+      return blk;
+   }
+   
+   public void restore(Page page) {
+      page.setBytes(offset, oldval);
+   }
+   
+   public String toString() {
+      return "<SETBYTES" + (compensation ? " CLR " : " ") + txnum + " " + blk + " "
+            + offset + " " + oldval.length + ">";
+   }
+   
+   /**
+    * Replaces the specified data value with the old value saved in the log record.
+    * The method pins a buffer to the specified block,
+    * writes a compensation record for the change,
+    * calls setBytes to restore the saved bytes,
+    * and unpins the buffer.
+    * The compensation record belongs to the transaction
+    * that made the original change, and is kept as a version
+    * of the block like the change itself.
+    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    */
+   public void undo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      synchronized (buff) {
+         SetBytesRecord clr = new SetBytesRecord(this.txnum, blk, offset, newval, oldval, true);
+         long lsn = clr.writeToLog();
+         VersionStore.add(this.txnum, clr, lsn);
+         buff.setBytes(offset, oldval, txnum, lsn);
+      }
+      buffMgr.unpin(buff);
+   }
+   
+   /**
+    * Writes the new value saved in the log record to the specified block,
+    * unless the page LSN of the block shows that it already has
+    * a later modification.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      if (buff.pageLSN() < lsn)
+         buff.setBytes(offset, newval, txnum, lsn);
+      buffMgr.unpin(buff);
+   }
+}
@@ -1,30 +1,51 @@
 package simpledb.tx.recovery;
 
+import static simpledb.file.Page.*;
 import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
-import simpledb.log.BasicLogRecord;
+import simpledb.file.Page;
+import simpledb.log.*;
 
-class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+class SetIntRecord implements UpdateRecord {
+   private int txnum, offset;
+   private int oldval, newval;
    private Block blk;
+   private boolean compensation;
 
    /**
     * Creates a new setint log record.
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the previous value
+    * @param newval the new value
     */
-   public SetIntRecord(int txnum, Block blk, int offset, int val) {
+   public SetIntRecord(int txnum, Block blk, int offset, int oldval, int newval) {
+      this(txnum, blk, offset, oldval, newval, false);
+   }
+
+   /**
+    * Creates a new setint log record, which is a compensation
+    * record if it was written when undoing an earlier modification.
+    * @param txnum the ID of the specified transaction
+    * @param blk the block containing the value
+    * @param offset the offset of the value in the block
+    * @param oldval the previous value
+    * @param newval the new value
+    * @param compensation true if the record is a compensation record
+    */
+   SetIntRecord(int txnum, Block blk, int offset, int oldval, int newval, boolean compensation) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
+      this.compensation = compensation;
    }
 
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading seven other values from the log.
     * @param rec the basic log record
     */
    public SetIntRecord(BasicLogRecord rec) {
@@ -33,21 +54,37 @@ class SetIntRecord implements LogRecord {
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextInt();
+      oldval = rec.nextInt();
+      newval = rec.nextInt();
+      compensation = rec.nextInt() != 0;
    }
 
    /**
     * Writes a setInt record to the log.
     * This log record contains the SETINT operator,
     * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * integer value at that offset.
+    * and offset of the modified block, the previous
+    * and new values at that offset, and a flag
+    * that is 1 for a compensation record.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETINT, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+
+   public int logSize() {
+      return 7 * INT_SIZE + STR_SIZE(blk.fileName().length());
+   }
+
+   public void writeTo(LogOutput out) {
+      out.writeInt(SETINT);
+      out.writeInt(txnum);
+      out.writeString(blk.fileName());
+      out.writeInt(blk.number());
+      out.writeInt(offset);
+      out.writeInt(oldval);
+      out.writeInt(newval);
+      out.writeInt(compensation ? 1 : 0);
    }
 
    public int op() {
@@ -58,21 +95,57 @@ class SetIntRecord implements LogRecord {
       return txnum;
    }
 
+   public boolean isCompensation() {
+      return compensation;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   public void restore(Page page) {
+      page.setInt(offset, oldval);
+   }
+
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT" + (compensation ? " CLR " : " ") + txnum + " " + blk + " "
+            + offset + " " + oldval + " " + newval + ">";
    }
 
    /**
-    * Replaces the specified data value with the value saved in the log record.
+    * Replaces the specified data value with the old value saved in the log record.
     * The method pins a buffer to the specified block,
-    * calls setInt to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
+    * writes a compensation record for the change,
+    * calls setInt to restore the saved value,
+    * and unpins the buffer.
+    * The compensation record belongs to the transaction
+    * that made the original change, and is kept as a version
+    * of the block like the change itself.
     * @see simpledb.tx.recovery.LogRecord#undo(int)
     */
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setInt(offset, val, txnum, -1);
+      synchronized (buff) {
+         SetIntRecord clr = new SetIntRecord(this.txnum, blk, offset, newval, oldval, true);
+         long lsn = clr.writeToLog();
+         VersionStore.add(this.txnum, clr, lsn);
+         buff.setInt(offset, oldval, txnum, lsn);
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Writes the new value saved in the log record to the specified block,
+    * unless the page LSN of the block shows that it already has
+    * a later modification.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      if (buff.pageLSN() < lsn)
+         buff.setInt(offset, newval, txnum, lsn);
       buffMgr.unpin(buff);
    }
 }
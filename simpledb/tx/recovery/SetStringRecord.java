@@ -1,31 +1,51 @@
 package simpledb.tx.recovery;
 
+import static simpledb.file.Page.*;
 import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
-import simpledb.log.BasicLogRecord;
+import simpledb.file.Page;
+import simpledb.log.*;
 
-class SetStringRecord implements LogRecord {
+class SetStringRecord implements UpdateRecord {
    private int txnum, offset;
-   private String val;
+   private String oldval, newval;
    private Block blk;
-   
+   private boolean compensation;
+
    /**
     * Creates a new setstring log record.
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the previous value
+    * @param newval the new value
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, Block blk, int offset, String oldval, String newval) {
+      this(txnum, blk, offset, oldval, newval, false);
+   }
+
+   /**
+    * Creates a new setstring log record, which is a compensation
+    * record if it was written when undoing an earlier modification.
+    * @param txnum the ID of the specified transaction
+    * @param blk the block containing the value
+    * @param offset the offset of the value in the block
+    * @param oldval the previous value
+    * @param newval the new value
+    * @param compensation true if the record is a compensation record
+    */
+   SetStringRecord(int txnum, Block blk, int offset, String oldval, String newval, boolean compensation) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
+      this.compensation = compensation;
    }
-   
+
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading seven other values from the log.
     * @param rec the basic log record
     */
    public SetStringRecord(BasicLogRecord rec) {
@@ -34,46 +54,99 @@ class SetStringRecord implements LogRecord {
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextString();
+      oldval = rec.nextString();
+      newval = rec.nextString();
+      compensation = rec.nextInt() != 0;
    }
-   
-   /** 
+
+   /**
     * Writes a setString record to the log.
     * This log record contains the SETSTRING operator,
     * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * string value at that offset.
+    * and offset of the modified block, the previous
+    * and new values at that offset, and a flag
+    * that is 1 for a compensation record.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+
+   public int logSize() {
+      return 5 * INT_SIZE + STR_SIZE(blk.fileName().length())
+            + STR_SIZE(oldval.length()) + STR_SIZE(newval.length());
    }
-   
+
+   public void writeTo(LogOutput out) {
+      out.writeInt(SETSTRING);
+      out.writeInt(txnum);
+      out.writeString(blk.fileName());
+      out.writeInt(blk.number());
+      out.writeInt(offset);
+      out.writeString(oldval);
+      out.writeString(newval);
+      out.writeInt(compensation ? 1 : 0);
+   }
+
    public int op() {
       return SETSTRING;
    }
-   
+
    public int txNumber() {
       return txnum;
    }
-   
+
+   public boolean isCompensation() {
+      return compensation;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   public void restore(Page page) {
+      page.setString(offset, oldval);
+   }
+
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING" + (compensation ? " CLR " : " ") + txnum + " " + blk + " "
+            + offset + " " + oldval + " " + newval + ">";
    }
-   
-   /** 
-    * Replaces the specified data value with the value saved in the log record.
+
+   /**
+    * Replaces the specified data value with the old value saved in the log record.
     * The method pins a buffer to the specified block,
-    * calls setString to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
+    * writes a compensation record for the change,
+    * calls setString to restore the saved value,
+    * and unpins the buffer.
+    * The compensation record belongs to the transaction
+    * that made the original change, and is kept as a version
+    * of the block like the change itself.
     * @see simpledb.tx.recovery.LogRecord#undo(int)
     */
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
+      synchronized (buff) {
+         SetStringRecord clr = new SetStringRecord(this.txnum, blk, offset, newval, oldval, true);
+         long lsn = clr.writeToLog();
+         VersionStore.add(this.txnum, clr, lsn);
+         buff.setString(offset, oldval, txnum, lsn);
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Writes the new value saved in the log record to the specified block,
+    * unless the page LSN of the block shows that it already has
+    * a later modification.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      if (buff.pageLSN() < lsn)
+         buff.setString(offset, newval, txnum, lsn);
       buffMgr.unpin(buff);
    }
 }
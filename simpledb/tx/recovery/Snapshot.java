@@ -0,0 +1,136 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.Buffer;
+import simpledb.file.*;
+import java.util.*;
+
+/**
+ * A snapshot of the database, which is read by
+ * a read-only transaction instead of taking locks.
+ * The snapshot contains the modifications of the transactions
+ * that committed before it began, and none of the others:
+ * a modification is visible if it was logged before the
+ * snapshot began, by a transaction that was not active then.
+ * <P>
+ * A block that has modifications the snapshot cannot see
+ * is copied, and the old values of those modifications
+ * are restored in the copy, from the newest to the oldest
+ * (see {@link VersionStore}).
+ * The most recent copy is kept, because the snapshot's
+ * version of a block never changes.
+ * @author Edward Sciore
+ */
+public class Snapshot {
+   private long lsn, time;
+   private Set<Integer> active;
+   private Block lastblk;
+   private Page lastpage;
+   
+   /**
+    * Creates a snapshot of the database as of the specified LSN.
+    * The caller must synchronize on the active transactions.
+    * @param lsn the end of the log when the snapshot begins
+    * @param active the ids of the active transactions
+    */
+   Snapshot(long lsn, Set<Integer> active) {
+      this.lsn = lsn;
+      this.active = active;
+      time = VersionStore.begin(this);
+   }
+   
+   /**
+    * Returns the integer value at the specified offset
+    * of the buffer's block, as of the snapshot.
+    * @param buff the buffer of the block
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int getInt(Buffer buff, int offset) {
+      synchronized (buff) {
+         Page page = version(buff);
+         return (page == null) ? buff.getInt(offset) : page.getInt(offset);
+      }
+   }
+   
+   /**
+    * Returns the string value at the specified offset
+    * of the buffer's block, as of the snapshot.
+    * @param buff the buffer of the block
+    * @param offset the byte offset within the block
+    * @return the string stored at that offset
+    */
+   public String getString(Buffer buff, int offset) {
+      synchronized (buff) {
+         Page page = version(buff);
+         return (page == null) ? buff.getString(offset) : page.getString(offset);
+      }
+   }
+   
+   /**
+    * Returns the specified number of bytes at the specified
+    * offset of the buffer's block, as of the snapshot.
+    * @param buff the buffer of the block
+    * @param offset the byte offset within the block
+    * @param n the number of bytes
+    * @return the bytes stored at that offset
+    */
+   public byte[] getBytes(Buffer buff, int offset, int n) {
+      synchronized (buff) {
+         Page page = version(buff);
+         return (page == null) ? buff.getBytes(offset, n) : page.getBytes(offset, n);
+      }
+   }
+   
+   /**
+    * Ends the snapshot, so that the versions
+    * it needed can be discarded.
+    */
+   public void close() {
+      VersionStore.end(this);
+      lastpage = null;
+   }
+   
+   /**
+    * Returns the time at which the snapshot began.
+    * @return the time of the snapshot
+    */
+   long time() {
+      return time;
+   }
+   
+   /**
+    * Returns the snapshot's copy of the buffer's block,
+    * or null if the buffer contains no modification
+    * that the snapshot cannot see.
+    * The caller must synchronize on the buffer.
+    */
+   private Page version(Buffer buff) {
+      Block blk = buff.block();
+      if (blk.equals(lastblk))
+         return lastpage;
+      List<VersionStore.Version> versions = VersionStore.versions(blk);
+      if (versions == null)
+         return null;
+      synchronized (versions) {
+         int i = versions.size() - 1;
+         while (i >= 0 && isVisible(versions.get(i)))
+            i--;
+         if (i < 0)
+            return null;
+         if (lastpage == null)
+            lastpage = new Page();
+         buff.copyTo(lastpage);
+         for (; i >= 0; i--) {
+            VersionStore.Version v = versions.get(i);
+            if (!isVisible(v))
+               v.rec.restore(lastpage);
+         }
+      }
+      lastblk = blk;
+      return lastpage;
+   }
+   
+   private boolean isVisible(VersionStore.Version v) {
+      return v.lsn < lsn && !active.contains(v.txnum);
+   }
+}
@@ -1,6 +1,8 @@
 package simpledb.tx.recovery;
 
-import simpledb.log.BasicLogRecord;
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import simpledb.log.*;
 
 class StartRecord implements LogRecord {
    private int txnum;
@@ -27,9 +29,17 @@ class StartRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {START, txnum};
-      return logMgr.append(rec);
+   public long writeToLog() {
+      return SimpleDB.logMgr().append(this);
+   }
+   
+   public int logSize() {
+      return 2 * INT_SIZE;
+   }
+   
+   public void writeTo(LogOutput out) {
+      out.writeInt(START);
+      out.writeInt(txnum);
    }
    
    public int op() {
@@ -46,6 +56,16 @@ class StartRecord implements LogRecord {
     */
    public void undo(int txnum) {}
    
+   public boolean isCompensation() {
+      return false;
+   }
+   
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+   
    public String toString() {
       return "<START " + txnum + ">";
    }
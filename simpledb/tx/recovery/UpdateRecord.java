@@ -0,0 +1,25 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+import simpledb.file.Page;
+
+/**
+ * The interface implemented by the log records
+ * that modify a value in a block.
+ * @author Edward Sciore
+ */
+interface UpdateRecord extends LogRecord {
+   /**
+    * Returns the block that the record modifies.
+    * @return a reference to the block
+    */
+   Block block();
+   
+   /**
+    * Writes the value that the modification replaced
+    * into the specified copy of the block.
+    * Nothing is logged.
+    * @param page a copy of the block's page
+    */
+   void restore(Page page);
+}
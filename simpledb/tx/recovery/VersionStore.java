@@ -0,0 +1,233 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The versions of the modified blocks, which let a
+ * {@link Snapshot} read blocks as they were when it began.
+ * A logged modification of a block is kept in memory,
+ * together with its LSN and transaction, for as long as some
+ * snapshot may not be allowed to see it: while its transaction
+ * is running, and after the transaction finishes, until every
+ * snapshot that began before then has ended.
+ * A snapshot rebuilds the earlier version of a block by
+ * restoring the old values of the modifications it cannot see.
+ * <P>
+ * While no snapshot is open, the modifications are not kept;
+ * only the transactions that made them are remembered.
+ * A snapshot that begins while such a transaction is running
+ * reads the log from the transaction's START record,
+ * and keeps the modifications that it finds there.
+ * @author Edward Sciore
+ */
+class VersionStore {
+   // the modifications of each block, in the order of their LSNs
+   private static Map<Block,List<Version>> versions = new ConcurrentHashMap<Block,List<Version>>();
+   // the modifications of each transaction that is running
+   // or that some snapshot cannot see
+   private static Map<Integer,List<Version>> txversions = new ConcurrentHashMap<Integer,List<Version>>();
+   // the snapshots that have not ended, oldest first
+   private static LinkedList<Snapshot> snapshots = new LinkedList<Snapshot>();
+   private static volatile int numsnapshots = 0;
+   // the transactions that made modifications that were not kept
+   private static Set<Integer> unkept = ConcurrentHashMap.newKeySet();
+   // the finished transactions whose modifications are still kept,
+   // with the time that each finished, in the order they finished
+   private static LinkedHashMap<Integer,Long> retired = new LinkedHashMap<Integer,Long>();
+   // orders the beginning of snapshots and the end of transactions
+   private static long clock = 0;
+   
+   /**
+    * Keeps the specified modification of a block,
+    * if some snapshot is open.
+    * Otherwise, the transaction is remembered, and a later
+    * snapshot reads the modification from the log.
+    * The snapshot count is read again after the transaction
+    * is remembered, so that a snapshot that begins in between
+    * does not miss the modification.
+    * The caller must synchronize on the buffer of the block
+    * while it logs the modification, keeps it, and makes it,
+    * so that a snapshot never sees one without the other.
+    * @param txnum the id of the modifying transaction
+    * @param rec the log record of the modification
+    * @param lsn the LSN of the log record
+    */
+   static void add(int txnum, UpdateRecord rec, long lsn) {
+      if (numsnapshots == 0) {
+         unkept.add(txnum);
+         if (numsnapshots == 0)
+            return;
+      }
+      keep(txnum, rec, lsn);
+   }
+   
+   /**
+    * Returns the modifications of the specified block
+    * that are kept, in LSN order, or null if there are none.
+    * The caller must synchronize on the list to read it.
+    * @param blk a reference to the block
+    * @return the list of modifications, or null
+    */
+   static List<Version> versions(Block blk) {
+      return versions.get(blk);
+   }
+   
+   /**
+    * Registers a new snapshot, and returns the time
+    * at which it begins.
+    * The caller must synchronize on the active transactions,
+    * so that no transaction finishes while the snapshot begins.
+    * @param s the snapshot
+    * @return the time of the snapshot
+    */
+   static synchronized long begin(Snapshot s) {
+      snapshots.addLast(s);
+      numsnapshots++;
+      return ++clock;
+   }
+   
+   /**
+    * Keeps the modifications that the specified active transactions
+    * made while no snapshot was open, by reading the log forward
+    * from the earliest of their START records.
+    * A new snapshot calls this method after it has begun,
+    * so that the transactions keep their later modifications
+    * themselves; a modification that is both kept and read
+    * from the log is only kept once.
+    * The caller must synchronize on the active transactions,
+    * so that none of them finishes while the log is read.
+    * @param active the ids of the active transactions,
+    * with the LSNs of their START records
+    */
+   static void load(Map<Integer,Long> active) {
+      Set<Integer> txs = new HashSet<Integer>();
+      long from = Long.MAX_VALUE;
+      for (int txnum : unkept)
+         if (active.containsKey(txnum)) {
+            txs.add(txnum);
+            from = Math.min(from, active.get(txnum));
+         }
+      if (txs.isEmpty())
+         return;
+      unkept.removeAll(txs);
+      LogRecordIterator iter = new LogRecordIterator(from);
+      while (iter.hasNext()) {
+         LogRecord rec = iter.next();
+         if (rec instanceof UpdateRecord && txs.contains(rec.txNumber()))
+            keep(rec.txNumber(), (UpdateRecord) rec, iter.lsn());
+      }
+   }
+   
+   /**
+    * Unregisters the specified snapshot, and discards the
+    * modifications that no remaining snapshot needs.
+    * @param s the snapshot
+    */
+   static synchronized void end(Snapshot s) {
+      snapshots.remove(s);
+      numsnapshots--;
+      purge();
+   }
+   
+   /**
+    * Records that the specified transaction has finished.
+    * Its modifications are discarded at once if there is no snapshot,
+    * and otherwise when the snapshots that began earlier have ended.
+    * The caller must synchronize on the active transactions.
+    * @param txnum the id of the transaction
+    */
+   static synchronized void retire(int txnum) {
+      unkept.remove(txnum);
+      retired.put(txnum, ++clock);
+      purge();
+   }
+   
+   /**
+    * Discards every modification that is kept.
+    * This method is called at the end of recovery,
+    * before any snapshot exists.
+    */
+   static synchronized void clear() {
+      versions.clear();
+      txversions.clear();
+      retired.clear();
+      unkept.clear();
+   }
+   
+   /**
+    * Keeps the specified modification of a block,
+    * in the LSN order of the block's modifications,
+    * unless it is already kept.
+    */
+   private static void keep(int txnum, UpdateRecord rec, long lsn) {
+      final Version v = new Version(txnum, lsn, rec);
+      final boolean[] added = new boolean[1];
+      versions.compute(rec.block(), (blk, list) -> {
+         if (list == null)
+            list = new ArrayList<Version>();
+         synchronized (list) {
+            int i = list.size();
+            while (i > 0 && list.get(i-1).lsn > lsn)
+               i--;
+            if (i == 0 || list.get(i-1).lsn != lsn) {
+               list.add(i, v);
+               added[0] = true;
+            }
+         }
+         return list;
+      });
+      if (!added[0])
+         return;
+      List<Version> txlist = txversions.computeIfAbsent(txnum, n -> new ArrayList<Version>());
+      synchronized (txlist) {
+         txlist.add(v);
+      }
+   }
+   
+   /**
+    * Discards the modifications of the retired transactions
+    * that finished before the oldest snapshot began.
+    */
+   private static void purge() {
+      long oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.getFirst().time();
+      Iterator<Map.Entry<Integer,Long>> iter = retired.entrySet().iterator();
+      while (iter.hasNext()) {
+         Map.Entry<Integer,Long> e = iter.next();
+         if (e.getValue() > oldest)
+            return;
+         iter.remove();
+         final int txnum = e.getKey();
+         List<Version> txlist = txversions.remove(txnum);
+         if (txlist == null)
+            continue;
+         Set<Block> blks = new HashSet<Block>();
+         for (Version v : txlist)
+            blks.add(v.rec.block());
+         for (Block blk : blks)
+            versions.computeIfPresent(blk, (b, list) -> {
+               synchronized (list) {
+                  list.removeIf(v -> v.txnum == txnum);
+                  return list.isEmpty() ? null : list;
+               }
+            });
+      }
+   }
+   
+   /**
+    * A modification of a block: its log record,
+    * the LSN of the record, and the modifying transaction.
+    */
+   static class Version {
+      int txnum;
+      long lsn;
+      UpdateRecord rec;
+   
+      Version(int txnum, long lsn, UpdateRecord rec) {
+         this.txnum = txnum;
+         this.lsn = lsn;
+         this.rec = rec;
+      }
+   }
+}
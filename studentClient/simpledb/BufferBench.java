@@ -0,0 +1,151 @@
+import java.util.Random;
+import simpledb.buffer.*;
+import simpledb.file.*;
+import simpledb.server.SimpleDB;
+
+/* This program times the buffer manager directly, without
+ * the server or any transactions.  It creates the file
+ * bench.tbl in the database benchdb, and then measures
+ * the time taken to pin and unpin its blocks.
+ *
+ *   java BufferBench pool [numbuffers ...]
+ *
+ * For each pool size, every block of the file is resident,
+ * so each pin finds its block in the pool.  The program pins
+ * blocks in random order, first from a fixed set of 1000 blocks
+ * and then from the whole pool.  The time per pin of the fixed
+ * set should stay the same as the pool grows; the time per pin
+ * of the whole pool also includes the processor's cache misses.
+ *
+ *   java BufferBench stripes [numstripes ...]
+ *
+ * For each number of stripes, a pool of 4096 buffers holds
+ * the whole file, and several threads scan the file at once,
+ * each pinning and unpinning its blocks in order.  The program
+ * prints the number of pins per millisecond of all the threads,
+ * which should grow with the number of threads, up to the number
+ * of processors, when the pool has enough stripes.
+ */
+
+public class BufferBench {
+	static final String FILE = "bench.tbl";
+	static final int HOT = 1000;
+	static final int PINS = 1000000;
+	static final int ROUNDS = 5;
+	static final int SCAN_BUFFERS = 4096;
+
+	public static void main(String[] args) {
+		try {
+			SimpleDB.initFileAndLogMgr("benchdb");
+			String mode = (args.length > 0) ? args[0] : "pool";
+			if (mode.equals("pool"))
+				pool(sizes(args, new int[] {1000, 4000, 16000, 64000}));
+			else if (mode.equals("stripes"))
+				stripes(sizes(args, new int[] {1, 2, 4, 8, 16}));
+			else
+				System.out.println("usage: BufferBench pool [numbuffers ...] | stripes [numstripes ...]");
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	// times random pins of resident blocks, for each pool size
+	static void pool(int[] sizes) {
+		System.out.println("buffers\tns/pin (" + HOT + " blocks)\tns/pin (all)\tmisses");
+		for (int size : sizes) {
+			Block[] blks = createBlocks(size);
+			BufferMgr bm = new BufferMgr(size, SimpleDB.BUFFER_POLICY, 1);
+			for (Block blk : blks)
+				bm.unpin(bm.pin(blk));
+			long misses = bm.misses();
+
+			Random rand = new Random(size);
+			Block[] hot = new Block[PINS];
+			Block[] all = new Block[PINS];
+			for (int i=0; i<PINS; i++) {
+				hot[i] = blks[rand.nextInt(Math.min(HOT, size))];
+				all[i] = blks[rand.nextInt(size)];
+			}
+			double hotns = timePins(bm, hot);
+			double allns = timePins(bm, all);
+			System.out.printf("%d\t%.1f\t\t\t%.1f\t\t%d%n", size, hotns, allns, bm.misses() - misses);
+		}
+	}
+
+	// times concurrent scans, for each number of stripes and threads
+	static void stripes(int[] numstripes) throws InterruptedException {
+		int procs = Runtime.getRuntime().availableProcessors();
+		int maxthreads = Math.max(4, 2 * procs);
+		System.out.println(procs + " processors; pins/ms for each number of threads");
+		System.out.print("stripes");
+		for (int t=1; t<=maxthreads; t*=2)
+			System.out.print("\t" + t);
+		System.out.println();
+		Block[] blks = createBlocks(SCAN_BUFFERS);
+		for (int n : numstripes) {
+			BufferMgr bm = new BufferMgr(SCAN_BUFFERS, SimpleDB.BUFFER_POLICY, n);
+			for (Block blk : blks)
+				bm.unpin(bm.pin(blk));
+			System.out.print(n);
+			for (int t=1; t<=maxthreads; t*=2) {
+				long best = Long.MAX_VALUE;
+				for (int r=0; r<ROUNDS; r++)
+					best = Math.min(best, timeScans(bm, blks, t));
+				System.out.printf("\t%d", (long) PINS * 1000000 / best);
+			}
+			System.out.println();
+		}
+	}
+
+	// returns the time taken by the threads to make PINS pins in all
+	static long timeScans(BufferMgr bm, Block[] blks, int numthreads) throws InterruptedException {
+		Thread[] threads = new Thread[numthreads];
+		for (int t=0; t<numthreads; t++) {
+			int first = t * blks.length / numthreads;
+			threads[t] = new Thread(() -> {
+				for (int i=0; i<PINS/numthreads; i++)
+					bm.unpin(bm.pin(blks[(first + i) % blks.length]));
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread th : threads)
+			th.start();
+		for (Thread th : threads)
+			th.join();
+		return System.nanoTime() - start;
+	}
+
+	// returns the best time per pin of several rounds
+	static double timePins(BufferMgr bm, Block[] order) {
+		long best = Long.MAX_VALUE;
+		for (int r=0; r<ROUNDS; r++) {
+			long start = System.nanoTime();
+			for (Block blk : order)
+				bm.unpin(bm.pin(blk));
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return (double) best / order.length;
+	}
+
+	// makes sure the file has n blocks, and returns them
+	static Block[] createBlocks(int n) {
+		Page p = new Page();
+		for (int i=SimpleDB.fileMgr().size(FILE); i<n; i++)
+			p.append(FILE);
+		Block[] blks = new Block[n];
+		for (int i=0; i<n; i++)
+			blks[i] = new Block(FILE, i);
+		return blks;
+	}
+
+	static int[] sizes(String[] args, int[] defaults) {
+		if (args.length < 2)
+			return defaults;
+		int[] sizes = new int[args.length - 1];
+		for (int i=1; i<args.length; i++)
+			sizes[i-1] = Integer.parseInt(args[i]);
+		return sizes;
+	}
+}
@@ -0,0 +1,71 @@
+import java.util.Random;
+import simpledb.file.*;
+import simpledb.server.SimpleDB;
+
+/* This program compares the two I/O modes of the file manager,
+ * "channel" and "mmap", without the rest of the server.
+ * For each mode, it creates the database bench<mode> holding
+ * the file bench.tbl, and times reading and writing its blocks,
+ * first in order and then in random order.
+ *
+ *   java IoBench [numblocks]
+ *
+ * The file has 16384 blocks by default.  The block size can be
+ * set with the property simpledb.blocksize.  The file is read
+ * once before the timing, so the reads come from the operating
+ * system's cache and show the cost of each mode.  Both modes
+ * force each written block to disk, so the writes mostly show
+ * the cost of the disk.
+ */
+
+public class IoBench {
+	static final String FILE = "bench.tbl";
+	static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		try {
+			int n = (args.length > 0) ? Integer.parseInt(args[0]) : 16384;
+			Random rand = new Random(n);
+			Block[] seq = new Block[n];
+			Block[] rnd = new Block[n];
+			for (int i=0; i<n; i++) {
+				seq[i] = new Block(FILE, i);
+				rnd[i] = new Block(FILE, rand.nextInt(n));
+			}
+
+			System.out.println(n + " blocks of " + SimpleDB.BLOCK_SIZE + " bytes; us/block");
+			System.out.println("mode\tseq read\trandom read\tseq write\trandom write");
+			for (String mode : new String[] {"channel", "mmap"}) {
+				SimpleDB.FILE_IO = mode;
+				SimpleDB.initFileMgr("bench" + mode);
+				Page p = new Page();
+				for (int i=SimpleDB.fileMgr().size(FILE); i<n; i++)
+					p.append(FILE);
+				time(seq, false);
+				System.out.printf("%s\t%.2f\t\t%.2f\t\t%.2f\t\t%.2f%n", SimpleDB.fileMgr().ioMode(),
+				                  time(seq, false), time(rnd, false), time(seq, true), time(rnd, true));
+			}
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	// returns the best time per block of several rounds
+	static double time(Block[] blks, boolean write) {
+		Page p = new Page();
+		long best = Long.MAX_VALUE;
+		for (int r=0; r<ROUNDS; r++) {
+			long start = System.nanoTime();
+			for (Block blk : blks) {
+				if (write)
+					p.write(blk);
+				else
+					p.read(blk);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1000.0 / blks.length;
+	}
+}
@@ -0,0 +1,78 @@
+#!/bin/bash
+# Checks that Migrate upgrades a database created by the baseline version
+# of SimpleDB, which has no header and 400-byte blocks.
+# The script builds the baseline, creates studentdb with it, migrates the
+# database with the current build, and runs the tests in tests/ against it.
+# Everything happens in a scratch directory, which is used as the home
+# directory of the servers; no other server may be running.
+#
+# Usage: tests/migrate_studentdb.sh [baseline revision]
+# The baseline revision defaults to the first commit of the repository.
+# Any later revision can be given instead, to check the upgrade of the
+# format version that it writes.
+
+cd "$(dirname "$0")/.."
+ROOT=$(pwd)
+REV=${1:-$(git rev-list --max-parents=0 HEAD)}
+WORK=$(mktemp -d)
+SP=
+trap 'kill $SP 2>/dev/null; rm -rf $WORK' EXIT
+mkdir -p $WORK/old/classes $WORK/new/classes $WORK/home
+
+echo "Compiling the baseline ($REV) and the current tree..."
+git archive $REV simpledb studentClient | tar -x -C $WORK/old
+(cd $WORK/old && javac -nowarn -d classes -cp . simpledb/*/*.java simpledb/*/*/*.java \
+    && javac -nowarn -d classes -cp classes studentClient/simpledb/*.java) > $WORK/javac.log 2>&1 \
+  || { cat $WORK/javac.log; exit 1; }
+(javac -nowarn -d $WORK/new/classes -cp . simpledb/*/*.java simpledb/*/*/*.java \
+    && javac -nowarn -d $WORK/new/classes -cp $WORK/new/classes studentClient/simpledb/*.java) > $WORK/javac.log 2>&1 \
+  || { cat $WORK/javac.log; exit 1; }
+
+# Starts the server of the specified build, and waits until it is ready.
+startserver() {
+  java -Duser.home=$WORK/home -cp $WORK/$1/classes simpledb.server.Startup studentdb > $WORK/server.log 2>&1 &
+  SP=$!
+  for i in $(seq 1 100); do
+    grep -q "ready" $WORK/server.log && return 0
+    kill -0 $SP 2>/dev/null || break
+    sleep 0.2
+  done
+  echo "The $1 server did not start:"; cat $WORK/server.log; exit 1
+}
+
+stopserver() {
+  kill $SP; wait $SP 2>/dev/null; SP=
+}
+
+echo "Creating studentdb with the baseline..."
+startserver old
+java -Duser.home=$WORK/home -cp $WORK/old/classes CreateStudentDB > $WORK/create.log 2>&1
+stopserver
+grep -q "ENROLL records inserted" $WORK/create.log || { cat $WORK/create.log; exit 1; }
+# a build that does not force pages at commit writes them at startup
+startserver old
+stopserver
+
+echo "Migrating studentdb..."
+java -Duser.home=$WORK/home -cp $WORK/new/classes simpledb.server.Migrate studentdb 400 \
+  | grep -v "^new transaction\|^transaction" || exit 1
+cat $WORK/home/studentdb/simpledb.hdr | grep "version\|blocksize"
+
+echo "Running the tests on the migrated database..."
+startserver new
+status=0
+for f in tests/*.txt; do
+  case $f in *_expected.txt) continue;; esac
+  (cat $f; echo exit) > $WORK/input.txt
+  java -Duser.home=$WORK/home -cp $WORK/new/classes SQLInterpreter < $WORK/input.txt > $WORK/output.txt 2>&1
+  grep -v '^SQL>' $WORK/output.txt | grep -v -x -f $WORK/input.txt | grep -v -e '^$' > $WORK/result.txt
+  if cmp -s $WORK/result.txt ${f%.txt}_expected.txt; then
+    echo "Test Matched Expected Output: $f"
+  else
+    echo "Test Differed from Expected Output: $f"
+    diff $WORK/result.txt ${f%.txt}_expected.txt
+    status=1
+  fi
+done
+stopserver
+exit $status